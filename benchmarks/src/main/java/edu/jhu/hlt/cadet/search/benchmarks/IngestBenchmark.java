@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hlt.cadet.search.SentenceIndexer;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.lucene.LuceneCommunicationIndexer;
+import edu.jhu.hlt.concrete.lucene.NaiveConcreteLuceneIndexer;
+import edu.jhu.hlt.concrete.lucene.pretokenized.TokenizedCommunicationIndexer;
+
+/**
+ * Communications per second added by each indexer.
+ *
+ * Every iteration writes to a new index. Closing the index, which flushes the
+ * last segment, happens outside the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+    @Param({"10000"})
+    public int corpusSize;
+
+    @Param({"tokenized", "naive", "sentence"})
+    public String indexer;
+
+    private List<Communication> comms;
+    private Path indexDir;
+    private LuceneCommunicationIndexer luceneIndexer;
+    private SentenceIndexer sentenceIndexer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createCorpus() {
+        comms = new SyntheticCorpus(20000, 42).create(corpusSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void openIndex() throws IOException {
+        indexDir = Directories.create();
+        next = 0;
+        switch (indexer) {
+            case "tokenized":
+                luceneIndexer = new TokenizedCommunicationIndexer(indexDir);
+                break;
+            case "naive":
+                luceneIndexer = new NaiveConcreteLuceneIndexer(indexDir);
+                break;
+            case "sentence":
+                sentenceIndexer = new SentenceIndexer(indexDir, false);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown indexer: " + indexer);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeIndex() throws IOException {
+        if (luceneIndexer != null) {
+            luceneIndexer.close();
+            luceneIndexer = null;
+        }
+        if (sentenceIndexer != null) {
+            sentenceIndexer.close();
+            sentenceIndexer = null;
+        }
+        Directories.delete(indexDir);
+    }
+
+    /**
+     * Adds the next communication. Ids repeat once the corpus is used up
+     * which the sentence indexer treats as updates.
+     */
+    @Benchmark
+    public void add() throws IOException {
+        Communication comm = comms.get(next);
+        next = (next + 1) % comms.size();
+        if (sentenceIndexer != null) {
+            sentenceIndexer.add(comm);
+        } else {
+            luceneIndexer.add(comm);
+        }
+    }
+}
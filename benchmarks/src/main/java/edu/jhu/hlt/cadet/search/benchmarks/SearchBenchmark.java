@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hlt.cadet.search.LuceneSearchHandler;
+import edu.jhu.hlt.cadet.search.SentenceIndexer;
+import edu.jhu.hlt.cadet.search.SentenceSearcher;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+/**
+ * Latency of {@link LuceneSearchHandler#search(SearchQuery)} for different query shapes.
+ *
+ * The handler runs without a result cache. Each invocation picks a query
+ * from a fixed list so a single query's cost does not dominate.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int NUM_QUERIES = 100;
+
+    @Param({"10000"})
+    public int corpusSize;
+
+    @Param({"term", "phrase", "boolean", "wildcard"})
+    public String shape;
+
+    @Param({"100"})
+    public int k;
+
+    @Param({"false", "true"})
+    public boolean useDocValues;
+
+    private Path indexDir;
+    private LuceneSearchHandler handler;
+    private SearchQuery[] queries;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(20000, 42);
+        indexDir = Directories.create();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.setUseDocValues(useDocValues);
+            for (int i = 0; i < corpusSize; i++) {
+                Communication comm = corpus.create("synthetic-" + i);
+                indexer.add(comm);
+            }
+        }
+        handler = new LuceneSearchHandler("eng", new SentenceSearcher(indexDir, false));
+
+        Random random = new Random(7);
+        queries = new SearchQuery[NUM_QUERIES];
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            SearchQuery query = new SearchQuery();
+            query.setRawQuery(createQuery(corpus, random));
+            query.setType(SearchType.SENTENCES);
+            query.setK(k);
+            queries[i] = query;
+        }
+    }
+
+    /**
+     * Terms are drawn from the top thousand words so most queries have many hits
+     */
+    private String createQuery(SyntheticCorpus corpus, Random random) {
+        int vocab = Math.min(1000, corpus.getVocabularySize());
+        switch (shape) {
+            case "term":
+                return corpus.getWord(random.nextInt(vocab));
+            case "phrase":
+                String[] sentence = corpus.nextSentence();
+                int start = random.nextInt(Math.max(1, sentence.length - 1));
+                return "\"" + sentence[start] + " " + sentence[Math.min(start + 1, sentence.length - 1)] + "\"";
+            case "boolean":
+                return corpus.getWord(random.nextInt(vocab)) + " AND (" + corpus.getWord(random.nextInt(vocab))
+                                + " OR " + corpus.getWord(random.nextInt(vocab)) + ")";
+            case "wildcard":
+                String word = corpus.getWord(random.nextInt(vocab));
+                return word.substring(0, Math.min(3, word.length())) + "*";
+            default:
+                throw new IllegalArgumentException("Unknown query shape: " + shape);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        handler.close();
+        Directories.delete(indexDir);
+    }
+
+    @Benchmark
+    public SearchResult search() throws TException {
+        return handler.search(queries[ThreadLocalRandom.current().nextInt(queries.length)]);
+    }
+}
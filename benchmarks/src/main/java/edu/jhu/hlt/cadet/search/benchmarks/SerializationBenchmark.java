@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+/**
+ * Time to serialize a search result with the compact protocol used by the server
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    @Param({"10", "100", "500"})
+    public int k;
+
+    private SearchResult result;
+    private TSerializer serializer;
+
+    @Setup
+    public void setup() {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery("red fish");
+        query.setType(SearchType.SENTENCES);
+        query.setK(k);
+
+        result = new SearchResult();
+        result.setUuid(new UUID(java.util.UUID.randomUUID().toString()));
+        result.setSearchQuery(query);
+        result.setLang("eng");
+        AnnotationMetadata metadata = new AnnotationMetadata();
+        metadata.setTool("Cadet Lucene Search");
+        result.setMetadata(metadata);
+        for (int i = 0; i < k; i++) {
+            SearchResultItem item = new SearchResultItem();
+            item.setCommunicationId("synthetic-" + i);
+            item.setSentenceId(new UUID(java.util.UUID.randomUUID().toString()));
+            item.setScore(10.0 / (i + 1));
+            result.addToSearchResultItems(item);
+        }
+        serializer = new TSerializer(new TCompactProtocol.Factory());
+    }
+
+    @Benchmark
+    public byte[] serialize() throws TException {
+        return serializer.serialize(result);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hlt.cadet.search.LuceneSearchHandler;
+import edu.jhu.hlt.cadet.search.SentenceIndexer;
+import edu.jhu.hlt.cadet.search.SentenceSearcher;
+import edu.jhu.hlt.cadet.search.Server;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+/**
+ * Throughput of the search service over thrift for each server mode.
+ *
+ * Every benchmark thread is a client with its own connection, so -t sets the number
+ * of concurrent clients. The server searches a synthetic corpus without a result cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+    private static final int NUM_QUERIES = 100;
+
+    @Param({"NONBLOCKING", "THREADED_SELECTOR", "HSHA"})
+    public Server.Mode mode;
+
+    @Param({"10000"})
+    public int corpusSize;
+
+    @Param({"4"})
+    public int workerThreads;
+
+    private Path indexDir;
+    private TServer server;
+    private int port;
+    private SearchQuery[] queries;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SyntheticCorpus corpus = new SyntheticCorpus(20000, 42);
+        indexDir = Directories.create();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            for (int i = 0; i < corpusSize; i++) {
+                indexer.add(corpus.create("synthetic-" + i));
+            }
+        }
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng", new SentenceSearcher(indexDir, false));
+
+        Random random = new Random(7);
+        queries = new SearchQuery[NUM_QUERIES];
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            SearchQuery query = new SearchQuery();
+            query.setRawQuery(corpus.getWord(random.nextInt(Math.min(1000, corpus.getVocabularySize()))));
+            query.setType(SearchType.SENTENCES);
+            query.setK(100);
+            queries[i] = query;
+        }
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server.Threading threading = new Server.Threading();
+        threading.mode = mode;
+        threading.workerThreads = workerThreads;
+        Server service = new Server(port, null, null, false);
+        service.setThreading(threading);
+        server = service.createServer(new SearchService.Processor<>(handler));
+        Thread serverThread = new Thread(server::serve, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isServing()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+        Directories.delete(indexDir);
+    }
+
+    /**
+     * A connection for each benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private TTransport transport;
+        private SearchService.Client client;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void open(ServerBenchmark benchmark) throws TException {
+            transport = new TFramedTransport(new TSocket("localhost", benchmark.port), Integer.MAX_VALUE);
+            transport.open();
+            client = new SearchService.Client(new TCompactProtocol(transport));
+            next = (int) Thread.currentThread().getId();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            transport.close();
+        }
+    }
+
+    @Benchmark
+    public SearchResult search(Client client) throws TException {
+        client.next = (client.next + 1) % NUM_QUERIES;
+        return client.client.search(queries[client.next]);
+    }
+}
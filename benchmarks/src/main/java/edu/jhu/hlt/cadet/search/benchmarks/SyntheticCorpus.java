@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenList;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.UUID;
+
+/**
+ * Generates tokenized communications with words drawn from a Zipf distribution
+ * so term frequencies resemble natural text. The same seed gives the same corpus.
+ */
+public class SyntheticCorpus {
+    private static final String[] SYLLABLES = {
+        "ka", "lo", "mi", "nu", "pe", "ra", "si", "to", "ve", "zu",
+        "bar", "den", "fil", "gor", "han", "jet", "kul", "mon", "pil", "tas"
+    };
+
+    private final String[] vocabulary;
+    private final double[] cumulative;
+    private final Random random;
+    private int sentencesPerComm = 10;
+    private int wordsPerSentence = 20;
+
+    public SyntheticCorpus(int vocabularySize, long seed) {
+        this.vocabulary = new String[vocabularySize];
+        this.cumulative = new double[vocabularySize];
+        double total = 0;
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            vocabulary[rank] = word(rank);
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            cumulative[rank] /= total;
+        }
+        this.random = new Random(seed);
+    }
+
+    public void setSentencesPerComm(int sentencesPerComm) {
+        this.sentencesPerComm = sentencesPerComm;
+    }
+
+    /**
+     * Sentence lengths are uniform between half and one and a half times this length
+     */
+    public void setWordsPerSentence(int wordsPerSentence) {
+        this.wordsPerSentence = wordsPerSentence;
+    }
+
+    /**
+     * Spell out a rank as syllables so frequent words are short
+     */
+    private static String word(int rank) {
+        StringBuilder sb = new StringBuilder();
+        int n = rank;
+        do {
+            sb.append(SYLLABLES[n % SYLLABLES.length]);
+            n = n / SYLLABLES.length - 1;
+        } while (n >= 0);
+        return sb.toString();
+    }
+
+    /**
+     * Get the word at a frequency rank where 0 is the most frequent
+     */
+    public String getWord(int rank) {
+        return vocabulary[rank];
+    }
+
+    public int getVocabularySize() {
+        return vocabulary.length;
+    }
+
+    public String nextWord() {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        return vocabulary[Math.min(rank, vocabulary.length - 1)];
+    }
+
+    public String[] nextSentence() {
+        int length = Math.max(1, wordsPerSentence / 2 + random.nextInt(wordsPerSentence + 1));
+        String[] words = new String[length];
+        for (int i = 0; i < length; i++) {
+            words[i] = nextWord();
+        }
+        return words;
+    }
+
+    public List<Communication> create(int numComms) {
+        List<Communication> comms = new ArrayList<>(numComms);
+        for (int i = 0; i < numComms; i++) {
+            comms.add(create("synthetic-" + i));
+        }
+        return comms;
+    }
+
+    /**
+     * Create a communication with one section with text, sentence spans and tokenizations
+     */
+    public Communication create(String id) {
+        StringBuilder text = new StringBuilder();
+        Section section = new Section();
+        section.setUuid(new UUID(id + "-section"));
+        section.setSentenceList(new ArrayList<Sentence>());
+        for (int s = 0; s < sentencesPerComm; s++) {
+            int sentenceStart = text.length();
+            String[] words = nextSentence();
+            List<Token> tokens = new ArrayList<>(words.length);
+            for (int t = 0; t < words.length; t++) {
+                if (t > 0) {
+                    text.append(' ');
+                }
+                Token token = new Token();
+                token.setTokenIndex(t);
+                token.setText(words[t]);
+                token.setTextSpan(new TextSpan(text.length(), text.length() + words[t].length()));
+                text.append(words[t]);
+                tokens.add(token);
+            }
+            TokenList tokenList = new TokenList();
+            tokenList.setTokenList(tokens);
+            Tokenization tokenization = new Tokenization();
+            tokenization.setUuid(new UUID(id + "-tokenization-" + s));
+            tokenization.setTokenList(tokenList);
+
+            Sentence sentence = new Sentence();
+            sentence.setUuid(new UUID(id + "-" + s));
+            sentence.setTextSpan(new TextSpan(sentenceStart, text.length()));
+            sentence.setTokenization(tokenization);
+            section.addToSentenceList(sentence);
+            text.append('\n');
+        }
+        section.setTextSpan(new TextSpan(0, text.length()));
+
+        Communication comm = new Communication();
+        comm.setId(id);
+        comm.setUuid(new UUID(id + "-uuid"));
+        comm.setType("synthetic");
+        comm.setText(text.toString());
+        comm.addToSectionList(section);
+        return comm;
+    }
+}
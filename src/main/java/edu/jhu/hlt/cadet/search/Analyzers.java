@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * Analyzers shared by indexing and search so both sides tokenize the same way.
+ */
+public class Analyzers {
+
+    /**
+     * Create the analyzer for the text field
+     *
+     * @param useLuceneTokenizer use lucene's tokenizer rather than the concrete tokenization
+     */
+    public static Analyzer create(boolean useLuceneTokenizer) {
+        if (useLuceneTokenizer) {
+            return new StandardAnalyzer();
+        }
+        return new PretokenizedAnalyzer();
+    }
+
+    /**
+     * Text from concrete tokenizations is indexed with tokens separated by spaces
+     */
+    static class PretokenizedAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer source = new WhitespaceTokenizer();
+            return new TokenStreamComponents(source, new LowerCaseFilter(source));
+        }
+    }
+
+    /**
+     * Analyze the tokens of a concrete tokenization like {@link PretokenizedAnalyzer} analyzes
+     * them joined by spaces, except that the terms of each token are at the token's index
+     */
+    static TokenStream pretokenized(List<String> tokens) {
+        return new LowerCaseFilter(new TokenListStream(tokens));
+    }
+
+    /**
+     * Splits each token on whitespace as the whitespace tokenizer would and puts its parts at
+     * the position of the token, so an empty token or one holding a space does not shift the
+     * positions of later tokens. Offsets are into the tokens joined by spaces. The words of one
+     * token share a position, so a phrase query does not match across them.
+     */
+    static class TokenListStream extends TokenStream {
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final List<String> tokens;
+        private int token;
+        // offset of the token and of the next character to read in it
+        private int tokenStart;
+        private int pos;
+        private int lastPosition;
+
+        TokenListStream(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            while (token < tokens.size()) {
+                String text = tokens.get(token);
+                while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                    pos++;
+                }
+                if (pos < text.length()) {
+                    int start = pos;
+                    while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))) {
+                        pos++;
+                    }
+                    termAtt.setEmpty().append(text, start, pos);
+                    offsetAtt.setOffset(tokenStart + start, tokenStart + pos);
+                    posIncAtt.setPositionIncrement(token - lastPosition);
+                    lastPosition = token;
+                    return true;
+                }
+                tokenStart += text.length() + 1;
+                token++;
+                pos = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            int finalOffset = Math.max(0, tokenStart - 1);
+            offsetAtt.setOffset(finalOffset, finalOffset);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            token = 0;
+            tokenStart = 0;
+            pos = 0;
+            lastPosition = -1;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+/**
+ * Runs a file of queries against an index in batches and writes the results.
+ *
+ * Each line of output is: query, rank, communication id, sentence uuid and score separated by tabs.
+ *
+ * To run: ./batch-search.sh -d [index dir] -q [query file]
+ */
+public class BatchSearch {
+    private static Logger logger = LoggerFactory.getLogger(BatchSearch.class);
+
+    private static class Opts {
+        @Parameter(names = {"--dir", "-d"}, required = true, description = "Path to the directory for the index.")
+        String indexDir;
+
+        @Parameter(names = {"--queries", "-q"}, required = true, description = "File with one query per line.")
+        String queries;
+
+        @Parameter(names = {"--output", "-o"}, description = "File to write to. (default is stdout)")
+        String output;
+
+        @Parameter(names = {"--type"}, description = "Search for sentences or communications.")
+        String type = "sentences";
+
+        @Parameter(names = {"-k"}, description = "Number of results per query.")
+        int k = 10;
+
+        @Parameter(names = {"--batch-size"}, description = "Number of queries searched against one snapshot at a time.")
+        int batchSize = 1000;
+
+        @Parameter(names = {"--threads"}, description = "Number of queries searched concurrently.")
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--lt"}, description = "Use Lucene tokenizer rather than tokenization in concrete.")
+        boolean useLuceneTokenizer = false;
+
+        @Parameter(names = {"--help", "-h"}, help = true, description = "Print the usage information and exit.")
+        boolean help;
+    }
+
+    public static void main(String[] args) throws IOException, TException {
+        Opts opts = new Opts();
+        JCommander jc = null;
+        try {
+            jc = new JCommander(opts, args);
+        } catch (ParameterException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(-1);
+        }
+        jc.setProgramName("./batch-search.sh");
+        if (opts.help) {
+            jc.usage();
+            return;
+        }
+        SearchType type = null;
+        try {
+            type = SearchType.valueOf(opts.type.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown search type: " + opts.type);
+            System.exit(-1);
+        }
+
+        List<String> rawQueries = WarmUpHandler.readQueries(Paths.get(opts.queries));
+        ExecutorService executor = Executors.newFixedThreadPool(opts.threads);
+        long start = System.nanoTime();
+        int failed;
+        Path indexDir = new IndexGenerations(Paths.get(opts.indexDir)).current();
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, opts.useLuceneTokenizer);
+                        LuceneSearchHandler handler = new LuceneSearchHandler(null, searcher);
+                        Writer out = opts.output == null
+                                        ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                                        : Files.newBufferedWriter(Paths.get(opts.output), StandardCharsets.UTF_8)) {
+            handler.setBatchExecutor(executor);
+            failed = search(searcher, handler, rawQueries, type, opts.k, opts.batchSize, out);
+        } finally {
+            executor.shutdown();
+        }
+        logger.info("Searched " + (rawQueries.size() - failed) + " queries in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+        if (failed > 0) {
+            logger.warn("Skipped " + failed + " queries that could not be parsed");
+        }
+    }
+
+    /**
+     * Search the queries in batches and write the results. Queries that cannot be parsed
+     * are logged and skipped so they do not fail the rest of their batch.
+     *
+     * @return number of queries skipped
+     */
+    static int search(SentenceSearcher searcher, LuceneSearchHandler handler, List<String> rawQueries,
+                    SearchType type, int k, int batchSize, Writer out) throws IOException, TException {
+        int failed = 0;
+        for (int i = 0; i < rawQueries.size(); i += batchSize) {
+            List<SearchQuery> batch = new ArrayList<>();
+            for (String rawQuery : rawQueries.subList(i, Math.min(i + batchSize, rawQueries.size()))) {
+                try {
+                    searcher.parse(rawQuery);
+                } catch (ParseException e) {
+                    logger.warn("Skipping query " + rawQuery + ": " + e.getMessage());
+                    failed++;
+                    continue;
+                }
+                SearchQuery query = new SearchQuery();
+                query.setRawQuery(rawQuery);
+                query.setType(type);
+                query.setK(k);
+                batch.add(query);
+            }
+            for (SearchResult result : handler.searchBatch(batch)) {
+                write(out, result);
+            }
+        }
+        return failed;
+    }
+
+    private static void write(Writer out, SearchResult result) throws IOException {
+        String query = result.getSearchQuery().getRawQuery().replace('\t', ' ');
+        int rank = 1;
+        for (SearchResultItem item : result.getSearchResultItems()) {
+            out.write(query);
+            out.write('\t');
+            out.write(Integer.toString(rank++));
+            out.write('\t');
+            out.write(item.getCommunicationId());
+            out.write('\t');
+            out.write(item.getSentenceId().getUuidString());
+            out.write('\t');
+            out.write(Double.toString(item.getScore()));
+            out.write('\n');
+        }
+    }
+}
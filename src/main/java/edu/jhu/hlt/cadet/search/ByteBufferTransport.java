@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Read-only thrift transport over a byte buffer.
+ *
+ * Lets thrift decode directly from a memory mapped file without first copying it to the heap.
+ */
+public class ByteBufferTransport extends TTransport {
+    private final ByteBuffer buffer;
+
+    public ByteBufferTransport(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void open() throws TTransportException {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        int n = Math.min(len, buffer.remaining());
+        if (n == 0 && len > 0) {
+            throw new TTransportException(TTransportException.END_OF_FILE, "No more data in buffer");
+        }
+        buffer.get(buf, off, n);
+        return n;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        throw new TTransportException("Cannot write to a read-only buffer");
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TopDocs;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+/**
+ * Collapses sentence hits to the top communications.
+ *
+ * A communication is scored by its best sentence and is represented by that sentence's doc id.
+ * The sentences of a communication are added as one block, so they are contiguous in a single
+ * segment and each communication is complete once a hit from another one is collected. Only the
+ * top k communications are kept. Hits are grouped on the doc values ordinal of the comm id and
+ * documents without doc values read only the stored comm id.
+ *
+ * An index built from several sources can hold a communication more than once. Copies are
+ * merged by comm id so the communication appears once, with its best copy, but each copy
+ * counts toward the total. A copy of a communication from an earlier page can take a slot
+ * until the better copy is collected, so a page can come up short; see {@link #isShort()}.
+ */
+public class CommunicationCollector extends SimpleCollector {
+    private static final Set<String> ID_FIELD = Collections.singleton(ConcreteLuceneConstants.COMM_ID_FIELD);
+    // lowest ranked first
+    private static final Comparator<ScoreDoc> WORST_FIRST = (a, b) -> a.score != b.score
+                    ? Float.compare(a.score, b.score) : Integer.compare(b.doc, a.doc);
+
+    private final int k;
+    private final int capacity;
+    private final ScoreDoc after;
+    private final PriorityQueue<CommunicationHit> top;
+    // communications in top and those ranked before the page by comm id
+    private final Map<String, CommunicationHit> topIds = new HashMap<>();
+    private final Set<String> earlierIds = new HashSet<>();
+    private int removed = 0;
+    // whether a communication on the page was left out for lack of capacity
+    private boolean overflowed = false;
+    private int totalCommunications = 0;
+    private float maxScore = Float.NaN;
+    private LeafReaderContext context;
+    private SortedDocValues commValues;
+    private Scorer scorer;
+    // best hit of the communication being collected, identified by its ordinal or stored id
+    private CommunicationHit current;
+    private int currentOrd;
+    private String currentId;
+
+    /**
+     * @param k      maximum number of communications
+     * @param after  last communication of the previous page or null
+     */
+    public CommunicationCollector(int k, ScoreDoc after) {
+        this(k, k, after);
+    }
+
+    /**
+     * @param capacity  number of communications kept while collecting, at least k
+     */
+    public CommunicationCollector(int k, int capacity, ScoreDoc after) {
+        this.k = k;
+        this.capacity = Math.max(k, capacity);
+        this.after = after;
+        this.top = new PriorityQueue<>(Math.max(1, this.capacity), WORST_FIRST);
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        finishCommunication();
+        this.context = context;
+        FieldInfo info = context.reader().getFieldInfos().fieldInfo(ConcreteLuceneConstants.COMM_ID_FIELD);
+        if (info != null && info.getDocValuesType() == DocValuesType.SORTED) {
+            commValues = context.reader().getSortedDocValues(ConcreteLuceneConstants.COMM_ID_FIELD);
+        } else {
+            commValues = null;
+        }
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        float score = scorer.score();
+        int ord = commValues == null ? -1 : commValues.getOrd(doc);
+        String commId = null;
+        if (ord < 0) {
+            // written without doc values, possibly merged into a segment that has them
+            commId = context.reader().document(doc, ID_FIELD).get(ConcreteLuceneConstants.COMM_ID_FIELD);
+            if (commId == null) {
+                return;
+            }
+        }
+        if (current == null || ord != currentOrd || !Objects.equals(commId, currentId)) {
+            finishCommunication();
+            current = new CommunicationHit(context.docBase + doc, score);
+            currentOrd = ord;
+            currentId = commId;
+        } else if (score > current.score) {
+            current.doc = context.docBase + doc;
+            current.score = score;
+        }
+    }
+
+    private void finishCommunication() {
+        if (current == null) {
+            return;
+        }
+        totalCommunications++;
+        if (Float.isNaN(maxScore) || current.score > maxScore) {
+            maxScore = current.score;
+        }
+        boolean onPage = after == null || current.score < after.score
+                        || (current.score == after.score && current.doc > after.doc);
+        if (!onPage) {
+            String id = currentCommId();
+            earlierIds.add(id);
+            if (topIds.containsKey(id)) {
+                remove(topIds.get(id));
+                removed++;
+            }
+        } else if (k > 0 && top.size() == capacity && WORST_FIRST.compare(current, top.peek()) <= 0) {
+            overflowed = true;
+        } else if (k > 0) {
+            current.commId = currentCommId();
+            CommunicationHit copy = topIds.get(current.commId);
+            if (earlierIds.contains(current.commId) || (copy != null && WORST_FIRST.compare(current, copy) <= 0)) {
+                current = null;
+                return;
+            }
+            remove(copy);
+            if (top.size() == capacity) {
+                remove(top.peek());
+                overflowed = true;
+            }
+            top.add(current);
+            topIds.put(current.commId, current);
+        }
+        current = null;
+    }
+
+    private String currentCommId() {
+        return currentId != null ? currentId : commValues.lookupOrd(currentOrd).utf8ToString();
+    }
+
+    private void remove(CommunicationHit hit) {
+        if (hit != null) {
+            top.remove(hit);
+            topIds.remove(hit.commId);
+        }
+    }
+
+    @Override
+    public boolean needsScores() {
+        return true;
+    }
+
+    /**
+     * Whether copies of communications from earlier pages took slots that were needed for
+     * the page. Collecting again with the capacity raised by {@link #getRemovedCount()} fills it.
+     */
+    public boolean isShort() {
+        finishCommunication();
+        return overflowed && top.size() < k;
+    }
+
+    /**
+     * Number of communications dropped after collecting a better copy on an earlier page
+     */
+    public int getRemovedCount() {
+        finishCommunication();
+        return removed;
+    }
+
+    /**
+     * Get the top communications after collection has finished
+     */
+    public TopDocs topDocs() {
+        finishCommunication();
+        while (top.size() > k) {
+            top.poll();
+        }
+        ScoreDoc[] hits = new ScoreDoc[top.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = top.poll();
+        }
+        return new TopDocs(totalCommunications, hits, maxScore);
+    }
+
+    private static class CommunicationHit extends ScoreDoc {
+        String commId;
+
+        CommunicationHit(int doc, float score) {
+            super(doc, score);
+        }
+    }
+}
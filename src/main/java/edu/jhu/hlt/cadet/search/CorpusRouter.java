@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TException;
+
+import edu.jhu.hlt.concrete.search.SearchCapability;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+import edu.jhu.hlt.concrete.services.ServicesException;
+
+/**
+ * Serves several named corpora from one process by sending each query to the handler of its corpus.
+ *
+ * Queries that do not set a corpus go to the first corpus.
+ */
+public class CorpusRouter implements SearchService.Iface, AutoCloseable {
+    private final Map<String, LuceneSearchHandler> handlers;
+    private final String defaultCorpus;
+
+    /**
+     * @param handlers  handler for each corpus name in the order reported by getCorpora
+     */
+    public CorpusRouter(Map<String, LuceneSearchHandler> handlers) {
+        if (handlers.isEmpty()) {
+            throw new IllegalArgumentException("At least one corpus is required");
+        }
+        this.handlers = new LinkedHashMap<>(handlers);
+        this.defaultCorpus = handlers.keySet().iterator().next();
+    }
+
+    @Override
+    public SearchResult search(SearchQuery query) throws ServicesException, TException {
+        return getHandler(query).search(query);
+    }
+
+    LuceneSearchHandler getHandler(SearchQuery query) throws ServicesException {
+        String corpus = query.isSetCorpus() ? query.getCorpus() : defaultCorpus;
+        LuceneSearchHandler handler = handlers.get(corpus);
+        if (handler == null) {
+            throw new ServicesException("Unknown corpus: " + corpus);
+        }
+        return handler;
+    }
+
+    /**
+     * Capabilities of all corpora without duplicates
+     */
+    @Override
+    public List<SearchCapability> getCapabilities() throws ServicesException, TException {
+        Map<String, SearchCapability> capabilities = new LinkedHashMap<>();
+        for (LuceneSearchHandler handler : handlers.values()) {
+            for (SearchCapability capability : handler.getCapabilities()) {
+                capabilities.putIfAbsent(capability.getType() + "/" + capability.getLang(), capability);
+            }
+        }
+        return new ArrayList<>(capabilities.values());
+    }
+
+    @Override
+    public List<String> getCorpora() throws ServicesException, TException {
+        return new ArrayList<>(handlers.keySet());
+    }
+
+    @Override
+    public ServiceInfo about() throws TException {
+        ServiceInfo info = handlers.get(defaultCorpus).about();
+        String description = "Corpora: " + handlers.keySet();
+        if (info.isSetDescription()) {
+            description += " " + info.getDescription();
+        }
+        info.setDescription(description);
+        return info;
+    }
+
+    @Override
+    public boolean alive() throws TException {
+        for (LuceneSearchHandler handler : handlers.values()) {
+            if (!handler.alive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (LuceneSearchHandler handler : handlers.values()) {
+            handler.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Counts the bytes read through a transport
+ */
+public class CountingTransport extends TTransport {
+    private final TTransport transport;
+    private final Metrics.Counter bytesRead;
+
+    public CountingTransport(TTransport transport, Metrics.Counter bytesRead) {
+        this.transport = transport;
+        this.bytesRead = bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        transport.open();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        int n = transport.read(buf, off, len);
+        if (n > 0) {
+            bytesRead.add(n);
+        }
+        return n;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        transport.write(buf, off, len);
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+        transport.flush();
+    }
+}
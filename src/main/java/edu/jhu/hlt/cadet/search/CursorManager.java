@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import edu.jhu.hlt.concrete.search.SearchQuery;
+
+/**
+ * Keeps index snapshots open so pages of results can be pulled with cursors.
+ *
+ * A client asks for cursor paging by adding the label "cursor" to its query. When more
+ * results may follow, the query echoed in the result has a label "cursor:..." that the
+ * client puts on its next query in place of the "cursor" label. Every page is read from the
+ * snapshot of the first page so results do not shift as the index changes.
+ *
+ * This plays the role of Lucene's SearcherLifetimeManager for a snapshot across all shards.
+ * Snapshots unused for longer than the maximum age are released by {@link #prune()}.
+ */
+public class CursorManager implements AutoCloseable {
+    public static final String LABEL = "cursor";
+    private static final String PREFIX = LABEL + ":";
+
+    private final Map<Long, Pinned> snapshots = new ConcurrentHashMap<>();
+    private final long maxAgeNanos;
+
+    public CursorManager(long maxAgeSeconds) {
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    }
+
+    /**
+     * Keep a snapshot open for later pages. Snapshots with the same version are kept once.
+     *
+     * @return the version used to acquire the snapshot again
+     */
+    public long record(SentenceSearcher.Snapshot snapshot) {
+        long version = snapshot.getVersion();
+        Pinned pinned = snapshots.computeIfAbsent(version, v -> {
+            snapshot.incRef();
+            return new Pinned(snapshot);
+        });
+        pinned.lastUsed = System.nanoTime();
+        return version;
+    }
+
+    /**
+     * Get a recorded snapshot, which must be closed after use, or null if it has been released
+     */
+    public SentenceSearcher.Snapshot acquire(long version) {
+        Pinned pinned = snapshots.get(version);
+        if (pinned == null || !pinned.snapshot.tryIncRef()) {
+            return null;
+        }
+        pinned.lastUsed = System.nanoTime();
+        return pinned.snapshot;
+    }
+
+    /**
+     * Release snapshots that have not been used within the maximum age
+     */
+    public void prune() throws IOException {
+        long cutoff = System.nanoTime() - maxAgeNanos;
+        Iterator<Pinned> it = snapshots.values().iterator();
+        while (it.hasNext()) {
+            Pinned pinned = it.next();
+            if (pinned.lastUsed - cutoff < 0) {
+                it.remove();
+                pinned.snapshot.close();
+            }
+        }
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Pinned pinned : snapshots.values()) {
+            pinned.snapshot.close();
+        }
+        snapshots.clear();
+    }
+
+    /**
+     * Check whether a query asks for cursor paging
+     */
+    public static boolean isRequested(SearchQuery query) {
+        if (query.isSetLabels()) {
+            for (String label : query.getLabels()) {
+                if (label.equals(LABEL) || label.startsWith(PREFIX)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the cursor on a query or null if it asks for the first page
+     */
+    public static Cursor parse(SearchQuery query) {
+        if (query.isSetLabels()) {
+            for (String label : query.getLabels()) {
+                if (label.startsWith(PREFIX)) {
+                    return Cursor.parse(label);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy a query replacing its cursor labels with the cursor for the next page, if any
+     */
+    public static SearchQuery withCursor(SearchQuery query, Cursor next) {
+        SearchQuery copy = query.deepCopy();
+        if (copy.isSetLabels()) {
+            copy.getLabels().removeIf(label -> label.equals(LABEL) || label.startsWith(PREFIX));
+        }
+        if (next != null) {
+            copy.addToLabels(next.toString());
+        }
+        return copy;
+    }
+
+    /**
+     * Position after the last hit of a page in a snapshot
+     */
+    public static class Cursor {
+        public final long version;
+        public final ScoreDoc after;
+
+        public Cursor(long version, ScoreDoc after) {
+            this.version = version;
+            this.after = after;
+        }
+
+        static Cursor parse(String label) {
+            String[] parts = label.substring(PREFIX.length()).split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Malformed cursor: " + label);
+            }
+            try {
+                float score = Float.intBitsToFloat(Integer.parseUnsignedInt(parts[2], 16));
+                return new Cursor(Long.parseLong(parts[0], 16), new ScoreDoc(Integer.parseInt(parts[1], 16), score));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed cursor: " + label);
+            }
+        }
+
+        /**
+         * The score is written as its bits so the position is exact
+         */
+        @Override
+        public String toString() {
+            return PREFIX + Long.toHexString(version) + ":" + Integer.toHexString(after.doc) + ":"
+                            + Integer.toHexString(Float.floatToIntBits(after.score));
+        }
+    }
+
+    private static class Pinned {
+        private final SentenceSearcher.Snapshot snapshot;
+        private volatile long lastUsed;
+
+        Pinned(SentenceSearcher.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+}
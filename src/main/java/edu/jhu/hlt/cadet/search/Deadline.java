@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.util.Counter;
+
+/**
+ * Time budget of a search, shared by all the shards it runs on.
+ *
+ * Collection stops once the budget is spent and the hits collected so far are kept.
+ * The clock is Lucene's global timer thread, which ticks every 20 milliseconds.
+ */
+public class Deadline {
+    private final Counter clock = TimeLimitingCollector.getGlobalCounter();
+    private final long budgetMillis;
+    private final long start;
+    private volatile boolean exceeded = false;
+
+    public Deadline(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+        this.start = clock.get();
+    }
+
+    /**
+     * Run the query on the searcher until the deadline passes
+     */
+    void search(IndexSearcher searcher, Query query, Collector collector) throws IOException {
+        TimeLimitingCollector limited = new TimeLimitingCollector(collector, clock, budgetMillis);
+        limited.setBaseline(start);
+        try {
+            searcher.search(query, limited);
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            exceeded = true;
+        }
+    }
+
+    /**
+     * Whether a search stopped early so its hits may be incomplete
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+}
@@ -5,20 +5,23 @@
  */
 package edu.jhu.hlt.cadet.search;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.jhu.hlt.concrete.Communication;
-import edu.jhu.hlt.concrete.lucene.LuceneCommunicationIndexer;
-import edu.jhu.hlt.concrete.lucene.NaiveConcreteLuceneIndexer;
-import edu.jhu.hlt.concrete.lucene.pretokenized.TokenizedCommunicationIndexer;
 import edu.jhu.hlt.concrete.serialization.CommunicationSerializer;
 import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
 import edu.jhu.hlt.concrete.util.ConcreteException;
@@ -26,6 +29,8 @@ import edu.jhu.hlt.concrete.zip.ConcreteZipIO;
 
 public class DirectIndexer implements Indexer {
     private static Logger logger = LoggerFactory.getLogger(DirectIndexer.class);
+    private static final Metrics.Counter bytesRead = Metrics.global().counter("cadet_ingest_bytes_total",
+                    "Bytes of serialized communications read by direct ingest");
 
     private final String path;
 
@@ -35,24 +40,31 @@ public class DirectIndexer implements Indexer {
 
     @Override
     public void index(Config config) throws IOException, TException {
-        LuceneCommunicationIndexer indexer = null;
-        if (config.useLuceneTokenizer) {
-            indexer = new NaiveConcreteLuceneIndexer(config.indexDir);
-        } else {
-            indexer = new TokenizedCommunicationIndexer(config.indexDir);
+        if (config.useMemoryMapping) {
+            indexMapped(config);
+            return;
+        }
+        if (config.indexThreads > 1) {
+            indexParallel(config);
+            return;
         }
 
+        SentenceIndexer indexer = SentenceIndexer.open(config);
+
         logger.info("Starting ingest from filesystem");
+        long start = System.nanoTime();
+        long count;
         if (path.endsWith(".zip")) {
-            processZipFile(indexer, path, config.batchSize);
+            count = processZipFile(indexer, path, config.batchSize);
         } else {
-            processDirectory(indexer, path, config.batchSize);
+            count = processDirectory(indexer, path, config.batchSize);
         }
 
         indexer.close();
+        logRate(count, start);
     }
 
-    private void processZipFile(LuceneCommunicationIndexer indexer, String path, int batchSize) throws IOException {
+    private long processZipFile(SentenceIndexer indexer, String path, int batchSize) throws IOException {
         int counter = 0;
         Iterable<Communication> comms = ConcreteZipIO.read(this.path);
         for (Communication c : comms) {
@@ -63,13 +75,15 @@ public class DirectIndexer implements Indexer {
             }
         }
         logger.info("" + counter + " Processed.");
+        return counter;
     }
 
-    private void processDirectory(LuceneCommunicationIndexer indexer, String path, int batchSize) throws IOException {
+    private long processDirectory(SentenceIndexer indexer, String path, int batchSize) throws IOException {
         CommunicationSerializer serializer = new CompactCommunicationSerializer();
         int counter = 0;
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(path))) {
             for (Path entry : stream) {
+                bytesRead.add(Files.size(entry));
                 Communication comm = serializer.fromPath(entry);
                 indexer.add(comm);
                 counter++;
@@ -81,5 +95,150 @@ public class DirectIndexer implements Indexer {
         } catch (ConcreteException e) {
             throw new IOException(e);
         }
+        return counter;
+    }
+
+    /**
+     * This thread reads the files while the worker threads deserialize and
+     * analyze the communications and add them to a shared index writer.
+     */
+    private void indexParallel(Config config) throws IOException {
+        logger.info("Starting ingest from filesystem using " + config.indexThreads + " index threads");
+        long start = System.nanoTime();
+        AtomicLong counter = new AtomicLong();
+        try (SentenceIndexer indexer = SentenceIndexer.open(config)) {
+            if (path.endsWith(".zip")) {
+                WorkQueue<byte[]> queue = new WorkQueue<byte[]>("index", config.indexThreads, config.queueSize,
+                                () -> new DecodeWorker<byte[]>(indexer, counter, config.batchSize) {
+                    @Override
+                    Communication decode(byte[] bytes) throws ConcreteException {
+                        return serializer.fromBytes(bytes);
+                    }
+                });
+                readZipFile(queue);
+            } else {
+                WorkQueue<Path> queue = new WorkQueue<Path>("index", config.indexThreads, config.queueSize,
+                                () -> new DecodeWorker<Path>(indexer, counter, config.batchSize) {
+                    @Override
+                    Communication decode(Path file) throws ConcreteException {
+                        return serializer.fromPath(file);
+                    }
+                });
+                readDirectory(queue);
+            }
+        }
+        logger.info("" + counter.get() + " Processed.");
+        logRate(counter.get(), start);
+    }
+
+    /**
+     * This thread maps the files or archive entries while the worker threads
+     * decode them straight from the mapped buffers.
+     */
+    private void indexMapped(Config config) throws IOException {
+        int numThreads = Math.max(1, config.indexThreads);
+        logger.info("Starting memory mapped ingest from filesystem using " + numThreads + " index threads");
+        long start = System.nanoTime();
+        AtomicLong counter = new AtomicLong();
+        MappedCommunicationReader reader = new MappedCommunicationReader();
+        try (SentenceIndexer indexer = SentenceIndexer.open(config)) {
+            WorkQueue<ByteBuffer> queue = new WorkQueue<ByteBuffer>("index", numThreads, config.queueSize,
+                            () -> buffer -> {
+                Communication comm;
+                bytesRead.add(buffer.remaining());
+                try {
+                    comm = MappedCommunicationReader.decode(buffer);
+                } finally {
+                    reader.release(buffer);
+                }
+                indexer.add(comm);
+                long count = counter.incrementAndGet();
+                if (count % config.batchSize == 0) {
+                    logger.info("" + count + " Processed");
+                }
+            });
+            try {
+                reader.read(Paths.get(path), queue::put);
+            } catch (IOException e) {
+                queue.abort();
+                throw e;
+            }
+            queue.finish();
+        }
+        logger.info("" + counter.get() + " Processed.");
+        logRate(counter.get(), start);
+    }
+
+    private void readZipFile(WorkQueue<byte[]> queue) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(Paths.get(path)))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    byte[] bytes = readEntry(zip);
+                    bytesRead.add(bytes.length);
+                    queue.put(bytes);
+                }
+            }
+        } catch (IOException e) {
+            queue.abort();
+            throw e;
+        }
+        queue.finish();
+    }
+
+    private void readDirectory(WorkQueue<Path> queue) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(path))) {
+            for (Path entry : stream) {
+                bytesRead.add(Files.size(entry));
+                queue.put(entry);
+            }
+        } catch (IOException e) {
+            queue.abort();
+            throw e;
+        }
+        queue.finish();
+    }
+
+    private static byte[] readEntry(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void logRate(long count, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        logger.info(String.format("Indexed %d communications in %.1f seconds (%.1f docs/sec)",
+                        count, seconds, count / Math.max(seconds, 1e-9)));
+    }
+
+    /**
+     * Deserializes communications with its own serializer and adds them to the index
+     */
+    private static abstract class DecodeWorker<T> implements WorkQueue.Worker<T> {
+        protected final CommunicationSerializer serializer = new CompactCommunicationSerializer();
+        private final SentenceIndexer indexer;
+        private final AtomicLong counter;
+        private final int batchSize;
+
+        DecodeWorker(SentenceIndexer indexer, AtomicLong counter, int batchSize) {
+            this.indexer = indexer;
+            this.counter = counter;
+            this.batchSize = batchSize;
+        }
+
+        abstract Communication decode(T item) throws ConcreteException;
+
+        @Override
+        public void process(T item) throws IOException, ConcreteException {
+            indexer.add(decode(item));
+            long count = counter.incrementAndGet();
+            if (count % batchSize == 0) {
+                logger.info("" + count + " Processed");
+            }
+        }
     }
 }
@@ -15,11 +15,14 @@ import org.apache.thrift.transport.TTransportException;
 import edu.jhu.hlt.concrete.access.FetchCommunicationService;
 
 public class FetchClientFactory {
+    private static final Metrics.Counter bytesRead = Metrics.global().counter("cadet_fetch_bytes_total",
+                    "Bytes read from the fetch service");
+
     protected TTransport transport;
     protected TCompactProtocol protocol;
 
     public FetchCommunicationService.Client createClient(String host, int port) throws TTransportException {
-        transport = new TFramedTransport(new TSocket(host, port), Integer.MAX_VALUE);
+        transport = new TFramedTransport(new CountingTransport(new TSocket(host, port), bytesRead), Integer.MAX_VALUE);
         protocol = new TCompactProtocol(transport);
         transport.open();
         return new FetchCommunicationService.Client(protocol);
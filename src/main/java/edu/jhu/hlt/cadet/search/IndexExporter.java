@@ -0,0 +1,483 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+/**
+ * Exports the sentences of an index.
+ *
+ * Segments are read in parallel and deleted documents are skipped. Each segment is
+ * encoded into buffers that are written to the output in segment order, so the
+ * output is the same for any number of threads.
+ *
+ * Formats:
+ * <ul>
+ * <li>text: comm id (sentence uuid) : term1 term2 ...
+ * <li>jsonl: one JSON object per sentence with a key per field
+ * <li>binary: per sentence, each selected field as a varint length and UTF-8 bytes, with
+ * the terms as a varint count followed by each term, and with term stats its frequency
+ * in the sentence and its document frequency as varints
+ * </ul>
+ * Term stats add the frequency in the sentence and the number of sentences with the term
+ * to each term: term/freq/docfreq in text and objects in JSON. Like Lucene's own statistics,
+ * the document frequency counts deleted sentences until their segments are merged.
+ */
+public class IndexExporter {
+    private static Logger logger = LoggerFactory.getLogger(IndexExporter.class);
+
+    /**
+     * Field name that selects the terms of the sentence text
+     */
+    public static final String TERMS = "terms";
+    public static final List<String> DEFAULT_FIELDS = Arrays.asList(
+                    ConcreteLuceneConstants.COMM_ID_FIELD, ConcreteLuceneConstants.SENT_UUID_FIELD, TERMS);
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    // encoded chunks a segment can have waiting to be written
+    private static final int CHUNKS_PER_SEGMENT = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    public enum Format {
+        TEXT, JSONL, BINARY;
+
+        public static Format fromName(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private Format format = Format.TEXT;
+    private List<String> fields = DEFAULT_FIELDS;
+    private boolean termStats = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Select the stored fields to export. Use {@link #TERMS} for the terms of the text.
+     */
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public void setTermStats(boolean termStats) {
+        this.termStats = termStats;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Export every shard of an index
+     *
+     * @return number of sentences exported
+     */
+    public long export(Path indexDir, WritableByteChannel out) throws IOException {
+        List<Directory> directories = new ArrayList<>();
+        List<DirectoryReader> readers = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (Path path : Shards.paths(indexDir)) {
+                Directory directory = FSDirectory.open(path);
+                directories.add(directory);
+                readers.add(DirectoryReader.open(directory));
+            }
+            // tasks start in submission order so the segment being written is always running
+            List<Segment> segments = new ArrayList<>();
+            for (DirectoryReader reader : readers) {
+                for (LeafReaderContext leaf : reader.leaves()) {
+                    Segment segment = new Segment(leaf.reader(), readers);
+                    segment.future = executor.submit(segment::export);
+                    segments.add(segment);
+                }
+            }
+            long count = 0;
+            for (Segment segment : segments) {
+                count += segment.writeTo(out);
+            }
+            return count;
+        } finally {
+            executor.shutdownNow();
+            IOUtils.close(readers);
+            IOUtils.close(directories);
+        }
+    }
+
+    private class Segment {
+        private final LeafReader reader;
+        private final List<DirectoryReader> shards;
+        private final Set<String> storedFields = new HashSet<>(fields);
+        private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(CHUNKS_PER_SEGMENT + 1);
+        private Future<Long> future;
+        private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        Segment(LeafReader reader, List<DirectoryReader> shards) {
+            this.reader = reader;
+            this.shards = shards;
+            storedFields.remove(TERMS);
+        }
+
+        long export() throws IOException, InterruptedException {
+            long count = 0;
+            try {
+                Bits liveDocs = reader.getLiveDocs();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    Document document = storedFields.isEmpty() ? null : reader.document(doc, storedFields);
+                    Terms terms = null;
+                    if (fields.contains(TERMS)) {
+                        terms = reader.getTermVector(doc, ConcreteLuceneConstants.TEXT_FIELD);
+                    }
+                    switch (format) {
+                        case JSONL:
+                            writeJson(document, terms);
+                            break;
+                        case BINARY:
+                            writeBinary(document, terms);
+                            break;
+                        default:
+                            writeText(document, terms);
+                    }
+                    count++;
+                }
+                if (chunk.position() > 0) {
+                    flush();
+                }
+            } finally {
+                chunks.put(END);
+            }
+            return count;
+        }
+
+        long writeTo(WritableByteChannel out) throws IOException {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = chunks.take()) != END) {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while exporting");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private void writeText(Document document, Terms terms) throws IOException, InterruptedException {
+            String separator = "";
+            for (String field : fields) {
+                if (field.equals(TERMS)) {
+                    write(separator.isEmpty() ? "" : " : ");
+                    if (terms == null) {
+                        write("NO_TERMS");
+                    } else {
+                        TermsEnum it = terms.iterator();
+                        BytesRef term;
+                        String termSeparator = "";
+                        while ((term = it.next()) != null) {
+                            write(termSeparator);
+                            write(term);
+                            if (termStats) {
+                                write("/" + it.totalTermFreq() + "/" + docFreq(term));
+                            }
+                            termSeparator = " ";
+                        }
+                    }
+                } else if (field.equals(ConcreteLuceneConstants.SENT_UUID_FIELD) && !separator.isEmpty()) {
+                    write(" (" + value(document, field) + ")");
+                } else {
+                    write(separator + value(document, field));
+                }
+                separator = " ";
+            }
+            write("\n");
+        }
+
+        private void writeJson(Document document, Terms terms) throws IOException, InterruptedException {
+            write("{");
+            String separator = "";
+            for (String field : fields) {
+                write(separator);
+                writeJsonString(field);
+                write(":");
+                if (field.equals(TERMS)) {
+                    write("[");
+                    if (terms != null) {
+                        TermsEnum it = terms.iterator();
+                        BytesRef term;
+                        String termSeparator = "";
+                        while ((term = it.next()) != null) {
+                            write(termSeparator);
+                            if (termStats) {
+                                write("{\"term\":");
+                                writeJsonString(term.utf8ToString());
+                                write(",\"freq\":" + it.totalTermFreq() + ",\"docFreq\":" + docFreq(term) + "}");
+                            } else {
+                                writeJsonString(term.utf8ToString());
+                            }
+                            termSeparator = ",";
+                        }
+                    }
+                    write("]");
+                } else {
+                    String value = document.get(field);
+                    if (value == null) {
+                        write("null");
+                    } else {
+                        writeJsonString(value);
+                    }
+                }
+                separator = ",";
+            }
+            write("}\n");
+        }
+
+        private void writeBinary(Document document, Terms terms) throws IOException, InterruptedException {
+            for (String field : fields) {
+                if (field.equals(TERMS)) {
+                    if (terms == null) {
+                        writeVInt(0);
+                        continue;
+                    }
+                    writeVInt((int) terms.size());
+                    TermsEnum it = terms.iterator();
+                    BytesRef term;
+                    while ((term = it.next()) != null) {
+                        writeVInt(term.length);
+                        write(term);
+                        if (termStats) {
+                            writeVInt((int) it.totalTermFreq());
+                            writeVInt(docFreq(term));
+                        }
+                    }
+                } else {
+                    byte[] bytes = value(document, field).getBytes(StandardCharsets.UTF_8);
+                    writeVInt(bytes.length);
+                    write(bytes, 0, bytes.length);
+                }
+            }
+        }
+
+        private String value(Document document, String field) {
+            String value = document.get(field);
+            return value == null ? "" : value;
+        }
+
+        /**
+         * Number of sentences with the term across all shards
+         */
+        private int docFreq(BytesRef term) throws IOException {
+            Term t = new Term(ConcreteLuceneConstants.TEXT_FIELD, term);
+            int docFreq = 0;
+            for (DirectoryReader shard : shards) {
+                docFreq += shard.docFreq(t);
+            }
+            return docFreq;
+        }
+
+        private void writeJsonString(String s) throws IOException, InterruptedException {
+            StringBuilder sb = new StringBuilder(s.length() + 2);
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+            write(sb.toString());
+        }
+
+        private void write(String s) throws InterruptedException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+
+        private void write(BytesRef bytes) throws InterruptedException {
+            write(bytes.bytes, bytes.offset, bytes.length);
+        }
+
+        private void writeVInt(int i) throws InterruptedException {
+            while ((i & ~0x7F) != 0) {
+                writeByte((byte) ((i & 0x7F) | 0x80));
+                i >>>= 7;
+            }
+            writeByte((byte) i);
+        }
+
+        private void writeByte(byte b) throws InterruptedException {
+            if (!chunk.hasRemaining()) {
+                flush();
+            }
+            chunk.put(b);
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws InterruptedException {
+            while (length > 0) {
+                if (!chunk.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(length, chunk.remaining());
+                chunk.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            chunk.flip();
+            chunks.put(chunk);
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+    }
+
+    private static class Opts {
+        @Parameter(description = "index directory")
+        List<String> indexDir = new ArrayList<>();
+
+        @Parameter(names = {"--output", "-o"}, description = "File to write to. (default is stdout)")
+        String output;
+
+        @Parameter(names = {"--format"}, description = "Output format: text, jsonl or binary.")
+        String format = "text";
+
+        @Parameter(names = {"--fields"},
+                        description = "Comma separated stored fields to export. Use terms for the terms of the text.")
+        List<String> fields = new ArrayList<>(DEFAULT_FIELDS);
+
+        @Parameter(names = {"--term-stats"}, description = "Add the frequency and document frequency of each term.")
+        boolean termStats = false;
+
+        @Parameter(names = {"--threads"}, description = "Number of segments to read in parallel.")
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--help", "-h"}, help = true, description = "Print the usage information and exit.")
+        boolean help;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Opts opts = new Opts();
+        JCommander jc = null;
+        try {
+            jc = new JCommander(opts, args);
+        } catch (ParameterException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(-1);
+        }
+        jc.setProgramName("./dump.sh");
+        if (opts.help || opts.indexDir.size() != 1) {
+            jc.usage();
+            System.exit(opts.help ? 0 : -1);
+        }
+
+        Path p = Paths.get(opts.indexDir.get(0));
+        if (!Files.exists(p) || !Files.isDirectory(p)) {
+            throw new IOException("Index directory does not exist: " + p);
+        }
+        // the generation being served when the index is rebuilt side by side
+        p = new IndexGenerations(p).current();
+
+        IndexExporter exporter = new IndexExporter();
+        try {
+            exporter.setFormat(Format.fromName(opts.format));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown format: " + opts.format);
+            System.exit(-1);
+        }
+        exporter.setFields(opts.fields);
+        exporter.setTermStats(opts.termStats);
+        exporter.setThreads(opts.threads);
+
+        long start = System.nanoTime();
+        long count;
+        if (opts.output == null) {
+            try (WritableByteChannel out = Channels.newChannel(new FileOutputStream(FileDescriptor.out))) {
+                count = exporter.export(p, out);
+            }
+        } else {
+            try (FileChannel out = FileChannel.open(Paths.get(opts.output), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                count = exporter.export(p, out);
+            }
+        }
+        logger.info("Exported " + count + " sentences in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
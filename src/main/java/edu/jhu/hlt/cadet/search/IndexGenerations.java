@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generations of an index kept side by side so a new index can be built while the current one is served.
+ *
+ * Generations are directories named gen-1, gen-2, ... in the index directory. The file GENERATIONS
+ * lists the served generation first followed by the ones it replaced, newest first. The file is
+ * replaced atomically to switch generations and a running search service picks up the change.
+ * Without the file, the index stored directly in the index directory is served.
+ */
+public class IndexGenerations {
+    private static Logger logger = LoggerFactory.getLogger(IndexGenerations.class);
+
+    static final String LIST_FILE = "GENERATIONS";
+    // the served generation and the one to roll back to
+    static final int MIN_KEEP = 2;
+    private static final String PREFIX = "gen-";
+    // entry for an index stored directly in the index directory
+    private static final String ROOT = ".";
+
+    private final Path indexDir;
+
+    public IndexGenerations(Path indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Get the directory of the generation to serve
+     */
+    public Path current() throws IOException {
+        List<String> generations = read();
+        return generations.isEmpty() ? indexDir : resolve(generations.get(0));
+    }
+
+    /**
+     * Create an empty directory for a new generation
+     */
+    public synchronized Path create() throws IOException {
+        int latest = 0;
+        if (Files.isDirectory(indexDir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(indexDir, PREFIX + "*")) {
+                for (Path entry : entries) {
+                    try {
+                        latest = Math.max(latest, Integer.parseInt(entry.getFileName().toString().substring(PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a generation
+                    }
+                }
+            }
+        }
+        Path generation = indexDir.resolve(PREFIX + (latest + 1));
+        Files.createDirectories(generation);
+        return generation;
+    }
+
+    /**
+     * Serve a generation. The generations it replaces are kept for rollback up to a total
+     * of keep generations and older ones are deleted.
+     *
+     * @throws IllegalArgumentException  if keep is less than 2
+     */
+    public synchronized void publish(Path generation, int keep) throws IOException {
+        checkKeep(keep);
+        List<String> generations = read();
+        if (generations.isEmpty() && hasIndex(indexDir)) {
+            // the index served before generations were used
+            generations.add(ROOT);
+        }
+        generations.add(0, generation.getFileName().toString());
+        List<String> removed = new ArrayList<>();
+        while (generations.size() > keep) {
+            removed.add(generations.remove(generations.size() - 1));
+        }
+        write(generations);
+        logger.info("Published index generation " + generation);
+        for (String name : removed) {
+            if (!name.equals(ROOT)) {
+                logger.info("Deleting index generation " + name);
+                IOUtils.rm(resolve(name));
+            }
+        }
+    }
+
+    /**
+     * Serve the generation before the current one. The current generation becomes the one
+     * it replaced, so it is deleted with the other old generations and rolling back again
+     * returns to it.
+     *
+     * @return the directory of the generation now served
+     */
+    public synchronized Path rollback() throws IOException {
+        List<String> generations = read();
+        if (generations.size() < 2) {
+            throw new IOException("There is no earlier index generation to roll back to");
+        }
+        String dropped = generations.remove(0);
+        generations.add(1, dropped);
+        write(generations);
+        logger.info("Rolled back from index generation " + dropped + " to " + generations.get(0));
+        return resolve(generations.get(0));
+    }
+
+    /**
+     * Check that a number of generations to keep leaves one to roll back to
+     */
+    static void checkKeep(int keep) {
+        if (keep < MIN_KEEP) {
+            throw new IllegalArgumentException("At least " + MIN_KEEP + " index generations must be kept but got " + keep);
+        }
+    }
+
+    private Path resolve(String name) {
+        return name.equals(ROOT) ? indexDir : indexDir.resolve(name);
+    }
+
+    private static boolean hasIndex(Path dir) throws IOException {
+        if (Shards.count(dir) > 0) {
+            return true;
+        }
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        try (Directory directory = FSDirectory.open(dir)) {
+            return DirectoryReader.indexExists(directory);
+        }
+    }
+
+    private List<String> read() throws IOException {
+        Path file = indexDir.resolve(LIST_FILE);
+        List<String> generations = new ArrayList<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    generations.add(line.trim());
+                }
+            }
+        }
+        return generations;
+    }
+
+    private void write(List<String> generations) throws IOException {
+        Path tmp = indexDir.resolve(LIST_FILE + ".tmp");
+        Files.write(tmp, generations, StandardCharsets.UTF_8);
+        Files.move(tmp, indexDir.resolve(LIST_FILE), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+    }
+}
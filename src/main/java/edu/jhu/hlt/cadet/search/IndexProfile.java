@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Directory and index writer settings.
+ *
+ * The throughput profile suits large builds: a big RAM buffer, fewer merges during
+ * ingest and no compound files. Set forceMergeSegments to merge the index down once
+ * ingest finishes so the served index has few segments.
+ */
+public class IndexProfile {
+    public enum DirectoryType {
+        // let Lucene pick, which is memory mapping on 64 bit platforms
+        FS,
+        MMAP,
+        NIO,
+        // copy the index into the heap when opened for search. Only for small corpora.
+        RAM;
+
+        public static DirectoryType fromName(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    public DirectoryType directory = DirectoryType.FS;
+    // memory used to buffer documents before flushing a segment
+    public double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    // segments allowed per tier before a merge, higher means fewer merges while indexing
+    public double segmentsPerTier = 10;
+    public double maxMergedSegmentMB = 5 * 1024;
+    // merge threads per writer, 0 lets Lucene decide
+    public int mergeThreads = 0;
+    public boolean useCompoundFile = true;
+    // merge down to this many segments when the indexer closes, 0 to skip
+    public int forceMergeSegments = 0;
+
+    /**
+     * Get a profile by name: default or throughput
+     */
+    public static IndexProfile fromName(String name) {
+        switch (name) {
+            case "default":
+                return new IndexProfile();
+            case "throughput":
+                return throughput();
+            default:
+                throw new IllegalArgumentException("Unknown index profile: " + name);
+        }
+    }
+
+    public static IndexProfile throughput() {
+        IndexProfile profile = new IndexProfile();
+        profile.ramBufferMB = 256;
+        profile.segmentsPerTier = 20;
+        profile.mergeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        profile.useCompoundFile = false;
+        return profile;
+    }
+
+    public Directory openDirectory(Path path) throws IOException {
+        return openDirectory(directory, path);
+    }
+
+    public static Directory openDirectory(DirectoryType type, Path path) throws IOException {
+        switch (type) {
+            case MMAP:
+                return new MMapDirectory(path);
+            case NIO:
+                return new NIOFSDirectory(path);
+            case RAM:
+                try (FSDirectory source = FSDirectory.open(path)) {
+                    return new RAMDirectory(source, IOContext.READONCE);
+                }
+            default:
+                return FSDirectory.open(path);
+        }
+    }
+
+    public IndexWriterConfig configure(IndexWriterConfig iwc) {
+        iwc.setRAMBufferSizeMB(ramBufferMB);
+        iwc.setUseCompoundFile(useCompoundFile);
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+        mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        if (!useCompoundFile) {
+            mergePolicy.setNoCFSRatio(0.0);
+        }
+        iwc.setMergePolicy(mergePolicy);
+        if (mergeThreads > 0) {
+            ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+            // allow some merges to queue before indexing threads are stalled
+            scheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+            iwc.setMergeScheduler(scheduler);
+        }
+        return iwc;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("directory=%s ramBufferMB=%.1f segmentsPerTier=%.1f mergeThreads=%d compound=%s forceMerge=%d",
+                        directory, ramBufferMB, segmentsPerTier, mergeThreads, useCompoundFile, forceMergeSegments);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a copy of an index served by a {@link ReplicationServer}.
+ *
+ * Each sync copies the files of the latest revision that the replica does not already have,
+ * which after the first sync are the segments written since the previous one. The commit file
+ * of each shard is installed last so a searcher opened on the replica only sees complete commits.
+ * Files of earlier revisions are then deleted. Searchers keep reading the files they have open.
+ *
+ * A revision of another index, such as a new generation of the primary, would reuse file names
+ * of the replica's index with other contents. It is copied into a new generation of the replica
+ * instead, which is published once complete so a running search service switches to it.
+ */
+public class IndexReplica {
+    private static Logger logger = LoggerFactory.getLogger(IndexReplica.class);
+
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the served generation and the one it replaced, which searches may still be using
+    private static final int KEEP_GENERATIONS = 2;
+    private static final Metrics.Counter filesCopied = Metrics.global().counter("cadet_replica_files_copied_total",
+                    "Index files copied from the primary");
+    private static final Metrics.Counter bytesCopied = Metrics.global().counter("cadet_replica_bytes_copied_total",
+                    "Bytes of index files copied from the primary");
+
+    private final IndexGenerations generations;
+    private final String baseUrl;
+    private String revision;
+
+    public IndexReplica(Path indexDir, String host, int port) {
+        this.generations = new IndexGenerations(indexDir);
+        this.baseUrl = "http://" + host + ":" + port;
+    }
+
+    /**
+     * Create a replica of the primary at host:port
+     */
+    public static IndexReplica parse(Path indexDir, String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("Expected host:port but got " + address);
+        }
+        return new IndexReplica(indexDir, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Copy the latest revision of the primary if it has changed
+     *
+     * @return number of files copied, 0 if the replica is up to date
+     */
+    public synchronized int sync() throws IOException {
+        List<String> lines = readRevision();
+        String latest = lines.get(0);
+        if (latest.equals(revision)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        Map<String, List<ReplicationServer.FileInfo>> byDirectory = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            ReplicationServer.FileInfo file = ReplicationServer.FileInfo.parse(line);
+            byDirectory.computeIfAbsent(file.directory(), d -> new ArrayList<>()).add(file);
+        }
+
+        Path target = generations.current();
+        boolean newGeneration = isOtherIndex(target, byDirectory);
+        if (newGeneration) {
+            target = generations.create();
+            logger.info("Copying index revision " + latest + " of another index to " + target);
+        }
+        Map<String, Directory> directories = new LinkedHashMap<>();
+        int copied = 0;
+        try {
+            for (String name : byDirectory.keySet()) {
+                Path path = name.isEmpty() ? target : target.resolve(name);
+                Files.createDirectories(path);
+                directories.put(name, FSDirectory.open(path));
+            }
+            List<ReplicationServer.FileInfo> commits = new ArrayList<>();
+            for (Map.Entry<String, List<ReplicationServer.FileInfo>> entry : byDirectory.entrySet()) {
+                Directory directory = directories.get(entry.getKey());
+                List<String> names = new ArrayList<>();
+                for (ReplicationServer.FileInfo file : entry.getValue()) {
+                    if (file.name().startsWith(IndexFileNames.SEGMENTS)) {
+                        commits.add(file);
+                    } else if (!isCurrent(directory, file)) {
+                        copy(latest, file, directory, file.name());
+                        names.add(file.name());
+                    }
+                }
+                directory.sync(names);
+                copied += names.size();
+            }
+            for (ReplicationServer.FileInfo file : commits) {
+                Directory directory = directories.get(file.directory());
+                if (!isCurrent(directory, file)) {
+                    String pending = IndexFileNames.PENDING_SEGMENTS
+                                    + file.name().substring(IndexFileNames.SEGMENTS.length());
+                    if (Arrays.asList(directory.listAll()).contains(pending)) {
+                        // left by a sync that failed
+                        directory.deleteFile(pending);
+                    }
+                    copy(latest, file, directory, pending);
+                    directory.sync(Arrays.asList(pending));
+                    directory.rename(pending, file.name());
+                    directory.syncMetaData();
+                    copied++;
+                }
+            }
+            for (Map.Entry<String, List<ReplicationServer.FileInfo>> entry : byDirectory.entrySet()) {
+                deleteOthers(directories.get(entry.getKey()), entry.getValue());
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(directories.values());
+            if (newGeneration) {
+                // never published so nothing else would delete it
+                try {
+                    IOUtils.rm(target);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        IOUtils.close(directories.values());
+        if (newGeneration) {
+            generations.publish(target, KEEP_GENERATIONS);
+        }
+        revision = latest;
+        filesCopied.add(copied);
+        logger.info("Replicated index revision " + latest + " copying " + copied + " files in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return copied;
+    }
+
+    public synchronized String getRevision() {
+        return revision;
+    }
+
+    private List<String> readRevision() throws IOException {
+        HttpURLConnection connection = connect(ReplicationServer.REVISION_PATH);
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("Empty revision from " + baseUrl);
+        }
+        return lines;
+    }
+
+    /**
+     * Check whether a revision belongs to another index than the one in a directory of the replica.
+     * It does if it has a file of the replica's latest commit with other contents or an older commit.
+     * Files outside that commit may be partial copies from a failed sync and are not compared.
+     */
+    private static boolean isOtherIndex(Path dir, Map<String, List<ReplicationServer.FileInfo>> byDirectory)
+                    throws IOException {
+        for (Map.Entry<String, List<ReplicationServer.FileInfo>> entry : byDirectory.entrySet()) {
+            Path path = entry.getKey().isEmpty() ? dir : dir.resolve(entry.getKey());
+            if (!Files.isDirectory(path)) {
+                continue;
+            }
+            try (Directory directory = FSDirectory.open(path)) {
+                if (!DirectoryReader.indexExists(directory)) {
+                    continue;
+                }
+                SegmentInfos commit = SegmentInfos.readLatestCommit(directory);
+                Set<String> committed = new HashSet<>(commit.files(true));
+                for (ReplicationServer.FileInfo file : entry.getValue()) {
+                    if (committed.contains(file.name()) && !matches(directory, file)) {
+                        return true;
+                    }
+                    if (file.name().startsWith(IndexFileNames.SEGMENTS)
+                                    && SegmentInfos.generationFromSegmentsFileName(file.name()) < commit.getGeneration()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the replica already has a file, deleting a copy that differs
+     */
+    private static boolean isCurrent(Directory directory, ReplicationServer.FileInfo file) throws IOException {
+        if (!Arrays.asList(directory.listAll()).contains(file.name())) {
+            return false;
+        }
+        if (matches(directory, file)) {
+            return true;
+        }
+        directory.deleteFile(file.name());
+        return false;
+    }
+
+    /**
+     * Compare a file of the replica with the primary's by the checksum in its footer
+     */
+    private static boolean matches(Directory directory, ReplicationServer.FileInfo file) {
+        try (IndexInput in = directory.openInput(file.name(), IOContext.READONCE)) {
+            return in.length() == file.length && CodecUtil.retrieveChecksum(in) == file.checksum;
+        } catch (IOException e) {
+            // a partial copy from an earlier sync
+            return false;
+        }
+    }
+
+    /**
+     * Copy a file and verify its checksum
+     */
+    private void copy(String revisionId, ReplicationServer.FileInfo file, Directory directory, String name)
+                    throws IOException {
+        HttpURLConnection connection = connect(ReplicationServer.FILE_PATH + "?revision="
+                        + URLEncoder.encode(revisionId, "UTF-8") + "&path=" + URLEncoder.encode(file.path, "UTF-8"));
+        try (InputStream in = connection.getInputStream();
+                        IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.writeBytes(buffer, 0, n);
+            }
+        }
+        try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+            if (in.length() != file.length || CodecUtil.checksumEntireFile(in) != file.checksum) {
+                throw new IOException("Copy of " + file.path + " does not match the primary");
+            }
+        } catch (IOException e) {
+            directory.deleteFile(name);
+            throw e;
+        }
+        bytesCopied.add(file.length);
+    }
+
+    /**
+     * Delete index files that are not part of the revision
+     */
+    private static void deleteOthers(Directory directory, List<ReplicationServer.FileInfo> files) {
+        Set<String> keep = new HashSet<>();
+        for (ReplicationServer.FileInfo file : files) {
+            keep.add(file.name());
+        }
+        try {
+            for (String name : directory.listAll()) {
+                boolean indexFile = IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches()
+                                || name.startsWith(IndexFileNames.SEGMENTS)
+                                || name.startsWith(IndexFileNames.PENDING_SEGMENTS);
+                if (indexFile && !keep.contains(name)) {
+                    directory.deleteFile(name);
+                }
+            }
+        } catch (IOException e) {
+            // tried again after the next sync
+            logger.warn("Unable to delete old index files", e);
+        }
+    }
+
+    private HttpURLConnection connect(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Replication request " + path + " failed with status " + status);
+        }
+        return connection;
+    }
+}
@@ -17,5 +17,35 @@ public interface Indexer {
         public boolean useLuceneTokenizer;
         public int batchSize;
         public Path indexDir;
+        // number of connections to the fetch service
+        public int fetchThreads = 1;
+        // number of threads adding documents to the index
+        public int indexThreads = 1;
+        // maximum number of communications waiting to be indexed
+        public int queueSize = 1000;
+        // directory, buffer and merge settings of the index writers
+        public IndexProfile profile = new IndexProfile();
+        // store ids as doc values for faster result building
+        public boolean useDocValues = false;
+        // read direct ingest files through memory mapping
+        public boolean useMemoryMapping = false;
+        // number of shards for a new index
+        public int shards = 1;
+        // do not rewrite communications whose sentences are already indexed unchanged
+        public boolean skipUnchanged = false;
+        // continue an ingest from the checkpoint in the index
+        public boolean resume = false;
+        // pages of ids between commits with an ingest checkpoint, 0 to only checkpoint at the end
+        public int checkpointBatches = 20;
+        // times a fetch request is retried after a connection error
+        public int fetchRetries = 3;
+        // wait before the first retry, doubled for each later one
+        public long retryBackoffMillis = 1000;
+        // add to this open indexer, such as one shared with the search service, instead of opening indexDir
+        public SentenceIndexer indexer;
+
+        public boolean isPipelined() {
+            return fetchThreads > 1 || indexThreads > 1;
+        }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of an ingest from a fetch service, saved in the user data of index commits.
+ *
+ * Every communication before the offset was in the index when the checkpoint was committed,
+ * so an ingest can resume at the offset. Each shard commits separately and the earliest
+ * checkpoint of the shards is used. Communications indexed again replace their earlier
+ * copies, so resuming does not duplicate documents.
+ */
+public class IngestCheckpoint {
+    static final String OFFSET_KEY = "cadet.ingest.offset";
+    static final String TOTAL_KEY = "cadet.ingest.total";
+    static final String TIME_KEY = "cadet.ingest.time";
+
+    // number of communication ids completed
+    public final long offset;
+    // number of communications in the fetch service when the ingest started
+    public final long total;
+
+    public IngestCheckpoint(long offset, long total) {
+        this.offset = offset;
+        this.total = total;
+    }
+
+    /**
+     * Commit the index with this checkpoint
+     */
+    public void save(SentenceIndexer indexer) throws IOException {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(OFFSET_KEY, Long.toString(offset));
+        userData.put(TOTAL_KEY, Long.toString(total));
+        userData.put(TIME_KEY, Long.toString(System.currentTimeMillis()));
+        indexer.commit(userData);
+    }
+
+    /**
+     * Get the earliest checkpoint of the shards or null if a shard has none
+     */
+    public static IngestCheckpoint read(SentenceIndexer indexer) {
+        IngestCheckpoint earliest = null;
+        for (Map<String, String> userData : indexer.getCommitData()) {
+            if (!userData.containsKey(OFFSET_KEY)) {
+                return null;
+            }
+            IngestCheckpoint checkpoint = new IngestCheckpoint(Long.parseLong(userData.get(OFFSET_KEY)),
+                            Long.parseLong(userData.getOrDefault(TOTAL_KEY, "0")));
+            if (earliest == null || checkpoint.offset < earliest.offset) {
+                earliest = checkpoint;
+            }
+        }
+        return earliest;
+    }
+
+    @Override
+    public String toString() {
+        return offset + "/" + total;
+    }
+}
@@ -10,17 +10,24 @@ package edu.jhu.hlt.cadet.search;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.TokenRefSequence;
 import edu.jhu.hlt.concrete.UUID;
 import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
-import edu.jhu.hlt.concrete.lucene.LuceneCommunicationSearcher;
 import edu.jhu.hlt.concrete.search.SearchService;
 import edu.jhu.hlt.concrete.search.SearchCapability;
 import edu.jhu.hlt.concrete.search.SearchQuery;
@@ -36,51 +43,282 @@ public class LuceneSearchHandler implements SearchService.Iface, AutoCloseable {
 
     private final AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator uuidGen;
 
+    private final String corpus;
     private final String languageCode;
-    private final LuceneCommunicationSearcher searcher;
-    private static final int MAX_RESULTS = 500;
+    private static final Metrics.Timer searchTimer = Metrics.global().timer("cadet_search_seconds",
+                    "Time to handle a search request");
+    private static final Metrics.Timer parseTimer = Metrics.global().timer("cadet_search_parse_seconds",
+                    "Time to parse a query");
+    private static final Metrics.Timer luceneTimer = Metrics.global().timer("cadet_search_lucene_seconds",
+                    "Time to find the top hits");
+    private static final Metrics.Timer materializeTimer = Metrics.global().timer("cadet_search_materialize_seconds",
+                    "Time to build result items from hits");
+    private static final Metrics.Counter errors = Metrics.global().counter("cadet_search_errors_total",
+                    "Search requests that failed");
+    private static final Metrics.Counter partialResults = Metrics.global().counter("cadet_search_partial_total",
+                    "Searches stopped by the time budget with partial results");
+    private static final Metrics.Counter rejected = Metrics.global().counter("cadet_search_rejected_total",
+                    "Search requests rejected because too many were waiting");
+    private static final Metrics.Timer batchTimer = Metrics.global().timer("cadet_search_batch_seconds",
+                    "Time to handle a batch of searches");
 
-    public LuceneSearchHandler(String languageCode, LuceneCommunicationSearcher searcher) {
+    /**
+     * Label added to the query of a result that is missing hits, such as when the time budget ran out
+     */
+    public static final String PARTIAL_LABEL = "partial";
+
+    // replaced when the service switches to another index
+    private volatile SentenceSearcher searcher;
+    private final SearchResultCache cache;
+    private CursorManager cursors;
+    private ExecutorService batchExecutor;
+    private int snippetLength = Snippets.DEFAULT_MAX_LENGTH;
+    private long timeBudgetMillis = 0;
+    // admission control, null for no limit
+    private Semaphore running;
+    private int maxQueued;
+    private final AtomicInteger queued = new AtomicInteger();
+    // number of results when the query does not set k
+    private static final int DEFAULT_RESULTS = 500;
+    // larger result sets must be paged
+    private static final int MAX_RESULTS = 10000;
+
+    public LuceneSearchHandler(String languageCode, SentenceSearcher searcher) {
+        this(languageCode, searcher, null);
+    }
+
+    /**
+     * @param cache  cache for first pages of results or null to disable caching
+     */
+    public LuceneSearchHandler(String languageCode, SentenceSearcher searcher, SearchResultCache cache) {
+        this(null, languageCode, searcher, cache);
+    }
+
+    /**
+     * @param corpus  name reported by getCorpora or null if the corpus is not named
+     * @param cache   cache for first pages of results, which may be shared with other corpora, or null
+     */
+    public LuceneSearchHandler(String corpus, String languageCode, SentenceSearcher searcher, SearchResultCache cache) {
+        this.corpus = corpus;
         this.searcher = searcher;
+        this.cache = cache;
         this.languageCode = languageCode;
         AnalyticUUIDGeneratorFactory f = new AnalyticUUIDGeneratorFactory();
         this.uuidGen = f.create();
     }
 
+    /**
+     * Enable paging with cursors. Queries without the cursor label are unaffected.
+     */
+    public void setCursorManager(CursorManager cursors) {
+        this.cursors = cursors;
+    }
+
+    /**
+     * Run the queries of a batch on these threads. Without an executor they run one after another.
+     */
+    public void setBatchExecutor(ExecutorService batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Characters of sentence text in which matches are returned for queries asking for snippets
+     */
+    public void setSnippetLength(int snippetLength) {
+        this.snippetLength = snippetLength;
+    }
+
+    /**
+     * Stop collecting hits for a query after this long and return those found so far.
+     * The query echoed in such a result has the label {@link #PARTIAL_LABEL}.
+     *
+     * @param timeBudgetMillis  time for finding the hits of a query, 0 for no limit
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Limit the searches run at once. Further requests wait their turn, and once maxQueued
+     * requests are waiting new ones are rejected with a ServicesException.
+     * A batch counts as one request.
+     */
+    public void setConcurrencyLimit(int maxConcurrent, int maxQueued) {
+        this.running = new Semaphore(maxConcurrent, true);
+        this.maxQueued = maxQueued;
+    }
+
     @Override
     public SearchResult search(SearchQuery query) throws ServicesException, TException {
+        return search(query, null);
+    }
+
+    /**
+     * Run several queries against one snapshot of the index.
+     *
+     * Results are in the order of the queries and share one metadata object.
+     * Cursor labels are ignored. If any query fails, the batch fails.
+     */
+    public List<SearchResult> searchBatch(List<SearchQuery> queries) throws ServicesException, TException {
+        if (searcher == null) {
+            throw new ServicesException("Unable to query lucene index");
+        }
+        long start = System.nanoTime();
+        admit();
+        AnnotationMetadata metadata = createMetadata();
+        List<SearchResult> results = new ArrayList<>(queries.size());
+        try (SentenceSearcher.Snapshot snapshot = acquireLatest()) {
+            if (batchExecutor == null) {
+                for (SearchQuery query : queries) {
+                    results.add(search(snapshot, query, createResultsContainer(query, metadata)));
+                }
+            } else {
+                List<Future<SearchResult>> futures = new ArrayList<>(queries.size());
+                for (SearchQuery query : queries) {
+                    // uuids are generated on this thread
+                    SearchResult container = createResultsContainer(query, metadata);
+                    futures.add(batchExecutor.submit(() -> search(snapshot, query, container)));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    results.add(get(futures, i));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not read the lucene index for search");
+            throw new ServicesException(e.getMessage());
+        } catch (ServicesException e) {
+            errors.inc();
+            throw e;
+        } finally {
+            release();
+            batchTimer.recordSince(start);
+        }
+        logger.info("Returning results for a batch of " + queries.size() + " queries");
+        return results;
+    }
+
+    private SearchResult search(SentenceSearcher.Snapshot snapshot, SearchQuery query, SearchResult results)
+                    throws IOException, ServicesException {
+        results.setSearchResultItems(new ArrayList<SearchResultItem>());
+        if (!query.getRawQuery().trim().equals("")) {
+            search(snapshot, query, getResultCount(query), null, true, results);
+        }
+        return results;
+    }
+
+    /**
+     * Wait for a query of a batch. The remaining queries are cancelled if it failed.
+     */
+    private static SearchResult get(List<Future<SearchResult>> futures, int i) throws ServicesException, IOException {
+        try {
+            return futures.get(i).get();
+        } catch (InterruptedException | ExecutionException e) {
+            for (Future<SearchResult> future : futures) {
+                future.cancel(true);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new ServicesException("Interrupted while searching a batch");
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof ServicesException) {
+                throw (ServicesException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new ServicesException("Query " + i + " of the batch failed: " + cause);
+        }
+    }
+
+    /**
+     * Search for the page of results that follows a hit from a previous page
+     *
+     * @param query  the search query with k as the page size
+     * @param after  last hit of the previous page or null for the first page
+     */
+    public SearchResult search(SearchQuery query, ScoreDoc after) throws ServicesException, TException {
+        long start = System.nanoTime();
+        admit();
+        try {
+            return doSearch(query, after);
+        } catch (ServicesException e) {
+            errors.inc();
+            throw e;
+        } finally {
+            release();
+            searchTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Wait for a turn to search or reject the request when the queue is full
+     */
+    private void admit() throws ServicesException {
+        if (running == null || running.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.inc();
+            throw new ServicesException("Search service is overloaded with " + maxQueued
+                            + " requests waiting. Try again later.");
+        }
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServicesException("Interrupted while waiting to search");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private void release() {
+        if (running != null) {
+            running.release();
+        }
+    }
+
+    private SearchResult doSearch(SearchQuery query, ScoreDoc after) throws ServicesException, TException {
         if (searcher == null) {
             throw new ServicesException("Unable to query lucene index");
         }
 
         SearchResult results = createResultsContainer(query);
+        // the UI cannot handle a null list
+        results.setSearchResultItems(new ArrayList<SearchResultItem>());
 
         if (query.getRawQuery().trim().equals("")) {
             logger.info("Short circuiting an empty query");
-            results.setSearchResultItems(new ArrayList<SearchResultItem>());
             return results;
         }
 
         logger.info("Search query: " + query.getRawQuery());
 
-        try {
-            List<Document> docs = null;
+        int k = getResultCount(query);
+        boolean paged = cursors != null && CursorManager.isRequested(query);
+        CursorManager.Cursor cursor = null;
+        if (paged) {
             try {
-                docs = searcher.searchDocuments(query.getRawQuery(), MAX_RESULTS);
-            } catch (ParseException e) {
-                logger.warn("Could not parse query: " + query.getRawQuery());
-                throw new ServicesException("Unable to parse query: " + query.getRawQuery());
+                cursor = CursorManager.parse(query);
+            } catch (IllegalArgumentException e) {
+                throw new ServicesException(e.getMessage());
             }
-            // the UI cannot handle a null list
-            if (docs.isEmpty()) {
-                results.setSearchResultItems(new ArrayList<SearchResultItem>());
+            if (cursor != null) {
+                after = cursor.after;
             }
-            for (Document doc : docs) {
-                SearchResultItem result = new SearchResultItem();
-                result.setCommunicationId(doc.get(ConcreteLuceneConstants.COMM_ID_FIELD));
-                result.setSentenceId(new UUID(doc.get(ConcreteLuceneConstants.SENT_UUID_FIELD)));
-                result.setScore(0);
-                results.addToSearchResultItems(result);
+        }
+        // doc ids from the search are resolved against the same snapshot
+        try (SentenceSearcher.Snapshot snapshot = acquire(cursor)) {
+            TopDocs topDocs = search(snapshot, query, k, after, !paged, results);
+            if (paged) {
+                // a full page may be followed by more results. Later hits of a partial page may be missing.
+                CursorManager.Cursor next = null;
+                if (topDocs.scoreDocs.length == k && !isPartial(results)) {
+                    next = new CursorManager.Cursor(cursors.record(snapshot), topDocs.scoreDocs[k - 1]);
+                }
+                results.setSearchQuery(CursorManager.withCursor(results.getSearchQuery(), next));
             }
         } catch (IOException e) {
             logger.warn("Could not read the lucene index for search");
@@ -92,23 +330,200 @@ public class LuceneSearchHandler implements SearchService.Iface, AutoCloseable {
         return results;
     }
 
+    /**
+     * Search a snapshot and add the result items
+     *
+     * @return the hits or null if the results were cached
+     */
+    private TopDocs search(SentenceSearcher.Snapshot snapshot, SearchQuery query, int k, ScoreDoc after,
+                    boolean cacheable, SearchResult results) throws IOException, ServicesException {
+        long version = snapshot.getVersion();
+        // results from a searcher that has been replaced are not cached
+        boolean useCache = cache != null && after == null && cacheable && snapshot.getSearcher() == searcher;
+        if (useCache) {
+            List<SearchResultItem> items = cache.get(corpus, query, k, version);
+            if (items != null) {
+                results.setSearchResultItems(items);
+                logger.info("Returning " + items.size() + " cached results");
+                return null;
+            }
+        }
+
+        long parseStart = System.nanoTime();
+        Query luceneQuery = null;
+        try {
+            luceneQuery = snapshot.getSearcher().parse(query.getRawQuery());
+        } catch (SentenceSearcher.QueryTooLargeException e) {
+            logger.warn("Rejected query: " + e.getMessage());
+            throw new ServicesException(e.getMessage());
+        } catch (ParseException e) {
+            logger.warn("Could not parse query: " + query.getRawQuery());
+            throw new ServicesException("Unable to parse query: " + query.getRawQuery());
+        } finally {
+            parseTimer.recordSince(parseStart);
+        }
+        long searchStart = System.nanoTime();
+        Deadline deadline = timeBudgetMillis > 0 ? new Deadline(timeBudgetMillis) : null;
+        TopDocs topDocs = null;
+        try {
+            if (query.getType() == SearchType.COMMUNICATIONS) {
+                // one result per communication
+                topDocs = snapshot.searchCommunications(luceneQuery, k, after, deadline);
+            } else {
+                topDocs = snapshot.search(luceneQuery, k, after, deadline);
+            }
+        } catch (SentenceSearcher.ExpansionLimitException e) {
+            logger.warn("Rejected query: " + e.getMessage());
+            throw new ServicesException(e.getMessage());
+        }
+        luceneTimer.recordSince(searchStart);
+        if (deadline != null && deadline.isExceeded()) {
+            logger.warn("Time budget ran out for query: " + query.getRawQuery());
+            partialResults.inc();
+            SearchQuery echo = results.getSearchQuery().deepCopy();
+            echo.addToLabels(PARTIAL_LABEL);
+            results.setSearchQuery(echo);
+            useCache = false;
+        }
+        long materializeStart = System.nanoTime();
+        addResultItems(snapshot, results, topDocs.scoreDocs);
+        if (Snippets.isRequested(query)) {
+            addSnippets(snapshot, luceneQuery, results, topDocs.scoreDocs);
+        }
+        materializeTimer.recordSince(materializeStart);
+
+        if (useCache) {
+            cache.put(corpus, query, k, version, results.getSearchResultItems());
+        }
+        return topDocs;
+    }
+
+    /**
+     * Get a snapshot of the current searcher, retrying if the searcher is replaced and closed meanwhile
+     */
+    private SentenceSearcher.Snapshot acquireLatest() throws IOException {
+        while (true) {
+            SentenceSearcher current = searcher;
+            SentenceSearcher.Snapshot snapshot = current.tryAcquire();
+            if (snapshot != null) {
+                return snapshot;
+            }
+            if (current == searcher) {
+                throw new IOException("Search index is closed");
+            }
+        }
+    }
+
+    SentenceSearcher getSearcher() {
+        return searcher;
+    }
+
+    /**
+     * Serve searches from another index. Searches in progress finish on the old searcher,
+     * which the caller must close. Cached results and cursors of the old index are dropped.
+     *
+     * @return the replaced searcher
+     */
+    public synchronized SentenceSearcher swapSearcher(SentenceSearcher next) throws IOException {
+        SentenceSearcher previous = searcher;
+        searcher = next;
+        if (cache != null) {
+            cache.invalidate(corpus);
+        }
+        if (cursors != null) {
+            cursors.close();
+        }
+        return previous;
+    }
+
+    private SentenceSearcher.Snapshot acquire(CursorManager.Cursor cursor) throws IOException, ServicesException {
+        if (cursor == null) {
+            return acquireLatest();
+        }
+        SentenceSearcher.Snapshot snapshot = cursors.acquire(cursor.version);
+        if (snapshot == null) {
+            throw new ServicesException("Cursor has expired. Start the search again.");
+        }
+        return snapshot;
+    }
+
+    private void addResultItems(SentenceSearcher.Snapshot snapshot, SearchResult results, ScoreDoc[] hits)
+                    throws IOException {
+        SentenceSearcher.HitIds ids = snapshot.loadIds(hits);
+        List<SearchResultItem> items = new ArrayList<>(hits.length);
+        for (int i = 0; i < hits.length; i++) {
+            SearchResultItem result = new SearchResultItem();
+            result.setCommunicationId(ids.commIds[i]);
+            result.setSentenceId(new UUID(ids.sentenceIds[i]));
+            result.setScore(hits[i].score);
+            items.add(result);
+        }
+        results.setSearchResultItems(items);
+    }
+
+    /**
+     * Set the tokens of each result item to the matching tokens of its sentence
+     */
+    private void addSnippets(SentenceSearcher.Snapshot snapshot, Query query, SearchResult results, ScoreDoc[] hits)
+                    throws IOException {
+        Snippets.Snippet[] snippets = snapshot.loadSnippets(hits, query, snippetLength);
+        for (int i = 0; i < hits.length; i++) {
+            Snippets.Snippet snippet = snippets[i];
+            // token positions only refer to a concrete tokenization when it was indexed
+            if (snippet == null || snippet.tokenizationId == null) {
+                continue;
+            }
+            TokenRefSequence tokens = new TokenRefSequence();
+            tokens.setTokenizationId(new UUID(snippet.tokenizationId));
+            tokens.setTokenIndexList(new ArrayList<Integer>(snippet.tokens.length));
+            for (int token : snippet.tokens) {
+                tokens.addToTokenIndexList(token);
+            }
+            tokens.setAnchorTokenIndex(snippet.tokens[0]);
+            results.getSearchResultItems().get(i).setTokens(tokens);
+        }
+    }
+
+    private static boolean isPartial(SearchResult results) {
+        SearchQuery query = results.getSearchQuery();
+        return query.isSetLabels() && query.getLabels().contains(PARTIAL_LABEL);
+    }
+
+    static int getResultCount(SearchQuery query) {
+        if (query.isSetK() && query.getK() > 0) {
+            return Math.min(query.getK(), MAX_RESULTS);
+        }
+        return DEFAULT_RESULTS;
+    }
+
     private SearchResult createResultsContainer(SearchQuery query) {
+        return createResultsContainer(query, createMetadata());
+    }
+
+    private SearchResult createResultsContainer(SearchQuery query, AnnotationMetadata metadata) {
         SearchResult results = new SearchResult();
         results.setUuid(uuidGen.next());
         results.setSearchQuery(query);
         if (languageCode != null) {
             results.setLang(languageCode);
         }
-        AnnotationMetadata metadata = new AnnotationMetadata();
-        metadata.setTool("Cadet Lucene Search");
         results.setMetadata(metadata);
 
         return results;
     }
 
+    private static AnnotationMetadata createMetadata() {
+        AnnotationMetadata metadata = new AnnotationMetadata();
+        metadata.setTool("Cadet Lucene Search");
+        return metadata;
+    }
+
     @Override
     public ServiceInfo about() throws TException {
         ServiceInfo info = new ServiceInfo("Cadet Lucene Search", "1.0.0");
+        if (cache != null) {
+            info.setDescription(cache.toString());
+        }
         return info;
     }
 
@@ -119,6 +534,9 @@ public class LuceneSearchHandler implements SearchService.Iface, AutoCloseable {
 
     @Override
     public void close() throws IOException {
+        if (searcher != null) {
+            searcher.close();
+        }
     }
 
     @Override
@@ -147,7 +565,9 @@ public class LuceneSearchHandler implements SearchService.Iface, AutoCloseable {
     @Override
     public List<String> getCorpora() throws ServicesException, TException {
         List<String> corpora = new ArrayList<>();
-        // TODO
+        if (corpus != null) {
+            corpora.add(corpus);
+        }
         return corpora;
     }
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.Communication;
+
+/**
+ * Reads serialized communications by memory mapping them.
+ *
+ * Supports directories of uncompressed .comm files and zip or tar archives.
+ * Each file of a directory is mapped separately. An archive is mapped in chunks of up to 2GB
+ * and each entry handed out as a slice of its chunk. Pass every buffer to {@link #release(ByteBuffer)}
+ * once it is decoded so files and chunks are unmapped as soon as they are no longer used.
+ * Compressed zip entries cannot be mapped and are inflated onto the heap instead.
+ */
+public class MappedCommunicationReader {
+    private static Logger logger = LoggerFactory.getLogger(MappedCommunicationReader.class);
+
+    private static final int ZIP_EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP_CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int ZIP_EOCD_SIZE = 22;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+    private static final int ZIP_MAX_COMMENT = 0xffff;
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_STORED = 0;
+    private static final int ZIP_DEFLATED = 8;
+    private static final int TAR_BLOCK = 512;
+
+    private static final Unmapper UNMAPPER = createUnmapper();
+
+    private final int chunkSize;
+    // chunk of each slice that has not been released
+    private final Map<ByteBuffer, Chunk> chunks = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public MappedCommunicationReader() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param chunkSize  most bytes of an archive mapped at once, unless a single entry is larger
+     */
+    MappedCommunicationReader(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Receives the buffer holding one serialized communication
+     */
+    public interface Handler {
+        void accept(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Map each communication in a zip file, tar file or directory
+     */
+    public void read(Path path, Handler handler) throws IOException {
+        String name = path.getFileName().toString();
+        if (Files.isDirectory(path)) {
+            readDirectory(path, handler);
+        } else if (name.endsWith(".zip")) {
+            readZip(path, handler);
+        } else if (name.endsWith(".tar")) {
+            readTar(path, handler);
+        } else {
+            handler.accept(map(path));
+        }
+    }
+
+    public void readDirectory(Path dir, Handler handler) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (Files.isRegularFile(entry) && Files.size(entry) > 0) {
+                    handler.accept(map(entry));
+                }
+            }
+        }
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public void readZip(Path file, Handler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                        Archive archive = new Archive(channel)) {
+            long size = channel.size();
+            int tailSize = (int) Math.min(size, ZIP_EOCD_SIZE + ZIP_MAX_COMMENT);
+            ByteBuffer tail = read(channel, size - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - ZIP_EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == ZIP_EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("Not a zip file: " + file);
+            }
+            int numEntries = tail.getShort(eocd + 10) & 0xffff;
+            long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if (numEntries == 0xffff || cdSize == ZIP64_MARKER || cdOffset == ZIP64_MARKER) {
+                throw new IOException("Zip64 archives are not supported: " + file);
+            }
+
+            ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+            int pos = 0;
+            for (int i = 0; i < numEntries; i++) {
+                if (cd.getInt(pos) != ZIP_CENTRAL_SIGNATURE) {
+                    throw new IOException("Corrupt zip central directory: " + file);
+                }
+                int method = cd.getShort(pos + 10) & 0xffff;
+                long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+                long entrySize = cd.getInt(pos + 24) & 0xffffffffL;
+                int nameLength = cd.getShort(pos + 28) & 0xffff;
+                int extraLength = cd.getShort(pos + 30) & 0xffff;
+                int commentLength = cd.getShort(pos + 32) & 0xffff;
+                long localOffset = cd.getInt(pos + 42) & 0xffffffffL;
+                boolean isDirectory = nameLength > 0 && cd.get(pos + 46 + nameLength - 1) == '/';
+                pos += 46 + nameLength + extraLength + commentLength;
+                // the real values are in a zip64 extra field
+                if (compressedSize == ZIP64_MARKER || entrySize == ZIP64_MARKER || localOffset == ZIP64_MARKER) {
+                    throw new IOException("Zip64 entries are not supported: " + file);
+                }
+                if (isDirectory || entrySize == 0) {
+                    continue;
+                }
+
+                ByteBuffer local = read(channel, localOffset, ZIP_LOCAL_HEADER_SIZE);
+                long dataOffset = localOffset + ZIP_LOCAL_HEADER_SIZE
+                                + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+                if (method == ZIP_STORED) {
+                    handler.accept(archive.slice(dataOffset, entrySize));
+                } else if (method == ZIP_DEFLATED) {
+                    handler.accept(inflate(channel, dataOffset, compressedSize, entrySize));
+                } else {
+                    throw new IOException("Unsupported zip compression method " + method + " in " + file);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer inflate(FileChannel channel, long offset, long compressedSize, long size) throws IOException {
+        if (compressedSize > Integer.MAX_VALUE || size > Integer.MAX_VALUE) {
+            throw new IOException("Zip entry of " + size + " bytes is too large to inflate");
+        }
+        ByteBuffer compressed = read(channel, offset, (int) compressedSize);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array(), 0, (int) compressedSize);
+            byte[] data = new byte[(int) size];
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n < data.length) {
+                throw new IOException("Truncated zip entry: inflated " + n + " of " + data.length + " bytes");
+            }
+            return ByteBuffer.wrap(data);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zip entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public void readTar(Path file, Handler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                        Archive archive = new Archive(channel)) {
+            long size = channel.size();
+            long pos = 0;
+            while (pos + TAR_BLOCK <= size) {
+                ByteBuffer header = read(channel, pos, TAR_BLOCK);
+                if (isZeroBlock(header)) {
+                    break;
+                }
+                long entrySize = parseTarSize(header);
+                byte type = header.get(156);
+                long dataOffset = pos + TAR_BLOCK;
+                // regular files only, skipping directories, links and extended headers
+                if ((type == '0' || type == 0) && entrySize > 0) {
+                    handler.accept(archive.slice(dataOffset, entrySize));
+                }
+                pos = dataOffset + (entrySize + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+            }
+        }
+    }
+
+    private static boolean isZeroBlock(ByteBuffer block) {
+        for (int i = 0; i < block.limit(); i++) {
+            if (block.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseTarSize(ByteBuffer header) throws IOException {
+        // large entries use a binary encoding marked by the high bit
+        if ((header.get(124) & 0x80) != 0) {
+            long size = 0;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header.get(i) & 0xff);
+            }
+            return size;
+        }
+        byte[] field = new byte[12];
+        for (int i = 0; i < field.length; i++) {
+            field[i] = header.get(124 + i);
+        }
+        String octal = new String(field, StandardCharsets.US_ASCII).trim();
+        int end = octal.indexOf(0);
+        if (end >= 0) {
+            octal = octal.substring(0, end).trim();
+        }
+        try {
+            return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt tar header size: " + octal);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a communication directly from the buffer
+     */
+    public static Communication decode(ByteBuffer buffer) throws TException {
+        Communication comm = new Communication();
+        comm.read(new TCompactProtocol(new ByteBufferTransport(buffer)));
+        return comm;
+    }
+
+    /**
+     * Release a buffer handed out by this reader once it has been decoded. A mapped file is
+     * unmapped right away and an archive chunk once all of its slices are released.
+     * The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        Chunk chunk = chunks.remove(buffer);
+        if (chunk == null) {
+            unmap(buffer);
+        } else {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Release a mapped buffer without waiting for garbage collection.
+     * The buffer must not be used afterwards.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        if (UNMAPPER != null && buffer instanceof MappedByteBuffer) {
+            UNMAPPER.unmap(buffer);
+        }
+    }
+
+    /**
+     * Maps an archive one chunk at a time, moving on to a new chunk when an entry does not fit
+     */
+    private class Archive implements AutoCloseable {
+        private final FileChannel channel;
+        private final long size;
+        private Chunk current;
+
+        Archive(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        ByteBuffer slice(long offset, long length) throws IOException {
+            if (length > Integer.MAX_VALUE || offset + length > size) {
+                throw new IOException("Archive entry of " + length + " bytes at " + offset + " cannot be mapped");
+            }
+            if (current == null || offset < current.start || offset + length > current.start + current.buffer.capacity()) {
+                close();
+                long mapSize = Math.max(length, Math.min(chunkSize, size - offset));
+                current = new Chunk(offset, channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize));
+            }
+            ByteBuffer slice = current.slice((int) (offset - current.start), (int) length);
+            chunks.put(slice, current);
+            return slice;
+        }
+
+        /**
+         * Stop handing out slices of the current chunk
+         */
+        @Override
+        public void close() {
+            if (current != null) {
+                current.finish();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * A mapped part of an archive, unmapped once it is finished and its slices are released
+     */
+    private static class Chunk {
+        final long start;
+        final MappedByteBuffer buffer;
+        private int slices = 0;
+        private boolean finished = false;
+
+        Chunk(long start, MappedByteBuffer buffer) {
+            this.start = start;
+            this.buffer = buffer;
+        }
+
+        synchronized ByteBuffer slice(int position, int length) {
+            slices++;
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.limit(position + length);
+            return view.slice();
+        }
+
+        synchronized void release() {
+            slices--;
+            maybeUnmap();
+        }
+
+        synchronized void finish() {
+            finished = true;
+            maybeUnmap();
+        }
+
+        private void maybeUnmap() {
+            if (finished && slices == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer);
+    }
+
+    // mapped buffers are otherwise only released on gc which can exhaust the map count limit
+    private static Unmapper createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException e) {
+                    logger.debug("Unable to unmap buffer", e);
+                }
+            };
+        } catch (NoSuchMethodException e) {
+            return createLegacyUnmapper();
+        } catch (ReflectiveOperationException | SecurityException e) {
+            logger.info("Mapped buffers will be released by garbage collection");
+            return null;
+        }
+    }
+
+    private static Unmapper createLegacyUnmapper() {
+        try {
+            Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+            Method cleanerMethod = directBuffer.getMethod("cleaner");
+            Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                try {
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleanMethod.invoke(cleaner);
+                    }
+                } catch (ReflectiveOperationException e) {
+                    logger.debug("Unable to unmap buffer", e);
+                }
+            };
+        } catch (ReflectiveOperationException | SecurityException e) {
+            logger.info("Mapped buffers will be released by garbage collection");
+            return null;
+        }
+    }
+}
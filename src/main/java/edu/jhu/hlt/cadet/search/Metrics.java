@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and timers written in the Prometheus text format.
+ *
+ * Metrics are registered once by name and shared by everything that asks for that name.
+ */
+public class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+    // upper bounds of the exported timer buckets
+    private static final double[] BUCKET_SECONDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25,
+        0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1e9);
+        }
+    }
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * The registry used by the search service and indexers
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name, String help) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter(help));
+    }
+
+    /**
+     * Register a counter whose value is maintained elsewhere
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        metrics.put(name, new Function(help, "counter", value));
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        metrics.put(name, new Function(help, "gauge", value));
+    }
+
+    /**
+     * Get a timer that records nanoseconds and reports seconds. Name it with a _seconds suffix.
+     */
+    public Timer timer(String name, String help) {
+        return (Timer) metrics.computeIfAbsent(name, n -> new Timer(help));
+    }
+
+    public void write(Appendable out) throws IOException {
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(metric.type()).append('\n');
+            metric.write(entry.getKey(), out);
+        }
+    }
+
+    private static abstract class Metric {
+        final String help;
+
+        Metric(String help) {
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(String name, Appendable out) throws IOException;
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String help) {
+            super(help);
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(String name, Appendable out) throws IOException {
+            out.append(name).append(' ').append(Long.toString(get())).append('\n');
+        }
+    }
+
+    private static class Function extends Metric {
+        private final String type;
+        private final LongSupplier value;
+
+        Function(String help, String type, LongSupplier value) {
+            super(help);
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return type;
+        }
+
+        @Override
+        void write(String name, Appendable out) throws IOException {
+            out.append(name).append(' ').append(Long.toString(value.getAsLong())).append('\n');
+        }
+    }
+
+    public static class Timer extends Metric {
+        private final Histogram histogram = new Histogram();
+
+        Timer(String help) {
+            super(help);
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        /**
+         * Record the time since a start time from {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+
+        public Histogram getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        /**
+         * Cumulative counts, so rates and quantiles over any window can be computed from scrapes.
+         * Values are counted in the bucket of their upper bound, which is within 12.5% of the value.
+         */
+        @Override
+        void write(String name, Appendable out) throws IOException {
+            long[] counts = histogram.getCumulativeCounts(BUCKET_NANOS);
+            for (int i = 0; i < BUCKET_NANOS.length; i++) {
+                out.append(name).append("_bucket{le=\"").append(Double.toString(BUCKET_SECONDS[i])).append("\"} ")
+                    .append(Long.toString(counts[i])).append('\n');
+            }
+            long count = counts[BUCKET_NANOS.length];
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(Long.toString(count)).append('\n');
+            out.append(name).append("_sum ").append(Double.toString(histogram.getSum() / 1e9)).append('\n');
+            out.append(name).append("_count ").append(Long.toString(count)).append('\n');
+        }
+    }
+}
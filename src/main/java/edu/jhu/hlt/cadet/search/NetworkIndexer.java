@@ -7,6 +7,9 @@ package edu.jhu.hlt.cadet.search;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
@@ -17,12 +20,21 @@ import edu.jhu.hlt.concrete.Communication;
 import edu.jhu.hlt.concrete.access.FetchCommunicationService;
 import edu.jhu.hlt.concrete.access.FetchRequest;
 import edu.jhu.hlt.concrete.access.FetchResult;
-import edu.jhu.hlt.concrete.lucene.LuceneCommunicationIndexer;
-import edu.jhu.hlt.concrete.lucene.NaiveConcreteLuceneIndexer;
-import edu.jhu.hlt.concrete.lucene.pretokenized.TokenizedCommunicationIndexer;
 
+/**
+ * Indexes the communications of a fetch service a page of ids at a time.
+ *
+ * The index is committed with an {@link IngestCheckpoint} every few pages so an ingest
+ * that stopped can resume where it left off. Requests that fail with a connection error
+ * are retried on a new connection after a growing delay.
+ */
 public class NetworkIndexer implements Indexer {
     private static Logger logger = LoggerFactory.getLogger(NetworkIndexer.class);
+    private static final Metrics.Timer fetchTimer = Metrics.global().timer("cadet_fetch_seconds",
+                    "Time to fetch a batch of communications");
+    private static final Metrics.Counter fetchRetries = Metrics.global().counter("cadet_fetch_retries_total",
+                    "Fetch service requests retried after a connection error");
+    private static final long MAX_BACKOFF_MILLIS = 30000;
 
     private final String fetchHost;
     private final int fetchPort;
@@ -34,47 +46,281 @@ public class NetworkIndexer implements Indexer {
 
     @Override
     public void index(Config config) throws IOException, TException {
-        LuceneCommunicationIndexer indexer = null;
-        if (config.useLuceneTokenizer) {
-            indexer = new NaiveConcreteLuceneIndexer(config.indexDir);
-        } else {
-            indexer = new TokenizedCommunicationIndexer(config.indexDir);
-        }
-
-        FetchClientFactory factory = new FetchClientFactory();
-        FetchCommunicationService.Client client = factory.createClient(fetchHost, fetchPort);
-        try {
-            if (!client.alive()) {
-                indexer.close();
-                throw new TException("Unable to talk to fetch service");
+        if (config.isPipelined()) {
+            indexPipelined(config);
+            return;
+        }
+
+        try (FetchConnection connection = new FetchConnection(config);
+                        SentenceIndexer indexer = SentenceIndexer.open(config)) {
+            long numComms = connect(connection);
+            long start = getStartOffset(config, indexer);
+            long counter = 0;
+            int batches = 0;
+            logger.info("Adding documents to index: " + (numComms - start));
+            for (long offset = start; offset < numComms; offset += config.batchSize) {
+                List<String> ids = getIds(connection, offset, config.batchSize);
+                List<Communication> comms = connection.fetch(ids);
+                counter += comms.size();
+                for (Communication comm : comms) {
+                    indexer.add(comm);
+                }
+                logger.info("Indexed " + counter + "/" + (numComms - start) + " Communications");
+                if (config.checkpointBatches > 0 && ++batches % config.checkpointBatches == 0) {
+                    new IngestCheckpoint(offset + config.batchSize, numComms).save(indexer);
+                }
+            }
+            new IngestCheckpoint(Math.max(start, numComms), numComms).save(indexer);
+        }
+    }
+
+    /**
+     * Pages of ids are requested on this thread while several fetch clients
+     * retrieve the communications and several threads add them to the index.
+     */
+    private void indexPipelined(Config config) throws IOException, TException {
+        try (FetchConnection connection = new FetchConnection(config);
+                        SentenceIndexer indexer = SentenceIndexer.open(config)) {
+            final long numComms = connect(connection);
+            final long start = getStartOffset(config, indexer);
+            final AtomicLong counter = new AtomicLong();
+            final Progress progress = new Progress(start);
+            logger.info("Adding documents to index: " + (numComms - start) + " using " + config.fetchThreads
+                            + " fetch threads and " + config.indexThreads + " index threads");
+            WorkQueue<Pending> indexQueue = new WorkQueue<Pending>("index",
+                            config.indexThreads, config.queueSize, () -> pending -> {
+                indexer.add(pending.comm);
+                pending.page.indexed(progress);
+                long count = counter.incrementAndGet();
+                if (count % config.batchSize == 0) {
+                    logger.info("Indexed " + count + "/" + (numComms - start) + " Communications");
+                }
+            });
+            WorkQueue<Page> fetchQueue = new WorkQueue<Page>("fetch",
+                            config.fetchThreads, config.fetchThreads * 2,
+                            () -> new FetchWorker(config, indexQueue, progress));
+            try {
+                long checkpointed = start;
+                int batches = 0;
+                for (long offset = start; offset < numComms; offset += config.batchSize) {
+                    List<String> ids = getIds(connection, offset, config.batchSize);
+                    fetchQueue.put(new Page(offset, offset + config.batchSize, ids));
+                    if (config.checkpointBatches > 0 && ++batches % config.checkpointBatches == 0) {
+                        // only pages that have been completely indexed count
+                        long completed = progress.getCompleted();
+                        if (completed > checkpointed) {
+                            new IngestCheckpoint(completed, numComms).save(indexer);
+                            checkpointed = completed;
+                        }
+                    }
+                }
+                fetchQueue.finish();
+            } catch (TException | IOException | RuntimeException e) {
+                // stop both sets of workers before the indexer is closed under them
+                fetchQueue.abort();
+                indexQueue.abort();
+                throw e;
             }
-        } catch (TTransportException e) {
+            indexQueue.finish();
+            new IngestCheckpoint(Math.max(start, numComms), numComms).save(indexer);
+            logger.info("Indexed " + counter.get() + "/" + (numComms - start) + " Communications");
+        }
+    }
+
+    /**
+     * Check the fetch service and get the number of communications
+     */
+    private static long connect(FetchConnection connection) throws TException {
+        if (!connection.call("check", client -> client.alive())) {
             throw new TException("Unable to talk to fetch service");
         }
-        long numComms = client.getCommunicationCount();
-        long counter = 0;
-        logger.info("Adding documents to index: " + numComms);
-        for (long offset = 0; offset < numComms; offset += config.batchSize) {
-            List<String> ids = client.getCommunicationIDs(offset, config.batchSize);
-            if (ids == null) {
-                indexer.close();
-                throw new TException("Unable to get comm ids from fetch service");
+        return connection.call("count communications", client -> client.getCommunicationCount());
+    }
+
+    private static List<String> getIds(FetchConnection connection, long offset, int count) throws TException {
+        List<String> ids = connection.call("get comm ids", client -> client.getCommunicationIDs(offset, count));
+        if (ids == null) {
+            throw new TException("Unable to get comm ids from fetch service");
+        }
+        return ids;
+    }
+
+    private static long getStartOffset(Config config, SentenceIndexer indexer) {
+        if (!config.resume) {
+            return 0;
+        }
+        IngestCheckpoint checkpoint = IngestCheckpoint.read(indexer);
+        if (checkpoint == null) {
+            logger.warn("No ingest checkpoint in the index so starting from the beginning");
+            return 0;
+        }
+        logger.info("Resuming ingest from checkpoint " + checkpoint);
+        return checkpoint.offset;
+    }
+
+    /**
+     * Delay before a retry, doubled for each attempt up to the maximum
+     */
+    static long backoff(long backoffMillis, int attempt) {
+        // a larger shift overflows, and the delay is capped long before it
+        return Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(attempt, 20));
+    }
+
+    private interface FetchCall<T> {
+        T call(FetchCommunicationService.Client client) throws TException;
+    }
+
+    /**
+     * Client for the fetch service that reconnects and retries after connection errors
+     */
+    private class FetchConnection implements AutoCloseable {
+        private final int retries;
+        private final long backoffMillis;
+        private FetchClientFactory factory;
+        private FetchCommunicationService.Client client;
+
+        FetchConnection(Config config) {
+            this.retries = config.fetchRetries;
+            this.backoffMillis = config.retryBackoffMillis;
+        }
+
+        <T> T call(String action, FetchCall<T> call) throws TException {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    if (client == null) {
+                        factory = new FetchClientFactory();
+                        client = factory.createClient(fetchHost, fetchPort);
+                    }
+                    return call.call(client);
+                } catch (TTransportException e) {
+                    close();
+                    if (attempt >= retries) {
+                        throw new TException("Unable to " + action + " with fetch service after "
+                                        + (attempt + 1) + " attempts", e);
+                    }
+                    long delay = backoff(backoffMillis, attempt);
+                    logger.warn("Failed to " + action + " with fetch service, retrying in " + delay + " ms: "
+                                    + e.getMessage());
+                    fetchRetries.inc();
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new TException("Interrupted while waiting to retry the fetch service", e);
+                    }
+                }
             }
+        }
+
+        List<Communication> fetch(List<String> ids) throws TException {
             FetchRequest request = new FetchRequest();
             request.setCommunicationIds(ids);
-            FetchResult result = client.fetch(request);
+            long start = System.nanoTime();
+            FetchResult result = call("fetch comms", client -> client.fetch(request));
+            fetchTimer.recordSince(start);
             if (result == null) {
-                indexer.close();
                 throw new TException("Unable to get comms from fetch service");
             }
-            counter += result.getCommunications().size();
-            for (Communication comm : result.getCommunications()) {
-                indexer.add(comm);
+            return result.getCommunications();
+        }
+
+        @Override
+        public void close() {
+            if (factory != null) {
+                factory.freeClient();
             }
-            logger.info("Indexed " + counter + "/" + numComms + " Communications");
+            factory = null;
+            client = null;
         }
-        factory.freeClient();
-        indexer.close();
     }
 
+    /**
+     * Ids from an offset in the fetch service and the number of their communications still to index
+     */
+    private static class Page {
+        private final long offset;
+        private final long end;
+        private final List<String> ids;
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        Page(long offset, long end, List<String> ids) {
+            this.offset = offset;
+            this.end = end;
+            this.ids = ids;
+        }
+
+        void indexed(Progress progress) {
+            if (remaining.decrementAndGet() == 0) {
+                progress.finish(offset, end);
+            }
+        }
+    }
+
+    private static class Pending {
+        private final Communication comm;
+        private final Page page;
+
+        Pending(Communication comm, Page page) {
+            this.comm = comm;
+            this.page = page;
+        }
+    }
+
+    /**
+     * Offset below which every page has been indexed. Pages finish out of order in the pipeline.
+     */
+    static class Progress {
+        private long completed;
+        // end offset of each finished page after the completed offset
+        private final TreeMap<Long, Long> finished = new TreeMap<>();
+
+        Progress(long start) {
+            this.completed = start;
+        }
+
+        synchronized void finish(long offset, long end) {
+            finished.put(offset, end);
+            Long next;
+            while ((next = finished.remove(completed)) != null) {
+                completed = next;
+            }
+        }
+
+        synchronized long getCompleted() {
+            return completed;
+        }
+    }
+
+    /**
+     * Fetches pages of communications over its own connection
+     */
+    private class FetchWorker implements WorkQueue.Worker<Page> {
+        private final FetchConnection connection;
+        private final WorkQueue<Pending> indexQueue;
+        private final Progress progress;
+
+        FetchWorker(Config config, WorkQueue<Pending> indexQueue, Progress progress) {
+            this.connection = new FetchConnection(config);
+            this.indexQueue = indexQueue;
+            this.progress = progress;
+        }
+
+        @Override
+        public void process(Page page) throws TException, IOException {
+            List<Communication> comms = connection.fetch(page.ids);
+            if (comms.isEmpty()) {
+                progress.finish(page.offset, page.end);
+                return;
+            }
+            page.remaining.set(comms.size());
+            for (Communication comm : comms) {
+                indexQueue.put(new Pending(comm, page));
+            }
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the files of the latest index commit over HTTP so replicas can copy the index.
+ *
+ * A revision is the latest commit of every shard. /replication/revision lists its id and
+ * the path, length and checksum of each file. /replication/file?revision=...&path=... returns
+ * a file of the latest revision or the one before it, so a replica copying a revision can
+ * finish while a new one is published. Only files of those revisions are served.
+ *
+ * Commits of a live index are held with the writers' snapshot deletion policy. For an index
+ * on disk, the current generation is served and a replica switches when a new one is published.
+ */
+public class ReplicationServer implements AutoCloseable {
+    private static Logger logger = LoggerFactory.getLogger(ReplicationServer.class);
+
+    static final String REVISION_PATH = "/replication/revision";
+    static final String FILE_PATH = "/replication/file";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int THREADS = 4;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SentenceIndexer indexer;
+    private final IndexGenerations generations;
+    private Revision current;
+    private Revision previous;
+
+    /**
+     * Serve the commits of an index being written
+     */
+    public ReplicationServer(int port, SentenceIndexer indexer) throws IOException {
+        this(port, indexer, null);
+    }
+
+    /**
+     * Serve the current generation of an index on disk
+     */
+    public ReplicationServer(int port, Path indexDir) throws IOException {
+        this(port, null, new IndexGenerations(indexDir));
+    }
+
+    private ReplicationServer(int port, SentenceIndexer indexer, IndexGenerations generations) throws IOException {
+        this.indexer = indexer;
+        this.generations = generations;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread thread = new Thread(r, "replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(REVISION_PATH, this::handleRevision);
+        server.createContext(FILE_PATH, this::handleFile);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving index replication on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Get the latest revision, which replaces the current one if the index has a new commit
+     */
+    synchronized Revision refresh() throws IOException {
+        Revision latest = indexer != null ? fromWriters(indexer.getWriters()) : fromDirectory(generations.current());
+        if (current != null && current.id.equals(latest.id)) {
+            latest.close();
+            return current;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        previous = current;
+        current = latest;
+        logger.info("Publishing index revision " + latest.id + " with " + latest.files.size() + " files");
+        return current;
+    }
+
+    /**
+     * Open a file of the latest or the previous revision, or null if it is not in them
+     */
+    private synchronized IndexInput open(String revisionId, String path) throws IOException {
+        for (Revision revision : new Revision[] {current, previous}) {
+            if (revision != null && revision.id.equals(revisionId)) {
+                FileInfo file = revision.files.get(path);
+                if (file == null) {
+                    return null;
+                }
+                return revision.directories.get(file.directory()).openInput(file.name(), IOContext.READONCE);
+            }
+        }
+        return null;
+    }
+
+    private static Revision fromWriters(IndexWriter[] writers) throws IOException {
+        List<IndexCommit> commits = new ArrayList<>(writers.length);
+        try {
+            for (IndexWriter writer : writers) {
+                SnapshotDeletionPolicy policy = (SnapshotDeletionPolicy) writer.getConfig().getIndexDeletionPolicy();
+                commits.add(policy.snapshot());
+            }
+        } catch (IllegalStateException e) {
+            release(writers, commits);
+            throw new IOException("The index has no commit to replicate yet");
+        }
+        return new Revision(commits, writers.length > 1, () -> release(writers, commits));
+    }
+
+    private static void release(IndexWriter[] writers, List<IndexCommit> commits) throws IOException {
+        for (int i = 0; i < commits.size(); i++) {
+            SnapshotDeletionPolicy policy = (SnapshotDeletionPolicy) writers[i].getConfig().getIndexDeletionPolicy();
+            policy.release(commits.get(i));
+            writers[i].deleteUnusedFiles();
+        }
+    }
+
+    private static Revision fromDirectory(Path indexDir) throws IOException {
+        List<Directory> directories = new ArrayList<>();
+        List<IndexCommit> commits = new ArrayList<>();
+        try {
+            for (Path path : Shards.paths(indexDir)) {
+                Directory directory = FSDirectory.open(path);
+                directories.add(directory);
+                List<IndexCommit> all = DirectoryReader.listCommits(directory);
+                commits.add(all.get(all.size() - 1));
+            }
+            // files of another generation may share names, so it is part of the id
+            return new Revision(indexDir.getFileName() + ":", commits, Shards.count(indexDir) > 0,
+                            () -> IOUtils.close(directories));
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(directories);
+            throw e;
+        }
+    }
+
+    private void handleRevision(HttpExchange exchange) throws IOException {
+        Revision revision;
+        try {
+            revision = refresh();
+        } catch (IOException | AlreadyClosedException e) {
+            logger.warn("Unable to publish an index revision", e);
+            send(exchange, 503, e.getMessage());
+            return;
+        }
+        StringBuilder sb = new StringBuilder(revision.id).append('\n');
+        for (FileInfo file : revision.files.values()) {
+            sb.append(file).append('\n');
+        }
+        send(exchange, 200, sb.toString());
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        IndexInput input;
+        try {
+            input = open(params.get("revision"), params.get("path"));
+        } catch (IOException | AlreadyClosedException e) {
+            // the revision was released after the lookup
+            input = null;
+        }
+        if (input == null) {
+            send(exchange, 404, "Not in a published revision");
+            return;
+        }
+        try (IndexInput in = input; OutputStream out = exchange.getResponseBody()) {
+            long remaining = in.length();
+            exchange.sendResponseHeaders(200, remaining);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (remaining > 0) {
+                int n = (int) Math.min(buffer.length, remaining);
+                in.readBytes(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int split = param.indexOf('=');
+                if (split > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, split), "UTF-8"),
+                                    URLDecoder.decode(param.substring(split + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        server.stop(0);
+        executor.shutdown();
+        IOUtils.close(current, previous);
+        current = null;
+        previous = null;
+    }
+
+    /**
+     * A file of a revision, written in the revision listing as path, length and checksum separated by tabs.
+     * The path is the file name under the shard directory of a sharded index.
+     */
+    static class FileInfo {
+        final String path;
+        final long length;
+        final long checksum;
+
+        FileInfo(String path, long length, long checksum) {
+            this.path = path;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        static FileInfo parse(String line) throws IOException {
+            String[] parts = line.split("\t");
+            if (parts.length != 3) {
+                throw new IOException("Malformed revision entry: " + line);
+            }
+            try {
+                return new FileInfo(parts[0], Long.parseLong(parts[1]), Long.parseUnsignedLong(parts[2], 16));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed revision entry: " + line);
+            }
+        }
+
+        /**
+         * Directory of the file relative to the index directory, empty for an unsharded index
+         */
+        String directory() {
+            int split = path.lastIndexOf('/');
+            return split < 0 ? "" : path.substring(0, split);
+        }
+
+        String name() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String toString() {
+            return path + "\t" + length + "\t" + Long.toHexString(checksum);
+        }
+    }
+
+    /**
+     * Commit of each shard, held until the revision is closed
+     */
+    static class Revision implements Closeable {
+        final String id;
+        final Map<String, FileInfo> files = new LinkedHashMap<>();
+        final Map<String, Directory> directories = new HashMap<>();
+        private final Closeable release;
+
+        Revision(List<IndexCommit> commits, boolean sharded, Closeable release) throws IOException {
+            this("", commits, sharded, release);
+        }
+
+        Revision(String prefix, List<IndexCommit> commits, boolean sharded, Closeable release) throws IOException {
+            this.release = release;
+            StringBuilder id = new StringBuilder(prefix);
+            try {
+                for (int i = 0; i < commits.size(); i++) {
+                    IndexCommit commit = commits.get(i);
+                    String directory = sharded ? Shards.name(i) : "";
+                    directories.put(directory, commit.getDirectory());
+                    id.append(i > 0 ? "-" : "").append(Long.toString(commit.getGeneration(), Character.MAX_RADIX));
+                    for (String name : commit.getFileNames()) {
+                        String path = sharded ? directory + "/" + name : name;
+                        files.put(path, describe(commit.getDirectory(), path, name));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                IOUtils.closeWhileHandlingException(release);
+                throw e;
+            }
+            this.id = id.toString();
+        }
+
+        private static FileInfo describe(Directory directory, String path, String name) throws IOException {
+            try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+                return new FileInfo(path, in.length(), CodecUtil.retrieveChecksum(in));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            release.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.search.SearchCapability;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.search.SearchType;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+import edu.jhu.hlt.concrete.services.ServicesException;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory;
+import edu.jhu.hlt.concrete.uuid.AnalyticUUIDGeneratorFactory.AnalyticUUIDGenerator;
+
+/**
+ * Search service that sends each query to several search servers and merges their results by score.
+ *
+ * Backends that fail or do not answer before the timeout are left out and the query
+ * gets the {@link LuceneSearchHandler#PARTIAL_LABEL} label in the returned result, as it
+ * does when a backend ran out of time for the query. If no backend answers and one returned
+ * an error, such as for a query it could not parse, that error is passed on to the caller.
+ */
+public class SearchBroker implements SearchService.Iface {
+    private static Logger logger = LoggerFactory.getLogger(SearchBroker.class);
+
+    private static final Metrics.Counter backendFailures = Metrics.global().counter("cadet_broker_backend_failures_total",
+                    "Backend requests that failed in transport or timed out");
+
+    private final List<Backend> backends;
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+    private final AnalyticUUIDGenerator uuidGen;
+
+    /**
+     * @param backends       search servers to query
+     * @param executor       runs the backend requests
+     * @param timeoutMillis  how long to wait for the backends
+     */
+    public SearchBroker(List<Backend> backends, ExecutorService executor, long timeoutMillis) {
+        this.backends = backends;
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+        AnalyticUUIDGeneratorFactory f = new AnalyticUUIDGeneratorFactory();
+        this.uuidGen = f.create();
+    }
+
+    @Override
+    public SearchResult search(SearchQuery query) throws ServicesException, TException {
+        List<Future<SearchResult>> futures = submit(client -> client.search(query));
+        List<SearchResult> responses = collect(futures, "search");
+
+        SearchResult results = new SearchResult();
+        results.setUuid(uuidGen.next());
+        SearchQuery echo = query.deepCopy();
+        if (responses.size() < backends.size() || anyPartial(responses)) {
+            echo.addToLabels(LuceneSearchHandler.PARTIAL_LABEL);
+        }
+        results.setSearchQuery(echo);
+        AnnotationMetadata metadata = new AnnotationMetadata();
+        metadata.setTool("Cadet Lucene Search Broker");
+        results.setMetadata(metadata);
+        if (responses.isEmpty() && !backends.isEmpty()) {
+            throw new ServicesException("No search backends responded");
+        }
+
+        List<SearchResultItem> items = merge(responses, query.getType() == SearchType.COMMUNICATIONS);
+        int k = LuceneSearchHandler.getResultCount(query);
+        if (items.size() > k) {
+            items = new ArrayList<>(items.subList(0, k));
+        }
+        results.setSearchResultItems(items);
+        for (SearchResult response : responses) {
+            if (response.isSetLang()) {
+                results.setLang(response.getLang());
+                break;
+            }
+        }
+        return results;
+    }
+
+    private static boolean anyPartial(List<SearchResult> responses) {
+        for (SearchResult response : responses) {
+            SearchQuery echo = response.getSearchQuery();
+            if (echo != null && echo.isSetLabels() && echo.getLabels().contains(LuceneSearchHandler.PARTIAL_LABEL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge by descending score. Communication results keep the best hit for each communication.
+     */
+    static List<SearchResultItem> merge(List<SearchResult> responses, boolean byCommunication) {
+        List<SearchResultItem> items = new ArrayList<>();
+        Map<String, SearchResultItem> best = new HashMap<>();
+        for (SearchResult response : responses) {
+            if (!response.isSetSearchResultItems()) {
+                continue;
+            }
+            for (SearchResultItem item : response.getSearchResultItems()) {
+                if (byCommunication) {
+                    SearchResultItem current = best.get(item.getCommunicationId());
+                    if (current == null || item.getScore() > current.getScore()) {
+                        best.put(item.getCommunicationId(), item);
+                    }
+                } else {
+                    items.add(item);
+                }
+            }
+        }
+        if (byCommunication) {
+            items.addAll(best.values());
+        }
+        Collections.sort(items, (a, b) -> Double.compare(b.getScore(), a.getScore()));
+        return items;
+    }
+
+    @Override
+    public List<SearchCapability> getCapabilities() throws ServicesException, TException {
+        Map<String, SearchCapability> capabilities = new HashMap<>();
+        for (List<SearchCapability> response : collect(submit(client -> client.getCapabilities()), "getCapabilities")) {
+            if (response != null) {
+                for (SearchCapability capability : response) {
+                    capabilities.put(capability.getType() + "/" + capability.getLang(), capability);
+                }
+            }
+        }
+        return new ArrayList<>(capabilities.values());
+    }
+
+    @Override
+    public List<String> getCorpora() throws ServicesException, TException {
+        Set<String> corpora = new LinkedHashSet<>();
+        for (List<String> response : collect(submit(client -> client.getCorpora()), "getCorpora")) {
+            if (response != null) {
+                corpora.addAll(response);
+            }
+        }
+        return new ArrayList<>(corpora);
+    }
+
+    @Override
+    public ServiceInfo about() throws TException {
+        ServiceInfo info = new ServiceInfo("Cadet Lucene Search Broker", "1.0.0");
+        info.setDescription("Backends: " + backends);
+        return info;
+    }
+
+    /**
+     * Alive if any backend is alive
+     */
+    @Override
+    public boolean alive() throws TException {
+        for (Boolean alive : collect(submit(client -> client.alive()), "alive")) {
+            if (alive) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private <T> List<Future<T>> submit(Call<T> call) {
+        List<Future<T>> futures = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            futures.add(executor.submit(() -> backend.call(call)));
+        }
+        return futures;
+    }
+
+    /**
+     * Wait for the responses until the timeout. Failed and late backends are logged and skipped.
+     *
+     * @throws ServicesException  the error of a backend that rejected the request when none answered
+     */
+    private <T> List<T> collect(List<Future<T>> futures, String method) throws ServicesException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<T> responses = new ArrayList<>(futures.size());
+        ServicesException rejection = null;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<T> future = futures.get(i);
+            try {
+                responses.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                backendFailures.inc();
+                logger.warn("Timed out waiting for " + method + " from " + backends.get(i));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ServicesException) {
+                    // the backend is up but refused the request, such as a query it could not parse
+                    rejection = (ServicesException) e.getCause();
+                    logger.warn("Backend " + backends.get(i) + " rejected " + method + ": " + rejection.getMessage());
+                } else {
+                    backendFailures.inc();
+                    logger.warn("Failed " + method + " on " + backends.get(i) + ": " + e.getCause().getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (responses.isEmpty() && rejection != null) {
+            throw rejection;
+        }
+        return responses;
+    }
+
+    @FunctionalInterface
+    interface Call<T> {
+        T apply(SearchService.Client client) throws TException;
+    }
+
+    /**
+     * A search server with a pool of open connections.
+     *
+     * Clients are reused after a successful call or an error returned by the server and
+     * closed after other failures since the connection may be left in an unknown state.
+     */
+    public static class Backend implements AutoCloseable {
+        private final String host;
+        private final int port;
+        private final int socketTimeoutMillis;
+        private final ConcurrentLinkedQueue<PooledClient> idle = new ConcurrentLinkedQueue<>();
+
+        /**
+         * @param socketTimeoutMillis  read timeout so a hung server does not hold a connection forever
+         */
+        public Backend(String host, int port, int socketTimeoutMillis) {
+            this.host = host;
+            this.port = port;
+            this.socketTimeoutMillis = socketTimeoutMillis;
+        }
+
+        /**
+         * Parse host:port
+         */
+        public static Backend parse(String address, int socketTimeoutMillis) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("Expected host:port but got " + address);
+            }
+            return new Backend(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                            socketTimeoutMillis);
+        }
+
+        <T> T call(Call<T> call) throws TException {
+            PooledClient client = idle.poll();
+            if (client == null) {
+                client = new PooledClient(host, port, socketTimeoutMillis);
+            }
+            T result;
+            try {
+                result = call.apply(client.client);
+            } catch (ServicesException e) {
+                // an error returned by the server leaves the connection usable
+                idle.add(client);
+                throw e;
+            } catch (TException | RuntimeException e) {
+                client.close();
+                throw e;
+            }
+            idle.add(client);
+            return result;
+        }
+
+        @Override
+        public void close() {
+            PooledClient client;
+            while ((client = idle.poll()) != null) {
+                client.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static class PooledClient {
+        private final TTransport transport;
+        private final SearchService.Client client;
+
+        PooledClient(String host, int port, int timeoutMillis) throws TException {
+            transport = new TFramedTransport(new TSocket(host, port, timeoutMillis), Integer.MAX_VALUE);
+            transport.open();
+            client = new SearchService.Client(new TCompactProtocol(transport));
+        }
+
+        void close() {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+/**
+ * LRU cache of search results.
+ *
+ * Results are tied to the version of the index reader that produced them.
+ * When a lookup is made with a newer version, the cached results of that corpus are cleared.
+ * Corpora served by one process share the cache and its size limit.
+ */
+public class SearchResultCache {
+    private final int maxEntries;
+    private final Map<Key, List<SearchResultItem>> entries;
+    // latest reader version of each corpus
+    private final Map<String, Long> versions = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public SearchResultCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, List<SearchResultItem>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<SearchResultItem>> eldest) {
+                if (size() > SearchResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a copy of the cached results or null if not cached
+     *
+     * @param query    the search query
+     * @param k        number of results requested
+     * @param version  version of the index reader that will answer the query
+     */
+    public List<SearchResultItem> get(SearchQuery query, int k, long version) {
+        return get(null, query, k, version);
+    }
+
+    /**
+     * Get a copy of the cached results of a corpus or null if not cached
+     *
+     * @param corpus  name of the corpus searched or null when there is only one
+     */
+    public List<SearchResultItem> get(String corpus, SearchQuery query, int k, long version) {
+        List<SearchResultItem> items;
+        synchronized (this) {
+            checkVersion(corpus, version);
+            items = entries.get(new Key(corpus, query, k));
+        }
+        if (items == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(items);
+    }
+
+    public void put(SearchQuery query, int k, long version, List<SearchResultItem> items) {
+        put(null, query, k, version, items);
+    }
+
+    public void put(String corpus, SearchQuery query, int k, long version, List<SearchResultItem> items) {
+        List<SearchResultItem> copy = copy(items);
+        synchronized (this) {
+            checkVersion(corpus, version);
+            // results from an older reader that finished after a refresh are not cached
+            if (version == versions.get(corpus)) {
+                entries.put(new Key(corpus, query, k), copy);
+            }
+        }
+    }
+
+    private void checkVersion(String corpus, long version) {
+        Long current = versions.get(corpus);
+        if (current == null || version > current) {
+            if (current != null && entries.keySet().removeIf(key -> Objects.equals(key.corpus, corpus))) {
+                invalidations.incrementAndGet();
+            }
+            versions.put(corpus, version);
+        }
+    }
+
+    /**
+     * Drop the results of a corpus, such as when it is replaced by an index whose versions are unrelated
+     */
+    public synchronized void invalidate(String corpus) {
+        if (entries.keySet().removeIf(key -> Objects.equals(key.corpus, corpus))) {
+            invalidations.incrementAndGet();
+        }
+        versions.remove(corpus);
+    }
+
+    private static List<SearchResultItem> copy(List<SearchResultItem> items) {
+        List<SearchResultItem> copy = new ArrayList<>(items.size());
+        for (SearchResultItem item : items) {
+            copy.add(item.deepCopy());
+        }
+        return copy;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache hits=%d misses=%d evictions=%d invalidations=%d size=%d",
+                        hits.get(), misses.get(), evictions.get(), invalidations.get(), size());
+    }
+
+    /**
+     * Normalize whitespace so trivially different queries share an entry
+     */
+    static String normalize(String rawQuery) {
+        return rawQuery.trim().replaceAll("\\s+", " ");
+    }
+
+    private static class Key {
+        private final String corpus;
+        private final String rawQuery;
+        private final SearchType type;
+        private final int k;
+        private final String lang;
+        private final boolean snippets;
+
+        Key(String corpus, SearchQuery query, int k) {
+            this.corpus = corpus;
+            this.rawQuery = normalize(query.getRawQuery());
+            this.type = query.getType();
+            this.k = k;
+            this.lang = query.getLang();
+            this.snippets = Snippets.isRequested(query);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return k == other.k && snippets == other.snippets && rawQuery.equals(other.rawQuery)
+                            && type == other.type && Objects.equals(lang, other.lang)
+                            && Objects.equals(corpus, other.corpus);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(corpus, rawQuery, type, k, lang, snippets);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+/**
+ * Indexes the sentences of communications.
+ *
+ * Uses the same fields as the concrete-lucene indexers. Unlike those indexers,
+ * this one can be shared by several indexing threads and with a searcher.
+ *
+ * Adding a communication replaces any sentences already indexed for its id.
+ * A sharded index has a writer per shard and each communication goes to the shard for its id.
+ */
+public class SentenceIndexer implements AutoCloseable {
+    private static Logger logger = LoggerFactory.getLogger(SentenceIndexer.class);
+
+    /**
+     * Hash of the indexed sentences of the communication and the options they were indexed with,
+     * stored on each sentence
+     */
+    public static final String HASH_FIELD = "comm_hash";
+    /**
+     * Uuid of the tokenization whose tokens are the positions of the text field, not set with the lucene tokenizer
+     */
+    public static final String TOKENIZATION_FIELD = "tokenization_uuid";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Metrics.Counter commsAdded = Metrics.global().counter("cadet_ingest_communications_total",
+                    "Communications added or updated in the index");
+    private static final Metrics.Counter commsSkipped = Metrics.global().counter("cadet_ingest_skipped_total",
+                    "Communications skipped as unchanged");
+    private static final Metrics.Counter sentencesAdded = Metrics.global().counter("cadet_ingest_sentences_total",
+                    "Sentences added to the index");
+    private static final Metrics.Timer addTimer = Metrics.global().timer("cadet_ingest_add_seconds",
+                    "Time to analyze and add a communication");
+
+    private static final FieldType TEXT_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        TEXT_TYPE.setStoreTermVectors(true);
+        TEXT_TYPE.setStoreTermVectorPositions(true);
+        TEXT_TYPE.setStoreTermVectorOffsets(true);
+        TEXT_TYPE.freeze();
+    }
+
+    private final boolean useLuceneTokenizer;
+    private final IndexProfile profile;
+    private boolean useDocValues = false;
+    private final Directory[] directories;
+    private final IndexWriter[] writers;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    // snapshot of each shard when opened, used to find unchanged communications
+    private DirectoryReader[] previous;
+    private IndexSearcher[] previousSearchers;
+    private final AtomicLong skipped = new AtomicLong();
+
+    public SentenceIndexer(Path indexDir, boolean useLuceneTokenizer) throws IOException {
+        this(indexDir, useLuceneTokenizer, IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB);
+    }
+
+    public SentenceIndexer(Indexer.Config config) throws IOException {
+        this(config.indexDir, config.useLuceneTokenizer, config.profile, config.shards);
+        setUseDocValues(config.useDocValues);
+        if (config.skipUnchanged) {
+            skipUnchanged();
+        }
+    }
+
+    public SentenceIndexer(Path indexDir, boolean useLuceneTokenizer, double ramBufferMB) throws IOException {
+        this(indexDir, useLuceneTokenizer, ramBufferMB, 1);
+    }
+
+    /**
+     * @param ramBufferMB  memory for buffering documents for each shard
+     * @param numShards    number of shards for a new index, 1 to use the layout of an existing index
+     */
+    public SentenceIndexer(Path indexDir, boolean useLuceneTokenizer, double ramBufferMB, int numShards)
+                    throws IOException {
+        this(indexDir, useLuceneTokenizer, withRamBuffer(ramBufferMB), numShards);
+    }
+
+    /**
+     * @param profile    directory and writer settings, applied to each shard
+     * @param numShards  number of shards for a new index, 1 to use the layout of an existing index
+     */
+    public SentenceIndexer(Path indexDir, boolean useLuceneTokenizer, IndexProfile profile, int numShards)
+                    throws IOException {
+        if (profile.directory == IndexProfile.DirectoryType.RAM) {
+            throw new IOException("An in-memory directory can only be used for search");
+        }
+        this.useLuceneTokenizer = useLuceneTokenizer;
+        this.profile = profile;
+        List<Path> paths = Shards.create(indexDir, numShards);
+        this.directories = new Directory[paths.size()];
+        this.writers = new IndexWriter[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            directories[i] = profile.openDirectory(paths.get(i));
+            IndexWriterConfig iwc = new IndexWriterConfig(Analyzers.create(useLuceneTokenizer));
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            // lets replication hold a commit point while replicas copy it
+            iwc.setIndexDeletionPolicy(new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()));
+            writers[i] = new IndexWriter(directories[i], profile.configure(iwc));
+        }
+    }
+
+    private static IndexProfile withRamBuffer(double ramBufferMB) {
+        IndexProfile profile = new IndexProfile();
+        profile.ramBufferMB = ramBufferMB;
+        return profile;
+    }
+
+    /**
+     * Get the indexer set on the config or open a new one. Either way, close it when done.
+     */
+    public static SentenceIndexer open(Indexer.Config config) throws IOException {
+        if (config.indexer != null) {
+            config.indexer.refCount.incrementAndGet();
+            return config.indexer;
+        }
+        return new SentenceIndexer(config);
+    }
+
+    /**
+     * Also write the ids as doc values so results can be built without loading stored fields
+     */
+    public void setUseDocValues(boolean useDocValues) {
+        this.useDocValues = useDocValues;
+    }
+
+    /**
+     * Skip communications whose sentences are the same as when the indexer was opened
+     */
+    public void skipUnchanged() throws IOException {
+        if (previous == null) {
+            previous = new DirectoryReader[writers.length];
+            previousSearchers = new IndexSearcher[writers.length];
+            for (int i = 0; i < writers.length; i++) {
+                previous[i] = DirectoryReader.open(writers[i]);
+                previousSearchers[i] = new IndexSearcher(previous[i]);
+            }
+        }
+    }
+
+    /**
+     * Add the sentences of a communication to the index, replacing any with the same
+     * communication id. Safe to call from multiple threads.
+     */
+    public void add(Communication comm) throws IOException {
+        long start = System.nanoTime();
+        Term id = new Term(ConcreteLuceneConstants.COMM_ID_FIELD, comm.getId());
+        List<Document> docs = createDocuments(comm);
+        int shard = writers.length == 1 ? 0 : Shards.forId(comm.getId(), writers.length);
+        IndexWriter writer = writers[shard];
+        if (previous != null && isUnchanged(previousSearchers[shard], id, docs)) {
+            skipped.incrementAndGet();
+            commsSkipped.inc();
+            return;
+        }
+        if (docs.isEmpty()) {
+            writer.deleteDocuments(id);
+        } else {
+            writer.updateDocuments(id, docs);
+        }
+        commsAdded.inc();
+        sentencesAdded.add(docs.size());
+        addTimer.recordSince(start);
+    }
+
+    private static boolean isUnchanged(IndexSearcher previousSearcher, Term id, List<Document> docs)
+                    throws IOException {
+        TopDocs hits = previousSearcher.search(new TermQuery(id), 1);
+        if (hits.totalHits == 0) {
+            return docs.isEmpty();
+        }
+        if (docs.isEmpty()) {
+            return false;
+        }
+        String hash = previousSearcher.doc(hits.scoreDocs[0].doc, Collections.singleton(HASH_FIELD)).get(HASH_FIELD);
+        return docs.get(0).get(HASH_FIELD).equals(hash);
+    }
+
+    /**
+     * Number of communications skipped because they were unchanged
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    List<Document> createDocuments(Communication comm) {
+        List<Document> docs = new ArrayList<>();
+        if (!comm.isSetSectionList()) {
+            return docs;
+        }
+        MessageDigest digest = createDigest();
+        // documents written with other options are rewritten rather than skipped
+        digest.update((byte) (useLuceneTokenizer ? 1 : 0));
+        digest.update((byte) (useDocValues ? 1 : 0));
+        for (Section section : comm.getSectionList()) {
+            if (!section.isSetSentenceList()) {
+                continue;
+            }
+            for (Sentence sentence : section.getSentenceList()) {
+                String text = getText(comm, sentence);
+                if (text == null) {
+                    continue;
+                }
+                digest.update(sentence.getUuid().getUuidString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(text.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                Document doc = new Document();
+                doc.add(new StringField(ConcreteLuceneConstants.COMM_ID_FIELD, comm.getId(), Field.Store.YES));
+                doc.add(new StringField(ConcreteLuceneConstants.SENT_UUID_FIELD,
+                                sentence.getUuid().getUuidString(), Field.Store.YES));
+                if (useLuceneTokenizer) {
+                    doc.add(new Field(ConcreteLuceneConstants.TEXT_FIELD, text, TEXT_TYPE));
+                } else {
+                    // term positions are token indices, which snippets return
+                    doc.add(new Field(ConcreteLuceneConstants.TEXT_FIELD,
+                                    Analyzers.pretokenized(getTokens(sentence.getTokenization())), TEXT_TYPE));
+                }
+                if (!useLuceneTokenizer && sentence.getTokenization().isSetUuid()) {
+                    String tokenizationId = sentence.getTokenization().getUuid().getUuidString();
+                    digest.update(tokenizationId.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    doc.add(new StoredField(TOKENIZATION_FIELD, tokenizationId));
+                }
+                if (useDocValues) {
+                    doc.add(new SortedDocValuesField(ConcreteLuceneConstants.COMM_ID_FIELD, new BytesRef(comm.getId())));
+                    doc.add(new BinaryDocValuesField(ConcreteLuceneConstants.SENT_UUID_FIELD,
+                                    new BytesRef(sentence.getUuid().getUuidString())));
+                }
+                docs.add(doc);
+            }
+        }
+        String hash = toHex(digest.digest());
+        for (Document doc : docs) {
+            doc.add(new StoredField(HASH_FIELD, hash));
+        }
+        return docs;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private String getText(Communication comm, Sentence sentence) {
+        if (useLuceneTokenizer) {
+            if (!comm.isSetText() || !sentence.isSetTextSpan()) {
+                return null;
+            }
+            TextSpan span = sentence.getTextSpan();
+            return comm.getText().substring(span.getStart(), span.getEnding());
+        }
+
+        Tokenization tokenization = sentence.getTokenization();
+        if (tokenization == null || !tokenization.isSetTokenList()) {
+            return null;
+        }
+        return String.join(" ", getTokens(tokenization));
+    }
+
+    private static List<String> getTokens(Tokenization tokenization) {
+        List<String> tokens = new ArrayList<>();
+        for (Token token : tokenization.getTokenList().getTokenList()) {
+            tokens.add(token.isSetText() ? token.getText() : "");
+        }
+        return tokens;
+    }
+
+    /**
+     * Writers for each shard in shard order
+     */
+    IndexWriter[] getWriters() {
+        return writers;
+    }
+
+    public void commit() throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.commit();
+        }
+    }
+
+    /**
+     * Commit each shard with the user data, which is kept by later commits until replaced
+     */
+    public void commit(Map<String, String> userData) throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.setLiveCommitData(new HashMap<>(userData).entrySet());
+            writer.commit();
+        }
+    }
+
+    /**
+     * User data of each shard in shard order, as last committed or set
+     */
+    public List<Map<String, String>> getCommitData() {
+        List<Map<String, String>> data = new ArrayList<>(writers.length);
+        for (IndexWriter writer : writers) {
+            Map<String, String> userData = new HashMap<>();
+            Iterable<Map.Entry<String, String>> entries = writer.getLiveCommitData();
+            if (entries != null) {
+                for (Map.Entry<String, String> entry : entries) {
+                    userData.put(entry.getKey(), entry.getValue());
+                }
+            }
+            data.add(userData);
+        }
+        return data;
+    }
+
+    /**
+     * Merge each shard down to at most this many segments. Blocks until the merges finish.
+     */
+    public void forceMerge(int maxSegments) throws IOException {
+        long start = System.nanoTime();
+        for (IndexWriter writer : writers) {
+            writer.forceMerge(maxSegments);
+        }
+        logger.info("Merged to " + maxSegments + " segments per shard in "
+                        + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " seconds");
+    }
+
+    /**
+     * Commits and, once no one else is using the indexer, closes the index.
+     * The index is merged first if the profile asks for it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (refCount.decrementAndGet() > 0) {
+            commit();
+            return;
+        }
+        if (previous != null) {
+            logger.info("Skipped " + skipped.get() + " unchanged communications");
+            IOUtils.close(previous);
+        }
+        if (profile.forceMergeSegments > 0) {
+            forceMerge(profile.forceMergeSegments);
+        }
+        IOUtils.close(writers);
+        IOUtils.close(directories);
+    }
+}
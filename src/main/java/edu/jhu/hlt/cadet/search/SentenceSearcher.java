@@ -0,0 +1,670 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+/**
+ * Searches the sentence index and returns scored hits.
+ *
+ * Searches run against a snapshot of the index. Call {@link #maybeRefresh()}
+ * periodically to pick up documents committed to the index directory or, when
+ * created from a {@link SentenceIndexer}, documents added but not yet committed.
+ *
+ * The shards of a sharded index are searched concurrently on the executor and their
+ * top hits merged. Doc ids of hits are numbered across the shards of a snapshot.
+ *
+ * Open snapshots hold a reference to the searcher, so closing it while searches are
+ * in progress releases the index once the last of them finishes.
+ */
+public class SentenceSearcher implements AutoCloseable {
+    private static final Set<String> ID_FIELDS = new HashSet<>(Arrays.asList(
+                    ConcreteLuceneConstants.COMM_ID_FIELD, ConcreteLuceneConstants.SENT_UUID_FIELD));
+    private static final Set<String> TOKENIZATION_FIELDS = Collections.singleton(SentenceIndexer.TOKENIZATION_FIELD);
+
+    private final Directory[] directories;
+    private final SearcherManager[] managers;
+    private final ExecutorService executor;
+    private final Analyzer analyzer;
+    // one reference for the owner and one for each open snapshot
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // limits on parsed queries, 0 for none
+    private int maxClauses = 0;
+    private int maxExpansions = 0;
+
+    public SentenceSearcher(Path indexDir, boolean useLuceneTokenizer) throws IOException {
+        this(indexDir, useLuceneTokenizer, null);
+    }
+
+    /**
+     * @param executor  runs shard searches or null to search shards on the calling thread
+     */
+    public SentenceSearcher(Path indexDir, boolean useLuceneTokenizer, ExecutorService executor) throws IOException {
+        this(indexDir, useLuceneTokenizer, executor, false);
+    }
+
+    /**
+     * @param preload  read the index files into memory when opening them so first searches do not wait on disk
+     */
+    public SentenceSearcher(Path indexDir, boolean useLuceneTokenizer, ExecutorService executor, boolean preload)
+                    throws IOException {
+        this(indexDir, useLuceneTokenizer, executor, IndexProfile.DirectoryType.FS, preload);
+    }
+
+    /**
+     * @param directoryType  how the index files are read
+     */
+    public SentenceSearcher(Path indexDir, boolean useLuceneTokenizer, ExecutorService executor,
+                    IndexProfile.DirectoryType directoryType, boolean preload) throws IOException {
+        List<Path> paths = Shards.paths(indexDir);
+        this.directories = new Directory[paths.size()];
+        this.managers = new SearcherManager[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            directories[i] = IndexProfile.openDirectory(directoryType, paths.get(i));
+            if (preload && directoryType != IndexProfile.DirectoryType.RAM) {
+                preload(directories[i]);
+            }
+            managers[i] = new SearcherManager(directories[i], null);
+        }
+        this.executor = executor;
+        this.analyzer = Analyzers.create(useLuceneTokenizer);
+    }
+
+    /**
+     * Search the documents of an open indexer including those not yet committed
+     */
+    public SentenceSearcher(SentenceIndexer indexer, boolean useLuceneTokenizer) throws IOException {
+        this(indexer, useLuceneTokenizer, null);
+    }
+
+    public SentenceSearcher(SentenceIndexer indexer, boolean useLuceneTokenizer, ExecutorService executor)
+                    throws IOException {
+        this.directories = new Directory[0];
+        this.managers = new SearcherManager[indexer.getWriters().length];
+        for (int i = 0; i < managers.length; i++) {
+            managers[i] = new SearcherManager(indexer.getWriters()[i], null);
+        }
+        this.executor = executor;
+        this.analyzer = Analyzers.create(useLuceneTokenizer);
+    }
+
+    /**
+     * Memory mapped files are loaded as they are opened. Otherwise the files are read once to fill the page cache.
+     */
+    private static void preload(Directory directory) throws IOException {
+        if (directory instanceof MMapDirectory) {
+            ((MMapDirectory) directory).setPreload(true);
+            return;
+        }
+        byte[] buffer = new byte[1 << 16];
+        for (String file : directory.listAll()) {
+            try (IndexInput input = directory.openInput(file, IOContext.READONCE)) {
+                long remaining = input.length();
+                while (remaining > 0) {
+                    int n = (int) Math.min(buffer.length, remaining);
+                    input.readBytes(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+    }
+
+    public int getShardCount() {
+        return managers.length;
+    }
+
+    /**
+     * Limit the size of parsed queries
+     *
+     * @param maxClauses     most term and phrase clauses in a query, 0 for no limit
+     * @param maxExpansions  most terms a wildcard, prefix or range query expands to in a shard, 0 for no limit.
+     *                       Searches with larger expansions throw {@link ExpansionLimitException}.
+     */
+    public void setQueryLimits(int maxClauses, int maxExpansions) {
+        this.maxClauses = maxClauses;
+        this.maxExpansions = maxExpansions;
+    }
+
+    /**
+     * Parse a query against the text field. Query parsers are not thread safe so one is created per query.
+     *
+     * @throws QueryTooLargeException  if the query has more clauses than the limit
+     */
+    public Query parse(String rawQuery) throws ParseException {
+        QueryParser parser = new QueryParser(ConcreteLuceneConstants.TEXT_FIELD, analyzer);
+        Query query = parser.parse(rawQuery);
+        if (maxClauses > 0) {
+            int clauses = countClauses(query);
+            if (clauses > maxClauses) {
+                throw new QueryTooLargeException("Query has " + clauses + " clauses, more than the limit of " + maxClauses);
+            }
+        }
+        if (maxExpansions > 0) {
+            List<MultiTermQuery> multiTermQueries = new ArrayList<>();
+            collectMultiTermQueries(query, multiTermQueries);
+            for (MultiTermQuery multiTermQuery : multiTermQueries) {
+                multiTermQuery.setRewriteMethod(new LimitedRewrite(multiTermQuery.getRewriteMethod(), maxExpansions));
+            }
+        }
+        return query;
+    }
+
+    private static int countClauses(Query query) {
+        if (query instanceof BoostQuery) {
+            return countClauses(((BoostQuery) query).getQuery());
+        }
+        if (query instanceof BooleanQuery) {
+            int count = 0;
+            for (BooleanClause clause : (BooleanQuery) query) {
+                count += countClauses(clause.getQuery());
+            }
+            return count;
+        }
+        return 1;
+    }
+
+    private static void collectMultiTermQueries(Query query, List<MultiTermQuery> queries) {
+        if (query instanceof BoostQuery) {
+            collectMultiTermQueries(((BoostQuery) query).getQuery(), queries);
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                collectMultiTermQueries(clause.getQuery(), queries);
+            }
+        } else if (query instanceof MultiTermQuery) {
+            queries.add((MultiTermQuery) query);
+        }
+    }
+
+    /**
+     * Rejects a multi-term query expanding to more distinct terms than the limit
+     * and otherwise rewrites it with its original method
+     */
+    private static class LimitedRewrite extends MultiTermQuery.RewriteMethod {
+        private final MultiTermQuery.RewriteMethod original;
+        private final int limit;
+
+        LimitedRewrite(MultiTermQuery.RewriteMethod original, int limit) {
+            this.original = original;
+            this.limit = limit;
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+            Set<BytesRef> terms = new HashSet<>();
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Terms leafTerms = leaf.reader().terms(query.getField());
+                if (leafTerms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = getTermsEnum(query, leafTerms, new AttributeSource());
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    // segments share terms
+                    if (terms.add(BytesRef.deepCopyOf(term)) && terms.size() > limit) {
+                        throw new ExpansionLimitException("Query " + query
+                                        + " expands to more than the limit of " + limit + " terms");
+                    }
+                }
+            }
+            return original.rewrite(reader, query);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LimitedRewrite)) {
+                return false;
+            }
+            LimitedRewrite other = (LimitedRewrite) obj;
+            return limit == other.limit && original.equals(other.original);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * original.hashCode() + limit;
+        }
+    }
+
+    /**
+     * A query that parsed but is too large to run
+     */
+    public static class QueryTooLargeException extends ParseException {
+        private static final long serialVersionUID = 1L;
+
+        public QueryTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A wildcard, prefix or range query expanded to more terms than the limit while searching
+     */
+    public static class ExpansionLimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ExpansionLimitException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Get the current snapshot of the index. It must be closed after use.
+     */
+    public Snapshot acquire() throws IOException {
+        Snapshot snapshot = tryAcquire();
+        if (snapshot == null) {
+            throw new AlreadyClosedException("Searcher is closed");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the current snapshot of the index or null if the searcher has been closed
+     */
+    public Snapshot tryAcquire() throws IOException {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                return null;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        IndexSearcher[] searchers = new IndexSearcher[managers.length];
+        try {
+            for (int i = 0; i < managers.length; i++) {
+                searchers[i] = managers[i].acquire();
+            }
+        } catch (IOException e) {
+            release(searchers);
+            throw e;
+        }
+        return new Snapshot(this, searchers);
+    }
+
+    private void release(IndexSearcher[] searchers) throws IOException {
+        try {
+            for (int i = 0; i < managers.length; i++) {
+                if (searchers[i] != null) {
+                    managers[i].release(searchers[i]);
+                }
+            }
+        } finally {
+            decRef();
+        }
+    }
+
+    private void decRef() throws IOException {
+        if (refCount.decrementAndGet() == 0) {
+            IOUtils.close(managers);
+            IOUtils.close(directories);
+        }
+    }
+
+    /**
+     * Open a new snapshot if the index has changed. Searches in progress are not blocked.
+     *
+     * @return true if the latest changes are visible to new searches
+     */
+    public boolean maybeRefresh() throws IOException {
+        boolean current = true;
+        for (SearcherManager manager : managers) {
+            current &= manager.maybeRefresh();
+        }
+        return current;
+    }
+
+    /**
+     * A point in time view of the index. Doc ids are only valid within the snapshot that produced them.
+     *
+     * The index readers are released once the snapshot has been closed as many times as it was referenced.
+     */
+    public static class Snapshot implements AutoCloseable {
+        private final SentenceSearcher parent;
+        private final IndexSearcher[] searchers;
+        private final int[] docBases;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private Snapshot(SentenceSearcher parent, IndexSearcher[] searchers) {
+            this.parent = parent;
+            this.searchers = searchers;
+            this.docBases = new int[searchers.length];
+            for (int i = 1; i < searchers.length; i++) {
+                docBases[i] = docBases[i - 1] + searchers[i - 1].getIndexReader().maxDoc();
+            }
+        }
+
+        SentenceSearcher getSearcher() {
+            return parent;
+        }
+
+        /**
+         * Version of the index readers. It increases whenever any shard changes.
+         */
+        public long getVersion() {
+            long version = 0;
+            for (IndexSearcher searcher : searchers) {
+                version += ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            }
+            return version;
+        }
+
+        /**
+         * Get the top k hits, optionally starting after the last hit of a previous page
+         */
+        public TopDocs search(Query query, int k, ScoreDoc after) throws IOException {
+            return search(query, k, after, null);
+        }
+
+        /**
+         * Get the top k hits found before the deadline, which may be null for no limit
+         */
+        public TopDocs search(Query query, int k, ScoreDoc after, Deadline deadline) throws IOException {
+            return scatter(k, shard -> {
+                ScoreDoc shardAfter = toShard(after, shard);
+                if (deadline == null) {
+                    if (shardAfter == null) {
+                        return searchers[shard].search(query, k);
+                    }
+                    return searchers[shard].searchAfter(shardAfter, query, k);
+                }
+                int numHits = Math.min(k, Math.max(1, searchers[shard].getIndexReader().maxDoc()));
+                TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, shardAfter);
+                deadline.search(searchers[shard], query, collector);
+                return collector.topDocs();
+            });
+        }
+
+        /**
+         * Get the top k communications ranked by their best matching sentence.
+         * All sentences of a communication are in the same shard.
+         */
+        public TopDocs searchCommunications(Query query, int k, ScoreDoc after) throws IOException {
+            return searchCommunications(query, k, after, null);
+        }
+
+        /**
+         * Get the top k communications found before the deadline, which may be null for no limit
+         */
+        public TopDocs searchCommunications(Query query, int k, ScoreDoc after, Deadline deadline)
+                        throws IOException {
+            return scatter(k, shard -> {
+                ScoreDoc shardAfter = toShard(after, shard);
+                int capacity = k;
+                while (true) {
+                    CommunicationCollector collector = new CommunicationCollector(k, capacity, shardAfter);
+                    if (deadline == null) {
+                        searchers[shard].search(query, collector);
+                    } else {
+                        deadline.search(searchers[shard], query, collector);
+                    }
+                    // copies of communications on earlier pages took slots, so keep more and collect again
+                    if (!collector.isShort() || (deadline != null && deadline.isExceeded())) {
+                        return collector.topDocs();
+                    }
+                    capacity = k + collector.getRemovedCount();
+                }
+            });
+        }
+
+        /**
+         * Search each shard, the first on this thread and the rest on the executor, and merge the hits
+         */
+        private TopDocs scatter(int k, ShardSearch search) throws IOException {
+            if (searchers.length == 1) {
+                return search.search(0);
+            }
+            TopDocs[] shardHits = new TopDocs[searchers.length];
+            List<Future<TopDocs>> futures = new ArrayList<>(searchers.length);
+            if (parent.executor != null) {
+                for (int i = 1; i < searchers.length; i++) {
+                    final int shard = i;
+                    futures.add(parent.executor.submit(() -> search.search(shard)));
+                }
+            }
+            shardHits[0] = search.search(0);
+            for (int i = 1; i < searchers.length; i++) {
+                shardHits[i] = parent.executor != null ? get(futures.get(i - 1)) : search.search(i);
+            }
+            for (int i = 0; i < shardHits.length; i++) {
+                for (ScoreDoc hit : shardHits[i].scoreDocs) {
+                    hit.doc += docBases[i];
+                }
+            }
+            return TopDocs.merge(k, shardHits);
+        }
+
+        private static TopDocs get(Future<TopDocs> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while searching shards");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        /**
+         * Convert the last hit of a previous page to the shard. Hits with the same score are
+         * ordered by doc id, so all of them in earlier shards were on previous pages and none
+         * in later shards were.
+         */
+        private ScoreDoc toShard(ScoreDoc after, int shard) {
+            if (after == null || searchers.length == 1) {
+                return after;
+            }
+            int afterShard = ReaderUtil.subIndex(after.doc, docBases);
+            int doc;
+            if (shard < afterShard) {
+                doc = searchers[shard].getIndexReader().maxDoc() - 1;
+            } else if (shard > afterShard) {
+                doc = -1;
+            } else {
+                doc = after.doc - docBases[shard];
+            }
+            return new ScoreDoc(doc, after.score);
+        }
+
+        /**
+         * Get the communication and sentence ids of the hits.
+         *
+         * Hits are visited in doc id order so the ids are read column-wise from each
+         * segment's doc values. Documents written without doc values fall back to stored fields.
+         */
+        public HitIds loadIds(ScoreDoc[] hits) throws IOException {
+            HitIds ids = new HitIds(hits.length);
+            long[] order = new long[hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                order[i] = ((long) hits[i].doc << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int shard = 0;
+            LeafReaderContext leaf = null;
+            int leafStart = 0;
+            int leafEnd = 0;
+            SortedDocValues commValues = null;
+            BinaryDocValues sentenceValues = null;
+            for (long key : order) {
+                int doc = (int) (key >>> 32);
+                int i = (int) key;
+                if (leaf == null || doc >= leafEnd) {
+                    shard = ReaderUtil.subIndex(doc, docBases);
+                    List<LeafReaderContext> leaves = searchers[shard].getIndexReader().leaves();
+                    leaf = leaves.get(ReaderUtil.subIndex(doc - docBases[shard], leaves));
+                    leafStart = docBases[shard] + leaf.docBase;
+                    leafEnd = leafStart + leaf.reader().maxDoc();
+                    commValues = null;
+                    sentenceValues = null;
+                    if (hasDocValues(leaf, ConcreteLuceneConstants.COMM_ID_FIELD, DocValuesType.SORTED)
+                                    && hasDocValues(leaf, ConcreteLuceneConstants.SENT_UUID_FIELD, DocValuesType.BINARY)) {
+                        commValues = leaf.reader().getSortedDocValues(ConcreteLuceneConstants.COMM_ID_FIELD);
+                        sentenceValues = leaf.reader().getBinaryDocValues(ConcreteLuceneConstants.SENT_UUID_FIELD);
+                    }
+                }
+                int leafDoc = doc - leafStart;
+                int ord = commValues == null ? -1 : commValues.getOrd(leafDoc);
+                BytesRef sentenceId = ord < 0 ? null : sentenceValues.get(leafDoc);
+                // a segment merged from documents with and without doc values has gaps
+                if (sentenceId != null && sentenceId.length > 0) {
+                    ids.commIds[i] = commValues.lookupOrd(ord).utf8ToString();
+                    ids.sentenceIds[i] = sentenceId.utf8ToString();
+                } else {
+                    Document document = searchers[shard].doc(doc - docBases[shard], ID_FIELDS);
+                    ids.commIds[i] = document.get(ConcreteLuceneConstants.COMM_ID_FIELD);
+                    ids.sentenceIds[i] = document.get(ConcreteLuceneConstants.SENT_UUID_FIELD);
+                }
+            }
+            return ids;
+        }
+
+        /**
+         * Find where the query matched each hit. Entries are null for hits without a match in the text field.
+         */
+        public Snippets.Snippet[] loadSnippets(ScoreDoc[] hits, Query query, int maxLength) throws IOException {
+            Snippets.Snippet[] snippets = new Snippets.Snippet[hits.length];
+            SpanQuery spanQuery = Snippets.toSpanQuery(query);
+            if (spanQuery == null) {
+                return snippets;
+            }
+            SpanWeight[] weights = new SpanWeight[searchers.length];
+            for (int i = 0; i < hits.length; i++) {
+                int shard = ReaderUtil.subIndex(hits[i].doc, docBases);
+                if (weights[shard] == null) {
+                    SpanQuery rewritten = (SpanQuery) searchers[shard].rewrite(spanQuery);
+                    weights[shard] = rewritten.createWeight(searchers[shard], false);
+                }
+                IndexReader reader = searchers[shard].getIndexReader();
+                int doc = hits[i].doc - docBases[shard];
+                List<LeafReaderContext> leaves = reader.leaves();
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                Set<Integer> positions = Snippets.matchPositions(weights[shard], leaf, doc - leaf.docBase);
+                if (positions.isEmpty()) {
+                    continue;
+                }
+                Terms vector = reader.getTermVector(doc, ConcreteLuceneConstants.TEXT_FIELD);
+                String tokenizationId = reader.document(doc, TOKENIZATION_FIELDS).get(SentenceIndexer.TOKENIZATION_FIELD);
+                snippets[i] = Snippets.create(vector, positions, tokenizationId, maxLength);
+            }
+            return snippets;
+        }
+
+        /**
+         * Add a reference that must be closed, such as when keeping the snapshot for later pages
+         */
+        public void incRef() {
+            if (!tryIncRef()) {
+                throw new IllegalStateException("Snapshot is already closed");
+            }
+        }
+
+        /**
+         * Add a reference unless the snapshot has already been released
+         */
+        public boolean tryIncRef() {
+            int count;
+            do {
+                count = refCount.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!refCount.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (refCount.decrementAndGet() == 0) {
+                parent.release(searchers);
+            }
+        }
+    }
+
+    private interface ShardSearch {
+        TopDocs search(int shard) throws IOException;
+    }
+
+    private static boolean hasDocValues(LeafReaderContext leaf, String field, DocValuesType type) {
+        FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+        return info != null && info.getDocValuesType() == type;
+    }
+
+    /**
+     * Ids of hits in the same order as the hits
+     */
+    public static class HitIds {
+        public final String[] commIds;
+        public final String[] sentenceIds;
+
+        HitIds(int size) {
+            commIds = new String[size];
+            sentenceIds = new String[size];
+        }
+    }
+
+    /**
+     * Release the index once no snapshot is open
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            decRef();
+        }
+    }
+}
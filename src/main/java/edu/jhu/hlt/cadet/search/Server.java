@@ -7,15 +7,33 @@
 package edu.jhu.hlt.cadet.search;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
 import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
 import org.apache.thrift.TProcessorFactory;
 import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.server.AbstractNonblockingServer.AbstractNonblockingServerArgs;
+import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TNonblockingServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TNonblockingServerTransport;
@@ -30,24 +48,111 @@ import com.beust.jcommander.ParameterException;
 
 import edu.jhu.hlt.cadet.search.Indexer.Config;
 
-import edu.jhu.hlt.concrete.lucene.ConcreteLuceneSearcher;
-import edu.jhu.hlt.concrete.lucene.LuceneCommunicationSearcher;
-import edu.jhu.hlt.concrete.lucene.pretokenized.TokenizedCommunicationSearcher;
 import edu.jhu.hlt.concrete.search.SearchService;
 
 public class Server {
     private static Logger logger = LoggerFactory.getLogger(Server.class);
 
     private static final int DEFAULT_BATCH_SIZE = 250;
+    private static final long DEFAULT_REFRESH_MILLIS = 1000;
+    private static final long DEFAULT_COMMIT_SECONDS = 60;
+    private static final long DEFAULT_CURSOR_SECONDS = 60;
+    private static final int DEFAULT_MAX_CLAUSES = 1024;
+    private static final int DEFAULT_MAX_EXPANSIONS = 0;
+    private static final int DEFAULT_MAX_QUEUED = 100;
+    private static final int DEFAULT_KEEP_GENERATIONS = 3;
+    private static final long DEFAULT_REPLICATION_SECONDS = 10;
+    private static final Metrics.Counter indexSwaps = Metrics.global().counter("cadet_index_swaps_total",
+                    "Times the search service switched to another index generation");
 
     private final int port;
     private final String indexDir;
     private final String languageCode;
     private final boolean useLuceneTokenizer;
+    private Threading threading = new Threading();
+    private int cacheSize = 0;
+    private long refreshMillis = DEFAULT_REFRESH_MILLIS;
+    private long commitSeconds = DEFAULT_COMMIT_SECONDS;
+    private long cursorSeconds = DEFAULT_CURSOR_SECONDS;
+    private int snippetLength = Snippets.DEFAULT_MAX_LENGTH;
+    private long timeBudgetMillis = 0;
+    private int maxClauses = DEFAULT_MAX_CLAUSES;
+    private int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+    private int maxConcurrent = 0;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService searchPool;
+    private int metricsPort = 0;
+    private int replicationPort = 0;
+    private String primaryAddress;
+    private long replicationSeconds = DEFAULT_REPLICATION_SECONDS;
+    private int searchThreads = Runtime.getRuntime().availableProcessors();
+    private boolean preload = false;
+    private IndexProfile.DirectoryType searchDirectory = IndexProfile.DirectoryType.FS;
+    private Path warmUpQueries;
     private SearchService.Processor<SearchService.Iface> processor;
     protected TTransport transport;
     protected TCompactProtocol protocol;
 
+    /**
+     * Thrift server implementations that can be used to serve search requests
+     */
+    public enum Mode {
+        /** single selector thread that also runs every request */
+        NONBLOCKING,
+        /** selector threads hand requests to a bounded worker pool */
+        THREADED_SELECTOR,
+        /** single selector thread with a bounded worker pool */
+        HSHA;
+
+        public static Mode fromName(String name) {
+            return Mode.valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * A named index served alongside others
+     */
+    public static class Corpus {
+        public String name;
+        public String indexDir;
+        public String languageCode;
+        public boolean useLuceneTokenizer = false;
+
+        /**
+         * Parse name:dir[:lang[:lt]] where lt selects the Lucene tokenizer
+         */
+        public static Corpus parse(String spec) {
+            String[] parts = spec.split(":");
+            if (parts.length < 2 || parts.length > 4 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                throw new IllegalArgumentException("Expected name:dir[:lang[:lt]] but got " + spec);
+            }
+            Corpus corpus = new Corpus();
+            corpus.name = parts[0];
+            corpus.indexDir = parts[1];
+            if (parts.length > 2 && !parts[2].isEmpty()) {
+                corpus.languageCode = parts[2];
+            }
+            if (parts.length > 3) {
+                if (!parts[3].equals("lt")) {
+                    throw new IllegalArgumentException("Unknown corpus option " + parts[3] + " in " + spec);
+                }
+                corpus.useLuceneTokenizer = true;
+            }
+            return corpus;
+        }
+    }
+
+    /**
+     * Threading settings for the thrift server
+     */
+    public static class Threading {
+        public Mode mode = Mode.NONBLOCKING;
+        public int selectorThreads = 2;
+        public int workerThreads = Runtime.getRuntime().availableProcessors();
+        public int queueSize = 1000;
+    }
+
     public Server(int port, String indexDir, String languageCode, boolean useLuceneTokenizer) {
         this.port = port;
         this.indexDir = indexDir;
@@ -55,38 +160,434 @@ public class Server {
         this.useLuceneTokenizer = useLuceneTokenizer;
     }
 
+    public void setThreading(Threading threading) {
+        this.threading = threading;
+    }
+
+    /**
+     * Set the number of queries with cached results. Zero disables the cache.
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Set the number of threads searching the shards of a sharded index
+     */
+    public void setSearchThreads(int searchThreads) {
+        this.searchThreads = searchThreads;
+    }
+
+    /**
+     * Load the index files into memory when the searcher opens them
+     */
+    public void setPreload(boolean preload) {
+        this.preload = preload;
+    }
+
+    /**
+     * Set how the search service reads the index
+     */
+    public void setSearchDirectory(IndexProfile.DirectoryType searchDirectory) {
+        this.searchDirectory = searchDirectory;
+    }
+
+    /**
+     * Set a file of queries to run before accepting requests or null to skip warm-up
+     */
+    public void setWarmUpQueries(Path warmUpQueries) {
+        this.warmUpQueries = warmUpQueries;
+    }
+
+    /**
+     * Set the port to serve metrics on. Zero disables the metrics endpoint.
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Set the port to serve the index to replicas on. Zero disables replication.
+     */
+    public void setReplicationPort(int replicationPort) {
+        this.replicationPort = replicationPort;
+    }
+
+    /**
+     * Serve a replica of the index of another server, copying its changes periodically
+     *
+     * @param address          host:port the primary serves replication on
+     * @param intervalSeconds  how often the replica checks for a new revision
+     */
+    public void setPrimary(String address, long intervalSeconds) {
+        this.primaryAddress = address;
+        this.replicationSeconds = intervalSeconds;
+    }
+
+    /**
+     * Set how often the searcher checks for changes to the index
+     */
+    public void setRefreshMillis(long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Set how often documents added during live ingest are committed
+     */
+    public void setCommitSeconds(long commitSeconds) {
+        this.commitSeconds = commitSeconds;
+    }
+
+    /**
+     * Set how long an unused result cursor stays valid. Zero disables cursor paging.
+     */
+    public void setCursorSeconds(long cursorSeconds) {
+        this.cursorSeconds = cursorSeconds;
+    }
+
+    /**
+     * Set the characters of sentence text in which matches are returned for snippets
+     */
+    public void setSnippetLength(int snippetLength) {
+        this.snippetLength = snippetLength;
+    }
+
+    /**
+     * Set the time for finding the hits of a query before partial results are returned. Zero for no limit.
+     */
+    public void setTimeBudget(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Set the most clauses in a query and terms a wildcard expands to. Zero for no limit.
+     */
+    public void setQueryLimits(int maxClauses, int maxExpansions) {
+        this.maxClauses = maxClauses;
+        this.maxExpansions = maxExpansions;
+    }
+
+    /**
+     * Set the searches run at once for each corpus and the requests that may wait before
+     * new ones are rejected. Zero concurrent searches for no limit.
+     */
+    public void setConcurrencyLimit(int maxConcurrent, int maxQueued) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+    }
+
     public void indexOverNetwork(int batchSize, String fetchHost, int fetchPort) throws TException, IOException {
+        indexOverNetwork(createIndexConfig(batchSize), fetchHost, fetchPort);
+    }
+
+    public void indexOverNetwork(Config config, String fetchHost, int fetchPort) throws TException, IOException {
         Indexer indexer = new NetworkIndexer(fetchHost, fetchPort);
-        Config config = new Config();
-        config.batchSize = batchSize;
-        config.useLuceneTokenizer = this.useLuceneTokenizer;
-        config.indexDir = Paths.get(this.indexDir);
         indexer.index(config);
     }
 
     public void indexFromFilesystem(int batchSize, String directPath) throws TException, IOException {
+        indexFromFilesystem(createIndexConfig(batchSize), directPath);
+    }
+
+    public void indexFromFilesystem(Config config, String directPath) throws TException, IOException {
         Indexer indexer = new DirectIndexer(directPath);
+        indexer.index(config);
+    }
+
+    /**
+     * Create the settings for adding to the served index. Once generations are published,
+     * that is the current generation rather than the index directory itself.
+     */
+    public Config createIndexConfig(int batchSize) throws IOException {
         Config config = new Config();
         config.batchSize = batchSize;
         config.useLuceneTokenizer = this.useLuceneTokenizer;
-        config.indexDir = Paths.get(this.indexDir);
-        indexer.index(config);
+        config.indexDir = new IndexGenerations(Paths.get(this.indexDir)).current();
+        if (!config.indexDir.equals(Paths.get(this.indexDir))) {
+            logger.info("Adding to the served index generation " + config.indexDir);
+        }
+        return config;
     }
 
+    /**
+     * Build an index into a new generation while the current one is served, then publish it
+     * so running search services switch to it. A failed build is deleted.
+     *
+     * @param keep  number of generations kept for rollback, including the new one, at least 2
+     */
+    public void indexNewGeneration(Config config, Indexer source, int keep) throws IOException, TException {
+        // checked before a long build rather than when publishing it
+        IndexGenerations.checkKeep(keep);
+        IndexGenerations generations = new IndexGenerations(Paths.get(indexDir));
+        config.indexDir = generations.create();
+        logger.info("Building index generation " + config.indexDir);
+        try {
+            source.index(config);
+        } catch (IOException | TException | RuntimeException e) {
+            IOUtils.rm(config.indexDir);
+            throw e;
+        }
+        generations.publish(config.indexDir, keep);
+    }
+
+    /**
+     * Serve the index, switching to new generations as they are published
+     */
     public void start() throws IOException {
-        LuceneCommunicationSearcher searcher = null;
-        if (useLuceneTokenizer) {
-            searcher = new ConcreteLuceneSearcher(Paths.get(indexDir));
-        } else {
-            searcher = new TokenizedCommunicationSearcher(Paths.get(indexDir));
+        IndexReplica replica = null;
+        if (primaryAddress != null) {
+            // the index must be copied before it can be opened
+            replica = IndexReplica.parse(Paths.get(indexDir), primaryAddress);
+            replica.sync();
         }
-        processor = new SearchService.Processor<>(new LuceneSearchHandler(languageCode, searcher));
+        IndexGenerations generations = new IndexGenerations(Paths.get(indexDir));
+        Path served = generations.current();
+        LuceneSearchHandler handler = createHandler(null, languageCode, openSearcher(served, useLuceneTokenizer),
+                        createCache());
+        scheduleRefresh(handler, generations, served, useLuceneTokenizer);
+        if (replica != null) {
+            scheduleReplication(handler, replica);
+        }
+        if (replicationPort > 0) {
+            new ReplicationServer(replicationPort, Paths.get(indexDir)).start();
+        }
+        start(handler);
+    }
+
+    private SentenceSearcher openSearcher(Path dir, boolean useLuceneTokenizer) throws IOException {
+        int shards = Math.max(1, Shards.count(dir));
+        return new SentenceSearcher(dir, useLuceneTokenizer, getSearchPool(shards), searchDirectory, preload);
+    }
+
+    /**
+     * Start the search service while adding documents from the source in the background.
+     *
+     * Documents become searchable at the next refresh without being committed.
+     * Commits run periodically on another thread so searches never wait for them.
+     */
+    public void startLive(Config config, Indexer source) throws IOException {
+        if (config.profile.forceMergeSegments > 0) {
+            // merging a served index at shutdown would only delay the shutdown
+            logger.warn("Ignoring the force merge setting in live mode");
+            config.profile.forceMergeSegments = 0;
+        }
+        SentenceIndexer indexer = new SentenceIndexer(config);
+        config.indexer = indexer;
+        getScheduler().scheduleWithFixedDelay(() -> {
+            try {
+                indexer.commit();
+            } catch (IOException e) {
+                logger.error("Failed to commit the index", e);
+            }
+        }, commitSeconds, commitSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                indexer.close();
+            } catch (IOException e) {
+                logger.error("Failed to close the index", e);
+            }
+        }));
+
+        if (replicationPort > 0) {
+            new ReplicationServer(replicationPort, indexer).start();
+        }
+        start(new SentenceSearcher(indexer, useLuceneTokenizer, getSearchPool(indexer.getWriters().length)));
+
+        Thread ingest = new Thread(() -> {
+            try {
+                source.index(config);
+                logger.info("Live ingest finished");
+            } catch (TException | IOException e) {
+                logger.error("Live ingest failed", e);
+            }
+        }, "live-ingest");
+        ingest.start();
+    }
+
+    public void start(SentenceSearcher searcher) throws IOException {
+        scheduleRefresh(searcher);
+        start(createHandler(null, languageCode, searcher, createCache()));
+    }
+
+    /**
+     * Start one search service for several corpora.
+     *
+     * The corpora share the shard search threads, the refresh thread and the result cache.
+     * Each corpus switches to new generations of its index as they are published.
+     */
+    public void startCorpora(List<Corpus> corpora) throws IOException {
+        start(createRouter(corpora));
+    }
+
+    CorpusRouter createRouter(List<Corpus> corpora) throws IOException {
+        SearchResultCache cache = createCache();
+        Map<String, LuceneSearchHandler> handlers = new LinkedHashMap<>();
+        for (Corpus corpus : corpora) {
+            if (handlers.containsKey(corpus.name)) {
+                throw new IOException("Corpus " + corpus.name + " is listed twice");
+            }
+            IndexGenerations generations = new IndexGenerations(Paths.get(corpus.indexDir));
+            Path served = generations.current();
+            LuceneSearchHandler handler = createHandler(corpus.name, corpus.languageCode,
+                            openSearcher(served, corpus.useLuceneTokenizer), cache);
+            scheduleRefresh(handler, generations, served, corpus.useLuceneTokenizer);
+            handlers.put(corpus.name, handler);
+            logger.info("Serving corpus " + corpus.name + " from " + served);
+        }
+        return new CorpusRouter(handlers);
+    }
+
+    private LuceneSearchHandler createHandler(String corpus, String languageCode, SentenceSearcher searcher,
+                    SearchResultCache cache) {
+        LuceneSearchHandler handler = new LuceneSearchHandler(corpus, languageCode, searcher, cache);
+        handler.setSnippetLength(snippetLength);
+        handler.setTimeBudget(timeBudgetMillis);
+        searcher.setQueryLimits(maxClauses, maxExpansions);
+        if (maxConcurrent > 0) {
+            handler.setConcurrencyLimit(maxConcurrent, maxQueued);
+        }
+        if (cursorSeconds > 0) {
+            CursorManager cursors = new CursorManager(cursorSeconds);
+            long pruneSeconds = Math.max(1, cursorSeconds / 4);
+            getScheduler().scheduleWithFixedDelay(() -> {
+                try {
+                    cursors.prune();
+                } catch (IOException e) {
+                    logger.warn("Failed to release expired cursors", e);
+                }
+            }, pruneSeconds, pruneSeconds, TimeUnit.SECONDS);
+            handler.setCursorManager(cursors);
+        }
+        return handler;
+    }
+
+    /**
+     * Refresh the served index and switch to the current generation when another is published or rolled back to
+     */
+    private void scheduleRefresh(LuceneSearchHandler handler, IndexGenerations generations, Path served,
+                    boolean useLuceneTokenizer) {
+        AtomicReference<Path> seen = new AtomicReference<>(served);
+        getScheduler().scheduleWithFixedDelay(() -> {
+            try {
+                Path latest = generations.current();
+                if (!latest.equals(seen.get())) {
+                    // a generation that fails to open is not tried again until another is published
+                    seen.set(latest);
+                    swap(handler, latest, useLuceneTokenizer);
+                } else {
+                    handler.getSearcher().maybeRefresh();
+                }
+            } catch (IOException | TException | RuntimeException e) {
+                logger.warn("Failed to refresh the index searcher", e);
+            }
+        }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Copy new revisions from the primary and refresh the searcher once they are in place.
+     * A revision of another index is copied into a new generation of the replica, which the
+     * generation watcher switches to.
+     */
+    private void scheduleReplication(LuceneSearchHandler handler, IndexReplica replica) {
+        getScheduler().scheduleWithFixedDelay(() -> {
+            try {
+                if (replica.sync() > 0) {
+                    handler.getSearcher().maybeRefresh();
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to replicate the index", e);
+            }
+        }, replicationSeconds, replicationSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Open and warm up an index, then send new searches to it. Searches in progress
+     * finish on the old index, which is closed once they are done.
+     */
+    private void swap(LuceneSearchHandler handler, Path generation, boolean useLuceneTokenizer)
+                    throws IOException, TException {
+        long start = System.nanoTime();
+        logger.info("Switching to index " + generation);
+        SentenceSearcher next = openSearcher(generation, useLuceneTokenizer);
+        try {
+            next.setQueryLimits(maxClauses, maxExpansions);
+            if (warmUpQueries != null) {
+                new WarmUpHandler(new LuceneSearchHandler(languageCode, next))
+                                .warmUp(WarmUpHandler.readQueries(warmUpQueries));
+            }
+        } catch (IOException | TException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+        handler.swapSearcher(next).close();
+        indexSwaps.inc();
+        logger.info("Switched to index " + generation + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void scheduleRefresh(SentenceSearcher searcher) {
+        getScheduler().scheduleWithFixedDelay(() -> {
+            try {
+                searcher.maybeRefresh();
+            } catch (IOException e) {
+                logger.warn("Failed to refresh the index searcher", e);
+            }
+        }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private SearchResultCache createCache() {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        SearchResultCache cache = new SearchResultCache(cacheSize);
+        Metrics.global().counter("cadet_cache_hits_total", "Searches answered from the cache", cache::getHits);
+        Metrics.global().counter("cadet_cache_misses_total", "Searches not found in the cache", cache::getMisses);
+        return cache;
+    }
+
+    /**
+     * Start a broker that sends queries to other search servers
+     *
+     * @param addresses      host:port of each backend
+     * @param timeoutMillis  how long to wait for the backends before returning partial results
+     */
+    public void startBroker(List<String> addresses, long timeoutMillis) throws IOException {
+        List<SearchBroker.Backend> backends = new ArrayList<>();
+        for (String address : addresses) {
+            backends.add(SearchBroker.Backend.parse(address, (int) timeoutMillis));
+        }
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "broker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Brokering searches to " + backends);
+        start(new SearchBroker(backends, executor, timeoutMillis));
+    }
+
+    /**
+     * Serve the handler on the port. With warm-up queries set, the port opens once they have run.
+     */
+    public void start(SearchService.Iface handler) throws IOException {
+        if (metricsPort > 0) {
+            new MetricsServer(metricsPort, Metrics.global()).start();
+        }
+        List<String> queries = warmUpQueries == null ? null : WarmUpHandler.readQueries(warmUpQueries);
+        WarmUpHandler warmUpHandler = new WarmUpHandler(handler);
+        Metrics.global().gauge("cadet_warmup_milliseconds", "Time taken to warm up the search service",
+                        warmUpHandler::getWarmUpMillis);
+        processor = new SearchService.Processor<>(warmUpHandler);
         Runnable instance = new Runnable() {
             @Override
             public void run() {
                 try {
+                    if (queries == null) {
+                        warmUpHandler.skipWarmUp();
+                    } else {
+                        warmUpHandler.warmUp(queries);
+                    }
                     launch(processor);
-                } catch (TTransportException e) {
+                } catch (TException e) {
                     logger.error("Failed to start server", e);
                 }
             }
@@ -94,10 +595,40 @@ public class Server {
         new Thread(instance).start();
     }
 
+    /**
+     * Get the pool for searching shards, shared by all searchers of the server
+     */
+    private synchronized ExecutorService getSearchPool(int shards) {
+        if (shards <= 1 || searchThreads <= 1) {
+            return searchPool;
+        }
+        logger.info("Searching " + shards + " shards with " + searchThreads + " threads");
+        if (searchPool == null) {
+            searchPool = Executors.newFixedThreadPool(searchThreads, r -> {
+                Thread thread = new Thread(r, "shard-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return searchPool;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "index-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
     static public boolean indexExists(String dirName) {
         boolean exists = false;
         try {
-            Directory dir = FSDirectory.open(Paths.get(dirName));
+            Path served = new IndexGenerations(Paths.get(dirName)).current();
+            Directory dir = FSDirectory.open(Shards.paths(served).get(0));
             exists = DirectoryReader.indexExists(dir);
             dir.close();
         } catch (IOException e) {
@@ -108,24 +639,55 @@ public class Server {
 
     public void launch(SearchService.Processor<SearchService.Iface> processor)
                     throws TTransportException {
+        TServer server = createServer(processor);
+        logger.info("Starting lucene search on port " + port + " using " + threading.mode + " server");
+        server.serve();
+    }
+
+    public TServer createServer(TProcessor processor) throws TTransportException {
         TNonblockingServerTransport transport = new TNonblockingServerSocket(port);
-        TNonblockingServer.Args serverArgs = new TNonblockingServer.Args(transport);
-        serverArgs = serverArgs.processorFactory(new TProcessorFactory(processor));
+        switch (threading.mode) {
+            case THREADED_SELECTOR:
+                TThreadedSelectorServer.Args selectorArgs = new TThreadedSelectorServer.Args(transport);
+                selectorArgs.selectorThreads(threading.selectorThreads);
+                selectorArgs.acceptQueueSizePerThread(threading.queueSize);
+                selectorArgs.executorService(createWorkerPool());
+                return new TThreadedSelectorServer(configure(selectorArgs, processor));
+            case HSHA:
+                THsHaServer.Args hshaArgs = new THsHaServer.Args(transport);
+                hshaArgs.executorService(createWorkerPool());
+                return new THsHaServer(configure(hshaArgs, processor));
+            default:
+                TNonblockingServer.Args serverArgs = new TNonblockingServer.Args(transport);
+                return new TNonblockingServer(configure(serverArgs, processor));
+        }
+    }
+
+    private <T extends AbstractNonblockingServerArgs<T>> T configure(T serverArgs, TProcessor processor) {
+        serverArgs = serverArgs.processorFactory(new TProcessorFactory(new TimedProcessor(processor)));
         serverArgs = serverArgs.protocolFactory(new TCompactProtocol.Factory());
         serverArgs = serverArgs.transportFactory(new TFramedTransport.Factory(Integer.MAX_VALUE));
         serverArgs.maxReadBufferBytes = Long.MAX_VALUE;
-        TNonblockingServer server = new TNonblockingServer(serverArgs);
-        logger.info("Starting lucene search on port " + port);
-        server.serve();
+        return serverArgs;
+    }
+
+    // requests beyond the queue size are rejected and the connection closed
+    private ExecutorService createWorkerPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threading.workerThreads, threading.workerThreads,
+                        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threading.queueSize));
+        Metrics.global().gauge("cadet_server_queue_depth", "Requests waiting for a worker thread",
+                        () -> pool.getQueue().size());
+        Metrics.global().gauge("cadet_server_active_workers", "Worker threads handling a request",
+                        pool::getActiveCount);
+        return pool;
     }
 
     private static class Opts {
         @Parameter(names = {"--port", "-p"}, description = "The port the server will listen on.")
         int port = 8077;
 
-        @Parameter(names = {"--dir", "-d"}, required = true,
-                        description = "Path to the directory for the index.")
-        String indexDir = "/tmp/";
+        @Parameter(names = {"--dir", "-d"}, description = "Path to the directory for the index.")
+        String indexDir;
 
         @Parameter(names = {"--language", "-l"},
                         description = "The ISO 639-2/T three letter language code for corpus.")
@@ -140,12 +702,171 @@ public class Server {
         @Parameter(names = {"--direct"}, description = "Direct ingest from a zip file or directory")
         String directIngestPath;
 
+        @Parameter(names = {"--mmap"},
+                        description = "Memory map direct ingest files. Also supports tar files. Zip entries should be stored uncompressed.")
+        boolean useMemoryMapping = false;
+
         @Parameter(names = {"--batch"}, description = "Batch size for indexing from fetch service.")
         int batchSize = Server.DEFAULT_BATCH_SIZE;
 
+        @Parameter(names = {"--fetch-threads"}, description = "Number of concurrent connections to the fetch service.")
+        int fetchThreads = 1;
+
+        @Parameter(names = {"--index-threads"},
+                        description = "Number of threads decoding communications and adding them to the index.")
+        int indexThreads = 1;
+
+        @Parameter(names = {"--ingest-queue-size"}, description = "Maximum number of communications waiting to be indexed.")
+        int ingestQueueSize = 1000;
+
+        @Parameter(names = {"--resume"},
+                        description = "Continue an ingest from a fetch service at the checkpoint saved in the index.")
+        boolean resume = false;
+
+        @Parameter(names = {"--checkpoint-batches"},
+                        description = "Batches between commits that save an ingest checkpoint. Use 0 to only save one at the end.")
+        int checkpointBatches = 20;
+
+        @Parameter(names = {"--fetch-retries"},
+                        description = "Times a request to the fetch service is retried after a connection error.")
+        int fetchRetries = 3;
+
+        @Parameter(names = {"--index-profile"},
+                        description = "Index writer settings: default or throughput for large builds.")
+        String indexProfile = "default";
+
+        @Parameter(names = {"--ram-buffer"},
+                        description = "Memory in MB used to buffer documents while indexing. (default is set by the profile)")
+        double ramBufferMB = 0;
+
+        @Parameter(names = {"--merge-threads"},
+                        description = "Threads merging segments while indexing. (default is set by the profile)")
+        int mergeThreads = 0;
+
+        @Parameter(names = {"--force-merge"},
+                        description = "Merge the index down to this many segments after building it. (default is no merge)")
+        int forceMergeSegments = 0;
+
+        @Parameter(names = {"--search-directory"},
+                        description = "How search reads the index: fs, mmap, nio or ram to copy a small index into memory.")
+        String searchDirectory = "fs";
+
+        @Parameter(names = {"--doc-values"},
+                        description = "Store communication and sentence ids as doc values for faster search results.")
+        boolean useDocValues = false;
+
+        @Parameter(names = {"--skip-unchanged"},
+                        description = "When rebuilding, skip communications already indexed with the same sentences.")
+        boolean skipUnchanged = false;
+
         @Parameter(names = {"--lt"}, description = "Use Lucene tokenizer rather than tokenization in concrete.")
         boolean useLuceneTokenizer = false;
 
+        @Parameter(names = {"--server-mode"},
+                        description = "Thrift server: nonblocking, threaded-selector or hsha.")
+        String serverMode = "nonblocking";
+
+        @Parameter(names = {"--selector-threads"}, description = "Number of selector threads for threaded-selector mode.")
+        int selectorThreads = 2;
+
+        @Parameter(names = {"--worker-threads"}, description = "Number of worker threads for threaded-selector and hsha modes.")
+        int workerThreads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--queue-size"}, description = "Maximum number of requests waiting for a worker thread.")
+        int queueSize = 1000;
+
+        @Parameter(names = {"--cache-size"}, description = "Number of queries to cache results for. Use 0 to disable.")
+        int cacheSize = 1000;
+
+        @Parameter(names = {"--shards"},
+                        description = "Number of shards when building a new index. Communications are split by id.")
+        int shards = 1;
+
+        @Parameter(names = {"--search-threads"}, description = "Number of threads searching the shards of a sharded index.")
+        int searchThreads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--metrics-port"},
+                        description = "Serve metrics for Prometheus at /metrics on this port. (default is no metrics endpoint)")
+        int metricsPort = 0;
+
+        @Parameter(names = {"--preload"}, description = "Load the index into memory when search starts.")
+        boolean preload = false;
+
+        @Parameter(names = {"--warmup-queries"},
+                        description = "File of queries, one per line, to run before search accepts requests.")
+        String warmUpQueries;
+
+        @Parameter(names = {"--new-generation"},
+                        description = "Build the index in a new generation directory and switch running search services to it when done.")
+        boolean newGeneration = false;
+
+        @Parameter(names = {"--keep-generations"},
+                        description = "Number of index generations kept for rollback, including the served one. At least 2.")
+        int keepGenerations = DEFAULT_KEEP_GENERATIONS;
+
+        @Parameter(names = {"--rollback"},
+                        description = "Switch the index back to the previous generation and exit.")
+        boolean rollback = false;
+
+        @Parameter(names = {"--replication-port"},
+                        description = "Serve the index to replicas on this port. (default is no replication)")
+        int replicationPort = 0;
+
+        @Parameter(names = {"--replicate-from"},
+                        description = "Search a replica of the index served by the host:port of another server's --replication-port.")
+        String primaryAddress;
+
+        @Parameter(names = {"--replication-interval"}, description = "How often in seconds a replica copies index changes.")
+        long replicationSeconds = DEFAULT_REPLICATION_SECONDS;
+
+        @Parameter(names = {"--live"},
+                        description = "Run search while building the index. New documents become searchable as they are added.")
+        boolean live = false;
+
+        @Parameter(names = {"--refresh-ms"}, description = "How often in milliseconds search checks for index changes.")
+        long refreshMillis = DEFAULT_REFRESH_MILLIS;
+
+        @Parameter(names = {"--cursor-timeout"},
+                        description = "Seconds an unused result cursor stays valid. Use 0 to disable cursor paging.")
+        long cursorSeconds = DEFAULT_CURSOR_SECONDS;
+
+        @Parameter(names = {"--snippet-length"},
+                        description = "Characters of a sentence in which matches are returned when a query asks for snippets.")
+        int snippetLength = Snippets.DEFAULT_MAX_LENGTH;
+
+        @Parameter(names = {"--time-budget-ms"},
+                        description = "Milliseconds to find the hits of a query before returning partial results. (default is no limit)")
+        long timeBudgetMillis = 0;
+
+        @Parameter(names = {"--max-clauses"}, description = "Most clauses allowed in a query. Use 0 for no limit.")
+        int maxClauses = DEFAULT_MAX_CLAUSES;
+
+        @Parameter(names = {"--max-expansions"},
+                        description = "Most terms a wildcard, prefix or range query may expand to before it is rejected. (default is no limit)")
+        int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+
+        @Parameter(names = {"--max-concurrent"},
+                        description = "Searches run at once for each corpus. (default is no limit)")
+        int maxConcurrent = 0;
+
+        @Parameter(names = {"--max-queued"},
+                        description = "Searches that may wait when --max-concurrent are running before new ones are rejected.")
+        int maxQueued = DEFAULT_MAX_QUEUED;
+
+        @Parameter(names = {"--commit-interval"}, description = "How often in seconds live ingest commits the index.")
+        long commitSeconds = DEFAULT_COMMIT_SECONDS;
+
+        @Parameter(names = {"--corpus"}, description = "A corpus to search given as name:dir[:lang[:lt]]. "
+                        + "Repeat to serve several corpora. Queries are routed by their corpus field.")
+        List<String> corpora = new ArrayList<>();
+
+        @Parameter(names = {"--backends"},
+                        description = "Comma separated host:port of search servers to broker queries to.")
+        List<String> backends;
+
+        @Parameter(names = {"--backend-timeout-ms"}, description = "How long in milliseconds the broker waits for backends.")
+        long backendTimeoutMillis = 5000;
+
         @Parameter(names = {"--build-index", "-b"},
                         description = "Build index pulling documents from the fetch service. (default is to not build the index)")
         boolean buildIndex = false;
@@ -159,6 +880,66 @@ public class Server {
         boolean help;
     }
 
+    private static Threading createThreading(Opts opts) {
+        Threading threading = new Threading();
+        try {
+            threading.mode = Mode.fromName(opts.serverMode);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown server mode: " + opts.serverMode);
+            System.exit(-1);
+        }
+        if (opts.selectorThreads <= 0 || opts.workerThreads <= 0 || opts.queueSize <= 0) {
+            System.err.println("--selector-threads, --worker-threads and --queue-size must be greater than 0");
+            System.exit(-1);
+        }
+        threading.selectorThreads = opts.selectorThreads;
+        threading.workerThreads = opts.workerThreads;
+        threading.queueSize = opts.queueSize;
+        return threading;
+    }
+
+    private static IndexProfile createIndexProfile(Opts opts) {
+        IndexProfile profile = null;
+        try {
+            profile = IndexProfile.fromName(opts.indexProfile);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+        if (opts.ramBufferMB > 0) {
+            profile.ramBufferMB = opts.ramBufferMB;
+        }
+        if (opts.mergeThreads > 0) {
+            profile.mergeThreads = opts.mergeThreads;
+        }
+        profile.forceMergeSegments = opts.forceMergeSegments;
+        logger.info("Index profile: " + profile);
+        return profile;
+    }
+
+    private static void configureSearch(Server server, Opts opts) {
+        server.setThreading(createThreading(opts));
+        server.setCacheSize(opts.cacheSize);
+        server.setRefreshMillis(opts.refreshMillis);
+        server.setMetricsPort(opts.metricsPort);
+        server.setSearchThreads(opts.searchThreads);
+        server.setCursorSeconds(opts.cursorSeconds);
+        server.setSnippetLength(opts.snippetLength);
+        server.setTimeBudget(opts.timeBudgetMillis);
+        server.setQueryLimits(opts.maxClauses, opts.maxExpansions);
+        server.setConcurrencyLimit(opts.maxConcurrent, opts.maxQueued);
+        server.setPreload(opts.preload);
+        try {
+            server.setSearchDirectory(IndexProfile.DirectoryType.fromName(opts.searchDirectory));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown search directory: " + opts.searchDirectory);
+            System.exit(-1);
+        }
+        if (opts.warmUpQueries != null) {
+            server.setWarmUpQueries(Paths.get(opts.warmUpQueries));
+        }
+    }
+
     public static void main(String[] args) {
         Opts opts = new Opts();
         JCommander jc = null;
@@ -174,25 +955,151 @@ public class Server {
             return;
         }
 
+        if (opts.backends != null) {
+            Server server = new Server(opts.port, null, opts.languageCode, false);
+            server.setThreading(createThreading(opts));
+            server.setMetricsPort(opts.metricsPort);
+            try {
+                server.startBroker(opts.backends, opts.backendTimeoutMillis);
+            } catch (IOException e) {
+                System.err.println("Unable to start the broker: " + e.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (!opts.corpora.isEmpty()) {
+            List<Corpus> corpora = new ArrayList<>();
+            try {
+                for (String spec : opts.corpora) {
+                    Corpus corpus = Corpus.parse(spec);
+                    if (!Server.indexExists(corpus.indexDir)) {
+                        System.err.println("The index for corpus " + corpus.name + " does not exist");
+                        System.exit(-1);
+                    }
+                    corpora.add(corpus);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(-1);
+            }
+            Server server = new Server(opts.port, null, null, false);
+            configureSearch(server, opts);
+            try {
+                server.startCorpora(corpora);
+            } catch (IOException e) {
+                System.err.println("Unable to use search index: " + e.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (opts.indexDir == null) {
+            System.err.println("The --dir option is required");
+            System.exit(-1);
+        }
+
+        if (opts.rollback) {
+            try {
+                Path served = new IndexGenerations(Paths.get(opts.indexDir)).rollback();
+                System.out.println("Search services will switch to " + served);
+            } catch (IOException e) {
+                System.err.println("Unable to roll back: " + e.getMessage());
+                System.exit(-1);
+            }
+            return;
+        }
+
         // index, run, or both should be selected
         if (!opts.runSearch && !opts.buildIndex) {
             System.err.println("You must select with the -r run option or -b build index");
             System.exit(-1);
         }
 
+        if (opts.live && !(opts.runSearch && opts.buildIndex)) {
+            System.err.println("Live mode requires both the -r run option and -b build index");
+            System.exit(-1);
+        }
+
+        if (opts.newGeneration && (opts.live || !opts.buildIndex)) {
+            System.err.println("A new generation requires the -b build index option without live mode");
+            System.exit(-1);
+        }
+
+        if (opts.keepGenerations < IndexGenerations.MIN_KEEP) {
+            System.err.println("--keep-generations must be at least " + IndexGenerations.MIN_KEEP
+                            + ", the served generation and the one to roll back to");
+            System.exit(-1);
+        }
+
+        if (opts.primaryAddress != null && (opts.buildIndex || !opts.runSearch)) {
+            System.err.println("A replica requires the -r run option without -b build index");
+            System.exit(-1);
+        }
+
         Server server = new Server(opts.port, opts.indexDir, opts.languageCode, opts.useLuceneTokenizer);
+        configureSearch(server, opts);
+        server.setReplicationPort(opts.replicationPort);
+        if (opts.primaryAddress != null) {
+            try {
+                IndexReplica.parse(Paths.get(opts.indexDir), opts.primaryAddress);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(-1);
+            }
+            server.setPrimary(opts.primaryAddress, opts.replicationSeconds);
+        }
+        server.setCommitSeconds(opts.commitSeconds);
         if (opts.buildIndex) {
+            Config config = null;
             try {
-                if (opts.fetchPort > 0) {
-                    // build index from a fetch service
-                    server.indexOverNetwork(opts.batchSize, opts.fetchHost, opts.fetchPort);
-                } else if (opts.directIngestPath != null) {
-                    // build index from a zip file or directory
-                    server.indexFromFilesystem(opts.batchSize, opts.directIngestPath);
-                } else {
-                    System.err.println("Either fetch or direct ingest params must be set");
+                config = server.createIndexConfig(opts.batchSize);
+            } catch (IOException e) {
+                System.err.println("Unable to read the index generations: " + e.getMessage());
+                System.exit(-1);
+            }
+            config.fetchThreads = opts.fetchThreads;
+            config.indexThreads = opts.indexThreads;
+            config.queueSize = opts.ingestQueueSize;
+            config.profile = createIndexProfile(opts);
+            config.useMemoryMapping = opts.useMemoryMapping;
+            config.useDocValues = opts.useDocValues;
+            config.skipUnchanged = opts.skipUnchanged;
+            config.shards = opts.shards;
+            config.resume = opts.resume;
+            config.checkpointBatches = opts.checkpointBatches;
+            config.fetchRetries = opts.fetchRetries;
+            Indexer source = null;
+            if (opts.fetchPort > 0) {
+                // build index from a fetch service
+                source = new NetworkIndexer(opts.fetchHost, opts.fetchPort);
+            } else if (opts.directIngestPath != null) {
+                // build index from a zip file or directory
+                source = new DirectIndexer(opts.directIngestPath);
+                if (opts.resume) {
+                    logger.warn("Ignoring --resume, which only applies to ingest from a fetch service");
+                }
+            } else {
+                System.err.println("Either fetch or direct ingest params must be set");
+                System.exit(-1);
+            }
+
+            if (opts.live) {
+                try {
+                    server.startLive(config, source);
+                } catch (IOException e) {
+                    System.err.println("Unable to open search index: " + e.getMessage());
                     System.exit(-1);
                 }
+                return;
+            }
+
+            try {
+                if (opts.newGeneration) {
+                    server.indexNewGeneration(config, source, opts.keepGenerations);
+                } else {
+                    source.index(config);
+                }
             } catch (TException | IOException e) {
                 System.err.println("Unable build search index: " + e.getMessage());
                 System.exit(-1);
@@ -200,7 +1107,8 @@ public class Server {
         }
 
         if (opts.runSearch) {
-            if (!Server.indexExists(opts.indexDir)) {
+            // a replica copies its index when it starts
+            if (opts.primaryAddress == null && !Server.indexExists(opts.indexDir)) {
                 System.err.println("Cannot run search as the index does not exist");
                 System.exit(-1);
             }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Layout of a sharded index.
+ *
+ * A sharded index directory holds sub-indexes named shard-0, shard-1, ... and
+ * each communication is stored in the shard picked by the hash of its id.
+ * An unsharded index is a single shard stored directly in the index directory.
+ */
+public class Shards {
+    private static final String PREFIX = "shard-";
+
+    /**
+     * Get the shard a communication belongs to
+     */
+    public static int forId(String commId, int numShards) {
+        return Math.floorMod(commId.hashCode(), numShards);
+    }
+
+    public static Path path(Path indexDir, int shard) {
+        return indexDir.resolve(name(shard));
+    }
+
+    /**
+     * Get the name of a shard directory
+     */
+    static String name(int shard) {
+        return PREFIX + shard;
+    }
+
+    /**
+     * Get the number of shard directories in an index directory, 0 if it is not sharded
+     */
+    public static int count(Path indexDir) {
+        int count = 0;
+        while (Files.isDirectory(path(indexDir, count))) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the directories of the shards of an existing index
+     */
+    public static List<Path> paths(Path indexDir) {
+        int count = count(indexDir);
+        if (count == 0) {
+            return Collections.singletonList(indexDir);
+        }
+        List<Path> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(path(indexDir, i));
+        }
+        return paths;
+    }
+
+    /**
+     * Get the directories to write to. An existing index keeps its number of shards.
+     *
+     * @param numShards  number of shards requested, 1 for the existing layout or an unsharded index
+     * @throws IOException if the request conflicts with the existing index
+     */
+    public static List<Path> create(Path indexDir, int numShards) throws IOException {
+        int existing = count(indexDir);
+        if (existing > 0) {
+            if (numShards > 1 && numShards != existing) {
+                throw new IOException("Index has " + existing + " shards but " + numShards + " were requested");
+            }
+            return paths(indexDir);
+        }
+        if (numShards <= 1) {
+            return Collections.singletonList(indexDir);
+        }
+        if (Files.isDirectory(indexDir)) {
+            try (Directory dir = FSDirectory.open(indexDir)) {
+                if (DirectoryReader.indexExists(dir)) {
+                    throw new IOException("Cannot add shards to an existing unsharded index: " + indexDir);
+                }
+            }
+        }
+        List<Path> paths = new ArrayList<>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            Path path = path(indexDir, i);
+            Files.createDirectories(path);
+            paths.add(path);
+        }
+        return paths;
+    }
+}
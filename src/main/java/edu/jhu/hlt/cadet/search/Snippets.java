@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+
+/**
+ * Finds where a query matched each hit.
+ *
+ * A client asks for snippets by adding the label "snippets" to its query. The query is
+ * converted to a span query over the text field so only the tokens of actual matches are
+ * marked: the terms of a phrase where the phrase occurs and the terms a wildcard, prefix,
+ * fuzzy or range query expanded to. Character offsets come from the term vectors.
+ * Only matches within a window of the maximum length starting shortly before the first
+ * match are returned so the size of a response stays bounded.
+ */
+public class Snippets {
+    public static final String LABEL = "snippets";
+    // characters of sentence text covered by a snippet
+    public static final int DEFAULT_MAX_LENGTH = 200;
+
+    /**
+     * Check whether a query asks for snippets
+     */
+    public static boolean isRequested(SearchQuery query) {
+        return query.isSetLabels() && query.getLabels().contains(LABEL);
+    }
+
+    /**
+     * Convert a query to a span query matching the same tokens of the text field
+     *
+     * Prohibited clauses and clauses on other fields are left out. Wildcard, prefix, fuzzy
+     * and range queries expand to at most the boolean clause limit of terms, keeping the
+     * terms that sort first.
+     *
+     * @return the span query or null if the query has no positions in the text field
+     */
+    static SpanQuery toSpanQuery(Query query) {
+        if (query instanceof BoostQuery) {
+            return toSpanQuery(((BoostQuery) query).getQuery());
+        } else if (query instanceof ConstantScoreQuery) {
+            return toSpanQuery(((ConstantScoreQuery) query).getQuery());
+        } else if (query instanceof TermQuery) {
+            Term term = ((TermQuery) query).getTerm();
+            return isText(term.field()) ? new SpanTermQuery(term) : null;
+        } else if (query instanceof SynonymQuery) {
+            List<SpanQuery> clauses = new ArrayList<>();
+            for (Term term : ((SynonymQuery) query).getTerms()) {
+                if (isText(term.field())) {
+                    clauses.add(new SpanTermQuery(term));
+                }
+            }
+            return or(clauses);
+        } else if (query instanceof PhraseQuery) {
+            PhraseQuery phrase = (PhraseQuery) query;
+            Term[] terms = phrase.getTerms();
+            if (terms.length == 0 || !isText(terms[0].field())) {
+                return null;
+            }
+            SpanQuery[] clauses = new SpanQuery[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                clauses[i] = new SpanTermQuery(terms[i]);
+            }
+            return near(clauses, phrase.getPositions(), phrase.getSlop());
+        } else if (query instanceof MultiPhraseQuery) {
+            MultiPhraseQuery phrase = (MultiPhraseQuery) query;
+            Term[][] termArrays = phrase.getTermArrays();
+            SpanQuery[] clauses = new SpanQuery[termArrays.length];
+            for (int i = 0; i < termArrays.length; i++) {
+                List<SpanQuery> alternatives = new ArrayList<>();
+                for (Term term : termArrays[i]) {
+                    if (isText(term.field())) {
+                        alternatives.add(new SpanTermQuery(term));
+                    }
+                }
+                clauses[i] = or(alternatives);
+                if (clauses[i] == null) {
+                    return null;
+                }
+            }
+            return clauses.length == 0 ? null : near(clauses, phrase.getPositions(), phrase.getSlop());
+        } else if (query instanceof MultiTermQuery) {
+            MultiTermQuery multiTerm = (MultiTermQuery) query;
+            if (!isText(multiTerm.getField())) {
+                return null;
+            }
+            SpanMultiTermQueryWrapper<MultiTermQuery> wrapper = new SpanMultiTermQueryWrapper<>(multiTerm);
+            wrapper.setRewriteMethod(
+                            new SpanMultiTermQueryWrapper.TopTermsSpanBooleanQueryRewrite(BooleanQuery.getMaxClauseCount()));
+            return wrapper;
+        } else if (query instanceof BooleanQuery) {
+            List<SpanQuery> clauses = new ArrayList<>();
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                SpanQuery spanQuery = clause.isProhibited() ? null : toSpanQuery(clause.getQuery());
+                if (spanQuery != null) {
+                    clauses.add(spanQuery);
+                }
+            }
+            return or(clauses);
+        } else if (query instanceof DisjunctionMaxQuery) {
+            List<SpanQuery> clauses = new ArrayList<>();
+            for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+                SpanQuery spanQuery = toSpanQuery(disjunct);
+                if (spanQuery != null) {
+                    clauses.add(spanQuery);
+                }
+            }
+            return or(clauses);
+        }
+        return null;
+    }
+
+    private static boolean isText(String field) {
+        return ConcreteLuceneConstants.TEXT_FIELD.equals(field);
+    }
+
+    private static SpanQuery or(List<SpanQuery> clauses) {
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        return clauses.size() == 1 ? clauses.get(0) : new SpanOrQuery(clauses.toArray(new SpanQuery[clauses.size()]));
+    }
+
+    /**
+     * Phrase positions can have gaps where stop words were removed, which the slop has to cover.
+     * A sloppy phrase may match its terms out of order.
+     */
+    private static SpanQuery near(SpanQuery[] clauses, int[] positions, int slop) {
+        if (clauses.length == 1) {
+            return clauses[0];
+        }
+        int gaps = positions[positions.length - 1] - positions[0] - (positions.length - 1);
+        return new SpanNearQuery(clauses, slop + gaps, slop == 0);
+    }
+
+    /**
+     * Find the positions of the terms in the matches of a span query in a document
+     *
+     * @param weight  weight of the span query created by the searcher of the leaf
+     * @param doc     document of the leaf
+     */
+    static Set<Integer> matchPositions(SpanWeight weight, LeafReaderContext leaf, int doc) throws IOException {
+        Set<Integer> positions = new TreeSet<>();
+        Spans spans = weight.getSpans(leaf, SpanWeight.Postings.POSITIONS);
+        if (spans == null || spans.advance(doc) != doc) {
+            return positions;
+        }
+        SpanCollector collector = new SpanCollector() {
+            @Override
+            public void collectLeaf(PostingsEnum postings, int position, Term term) {
+                positions.add(position);
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+            spans.collect(collector);
+        }
+        return positions;
+    }
+
+    /**
+     * Find the offsets of matching positions in the term vector of a sentence
+     *
+     * @param vector          term vector with positions and offsets, may be null
+     * @param positions       token positions of the matches
+     * @param tokenizationId  uuid of the tokenization the positions refer to, may be null
+     * @param maxLength       characters of text in which matches are reported
+     * @return the snippet or null if nothing matched
+     */
+    static Snippet create(Terms vector, Set<Integer> positions, String tokenizationId, int maxLength)
+                    throws IOException {
+        if (vector == null || positions.isEmpty() || !vector.hasPositions() || !vector.hasOffsets()) {
+            return null;
+        }
+        List<int[]> matches = new ArrayList<>();
+        TermsEnum termsEnum = vector.iterator();
+        PostingsEnum postings = null;
+        while (termsEnum.next() != null) {
+            postings = termsEnum.postings(postings, PostingsEnum.OFFSETS);
+            // a term vector holds a single document
+            if (postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                continue;
+            }
+            for (int i = 0; i < postings.freq(); i++) {
+                int position = postings.nextPosition();
+                if (positions.contains(position)) {
+                    matches.add(new int[] {position, postings.startOffset(), postings.endOffset()});
+                }
+            }
+        }
+        if (matches.isEmpty()) {
+            return null;
+        }
+        matches.sort(Comparator.comparingInt(match -> match[0]));
+        // the words of a token holding spaces share its position and are reported as one match
+        List<int[]> merged = new ArrayList<>();
+        for (int[] match : matches) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[0] == match[0]) {
+                last[1] = Math.min(last[1], match[1]);
+                last[2] = Math.max(last[2], match[2]);
+            } else {
+                merged.add(match);
+            }
+        }
+        matches = merged;
+
+        // leave some context before the first match
+        int windowStart = Math.max(0, matches.get(0)[1] - maxLength / 4);
+        int windowEnd = windowStart + maxLength;
+        List<int[]> shown = new ArrayList<>();
+        for (int[] match : matches) {
+            if (match[1] >= windowStart && match[2] <= windowEnd) {
+                shown.add(match);
+            }
+        }
+        if (shown.isEmpty()) {
+            // a single match longer than the window
+            shown.add(matches.get(0));
+        }
+        return new Snippet(tokenizationId, shown);
+    }
+
+    /**
+     * Matches of a query in a sentence in the order they occur
+     */
+    public static class Snippet {
+        // null for indexes built with the lucene tokenizer or before tokenizations were stored
+        public final String tokenizationId;
+        // token positions of the matches
+        public final int[] tokens;
+        // character offsets of the matches in the indexed text of the sentence
+        public final int[] startOffsets;
+        public final int[] endOffsets;
+
+        Snippet(String tokenizationId, List<int[]> matches) {
+            this.tokenizationId = tokenizationId;
+            this.tokens = new int[matches.size()];
+            this.startOffsets = new int[matches.size()];
+            this.endOffsets = new int[matches.size()];
+            for (int i = 0; i < matches.size(); i++) {
+                tokens[i] = matches.get(i)[0];
+                startOffsets[i] = matches.get(i)[1];
+                endOffsets[i] = matches.get(i)[2];
+            }
+        }
+    }
+}
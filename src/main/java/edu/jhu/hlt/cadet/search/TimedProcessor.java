@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolDecorator;
+
+/**
+ * Times each request and the serialization of its response
+ */
+public class TimedProcessor implements TProcessor {
+    private static final Metrics.Timer requestTimer = Metrics.global().timer("cadet_request_seconds",
+                    "Time to read, handle and write a request");
+    private static final Metrics.Timer serializeTimer = Metrics.global().timer("cadet_serialize_seconds",
+                    "Time to serialize a response");
+
+    private final TProcessor processor;
+
+    public TimedProcessor(TProcessor processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+        long start = System.nanoTime();
+        try {
+            return processor.process(in, new TimedProtocol(out));
+        } finally {
+            requestTimer.recordSince(start);
+        }
+    }
+
+    private static class TimedProtocol extends TProtocolDecorator {
+        private long start;
+
+        TimedProtocol(TProtocol protocol) {
+            super(protocol);
+        }
+
+        @Override
+        public void writeMessageBegin(TMessage message) throws TException {
+            start = System.nanoTime();
+            super.writeMessageBegin(message);
+        }
+
+        @Override
+        public void writeMessageEnd() throws TException {
+            super.writeMessageEnd();
+            serializeTimer.recordSince(start);
+        }
+    }
+}
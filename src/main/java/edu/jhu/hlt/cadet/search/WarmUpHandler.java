@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.hlt.concrete.search.SearchCapability;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.search.SearchType;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+import edu.jhu.hlt.concrete.services.ServicesException;
+
+/**
+ * Replays queries through a search handler to load the index before serving traffic.
+ *
+ * {@link #alive()} returns false until {@link #warmUp(List)} has finished.
+ */
+public class WarmUpHandler implements SearchService.Iface {
+    private static Logger logger = LoggerFactory.getLogger(WarmUpHandler.class);
+
+    private final SearchService.Iface handler;
+    private volatile boolean warm = false;
+    private volatile long warmUpMillis = 0;
+
+    public WarmUpHandler(SearchService.Iface handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Read queries from a file with one raw query per line. Blank lines and lines starting with # are skipped.
+     */
+    public static List<String> readQueries(Path file) throws IOException {
+        List<String> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                queries.add(line);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Run each query as a sentence and a communication search on every corpus and mark the handler warm
+     *
+     * @return time taken in milliseconds
+     */
+    public long warmUp(List<String> queries) throws TException {
+        long start = System.nanoTime();
+        List<String> corpora = handler.getCorpora();
+        if (corpora.isEmpty()) {
+            corpora = Collections.singletonList(null);
+        }
+        int failures = 0;
+        for (String corpus : corpora) {
+            for (String rawQuery : queries) {
+                for (SearchType type : new SearchType[] {SearchType.SENTENCES, SearchType.COMMUNICATIONS}) {
+                    SearchQuery query = new SearchQuery();
+                    query.setRawQuery(rawQuery);
+                    query.setType(type);
+                    if (corpus != null) {
+                        query.setCorpus(corpus);
+                    }
+                    try {
+                        handler.search(query);
+                    } catch (ServicesException e) {
+                        failures++;
+                    }
+                }
+            }
+        }
+        warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        warm = true;
+        logger.info("Warm-up ran " + queries.size() + " queries on " + corpora.size() + " corpora in "
+                        + warmUpMillis + " ms with " + failures + " failed searches");
+        return warmUpMillis;
+    }
+
+    /**
+     * Mark the handler warm without running queries
+     */
+    public void skipWarmUp() {
+        warm = true;
+    }
+
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    @Override
+    public SearchResult search(SearchQuery query) throws ServicesException, TException {
+        return handler.search(query);
+    }
+
+    @Override
+    public List<SearchCapability> getCapabilities() throws ServicesException, TException {
+        return handler.getCapabilities();
+    }
+
+    @Override
+    public List<String> getCorpora() throws ServicesException, TException {
+        return handler.getCorpora();
+    }
+
+    @Override
+    public ServiceInfo about() throws TException {
+        return handler.about();
+    }
+
+    @Override
+    public boolean alive() throws TException {
+        return warm && handler.alive();
+    }
+}
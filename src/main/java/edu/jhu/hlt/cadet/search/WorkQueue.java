@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2018 Johns Hopkins University HLTCOE. All rights reserved.
+ * This software is released under the 2-clause BSD license.
+ * See LICENSE in the project root directory.
+ */
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue that is drained by a fixed number of worker threads.
+ *
+ * The producer blocks when the queue is full. If a worker fails, the remaining
+ * items are discarded and the failure is rethrown to the producer.
+ */
+public class WorkQueue<T> {
+    private static Logger logger = LoggerFactory.getLogger(WorkQueue.class);
+
+    private static final Object END = new Object();
+
+    /**
+     * Processes items on a single worker thread
+     */
+    public interface Worker<T> {
+        void process(T item) throws Exception;
+
+        default void close() throws Exception {}
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param name         prefix for the worker thread names
+     * @param numThreads   number of worker threads
+     * @param capacity     maximum number of items waiting for a worker
+     * @param factory      creates one worker per thread
+     */
+    public WorkQueue(String name, int numThreads, int capacity, Callable<Worker<T>> factory) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(() -> run(factory), name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run(Callable<Worker<T>> factory) {
+        Worker<T> worker = null;
+        try {
+            worker = factory.call();
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        try {
+            while (true) {
+                Object item = queue.take();
+                if (item == END) {
+                    break;
+                }
+                if (worker != null && failure.get() == null) {
+                    try {
+                        worker.process((T) item);
+                    } catch (Exception e) {
+                        logger.warn("Worker failed on " + Thread.currentThread().getName(), e);
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            if (worker != null) {
+                try {
+                    worker.close();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an item, blocking while the queue is full
+     */
+    public void put(T item) throws IOException {
+        checkFailure();
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing work", e);
+        }
+    }
+
+    /**
+     * Wait for all queued items to be processed and stop the workers
+     */
+    public void finish() throws IOException {
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Discard any queued items and stop the workers
+     */
+    public void abort() {
+        failure.compareAndSet(null, new CancellationException("Work queue aborted"));
+        try {
+            finish();
+        } catch (IOException e) {
+            // expected as the queue has been marked as failed
+        }
+    }
+
+    public boolean hasFailed() {
+        return failure.get() != null;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw new IOException(t.getMessage(), t);
+        } else if (t != null) {
+            throw new IOException("Worker failed: " + t.getMessage(), t);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.search.SearchType;
+
+public class BatchSearchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBadQueryIsSkipped() throws IOException, TException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"),
+                        TestCommunications.create("c2", "blue cat"));
+        StringWriter out = new StringWriter();
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        LuceneSearchHandler handler = new LuceneSearchHandler(null, searcher)) {
+            int failed = BatchSearch.search(searcher, handler, Arrays.asList("fish", "(fish", "cat"),
+                            SearchType.SENTENCES, 10, 2, out);
+
+            assertEquals(1, failed);
+        }
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("fish\t1\tc1\t"));
+        assertTrue(lines[1].startsWith("cat\t1\tc2\t"));
+    }
+}
@@ -0,0 +1,87 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchType;
+import edu.jhu.hlt.concrete.services.ServicesException;
+
+public class CorpusRouterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoutesByCorpus() throws TException, IOException {
+        SearchResultCache cache = new SearchResultCache(10);
+        Map<String, LuceneSearchHandler> handlers = new LinkedHashMap<>();
+        handlers.put("news", createHandler("news", "eng", cache, TestCommunications.create("n1", "the dog barked")));
+        handlers.put("web", createHandler("web", "spa", cache, TestCommunications.create("w1", "el perro y el dog")));
+        CorpusRouter router = new CorpusRouter(handlers);
+
+        assertEquals(Arrays.asList("news", "web"), router.getCorpora());
+        assertEquals("w1", router.search(createQuery("dog", "web")).getSearchResultItems().get(0).getCommunicationId());
+        assertEquals("n1", router.search(createQuery("dog", "news")).getSearchResultItems().get(0).getCommunicationId());
+        // the shared cache keeps the corpora apart
+        SearchResult cached = router.search(createQuery("dog", "web"));
+        assertEquals("w1", cached.getSearchResultItems().get(0).getCommunicationId());
+        assertEquals("spa", cached.getLang());
+        assertEquals(1, cache.getHits());
+        // queries without a corpus go to the first one
+        assertEquals("n1", router.search(createQuery("dog", null)).getSearchResultItems().get(0).getCommunicationId());
+        assertEquals(4, router.getCapabilities().size());
+
+        router.close();
+    }
+
+    @Test(expected = ServicesException.class)
+    public void testUnknownCorpus() throws TException, IOException {
+        Map<String, LuceneSearchHandler> handlers = new LinkedHashMap<>();
+        handlers.put("news", createHandler("news", "eng", null, TestCommunications.create("n1", "dog")));
+        try (CorpusRouter router = new CorpusRouter(handlers)) {
+            router.search(createQuery("dog", "other"));
+        }
+    }
+
+    @Test
+    public void testParseCorpus() {
+        Server.Corpus corpus = Server.Corpus.parse("news:/data/news:eng:lt");
+        assertEquals("news", corpus.name);
+        assertEquals("/data/news", corpus.indexDir);
+        assertEquals("eng", corpus.languageCode);
+        assertTrue(corpus.useLuceneTokenizer);
+
+        corpus = Server.Corpus.parse("web:/data/web");
+        assertNull(corpus.languageCode);
+        assertFalse(corpus.useLuceneTokenizer);
+    }
+
+    private LuceneSearchHandler createHandler(String corpus, String lang, SearchResultCache cache,
+                    Communication comm) throws IOException {
+        Path indexDir = folder.newFolder(corpus).toPath();
+        TestCommunications.index(indexDir, comm);
+        return new LuceneSearchHandler(corpus, lang, new SentenceSearcher(indexDir, false), cache);
+    }
+
+    private SearchQuery createQuery(String rawQuery, String corpus) {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery(rawQuery);
+        query.setType(SearchType.SENTENCES);
+        if (corpus != null) {
+            query.setCorpus(corpus);
+        }
+        return query;
+    }
+}
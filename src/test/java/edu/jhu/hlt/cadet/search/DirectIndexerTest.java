@@ -0,0 +1,116 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+public class DirectIndexerTest {
+    private static final int NUM_COMMS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParallelDirectoryIngestMatchesSerial() throws Exception {
+        Path dir = folder.newFolder("comms").toPath();
+        CompactCommunicationSerializer serializer = new CompactCommunicationSerializer();
+        for (Communication comm : createCommunications()) {
+            Files.write(dir.resolve(comm.getId() + ".comm"), serializer.toBytes(comm));
+        }
+
+        assertParallelMatchesSerial(dir);
+    }
+
+    @Test
+    public void testParallelZipIngestMatchesSerial() throws Exception {
+        Path zip = folder.getRoot().toPath().resolve("comms.zip");
+        CompactCommunicationSerializer serializer = new CompactCommunicationSerializer();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (Communication comm : createCommunications()) {
+                out.putNextEntry(new ZipEntry(comm.getId() + ".comm"));
+                out.write(serializer.toBytes(comm));
+                out.closeEntry();
+            }
+        }
+
+        assertParallelMatchesSerial(zip);
+    }
+
+    private void assertParallelMatchesSerial(Path input) throws IOException, TException {
+        Path serialDir = index(input, 1);
+        Path parallelDir = index(input, 4);
+
+        List<String> serialIds = commIds(serialDir);
+        assertEquals(sentenceCount(), serialIds.size());
+        assertEquals(NUM_COMMS, new HashSet<>(serialIds).size());
+        assertEquals(serialIds, commIds(parallelDir));
+    }
+
+    private Path index(Path input, int indexThreads) throws IOException, TException {
+        Indexer.Config config = new Indexer.Config();
+        config.indexDir = folder.newFolder().toPath();
+        config.batchSize = 10;
+        config.indexThreads = indexThreads;
+        // a short queue so the reader waits on the workers
+        config.queueSize = 2;
+        new DirectIndexer(input.toString()).index(config);
+        return config.indexDir;
+    }
+
+    /**
+     * Comm id of each sentence in the index, sorted
+     */
+    private static List<String> commIds(Path indexDir) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (Directory dir = FSDirectory.open(indexDir); DirectoryReader reader = DirectoryReader.open(dir)) {
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                ids.add(reader.document(doc).get(ConcreteLuceneConstants.COMM_ID_FIELD));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Communications with one to three sentences
+     */
+    private static List<Communication> createCommunications() {
+        List<Communication> comms = new ArrayList<>();
+        for (int i = 0; i < NUM_COMMS; i++) {
+            String[] sentences = new String[i % 3 + 1];
+            for (int s = 0; s < sentences.length; s++) {
+                sentences[s] = "sentence " + s + " of communication " + i;
+            }
+            comms.add(TestCommunications.create(String.format("c%03d", i), sentences));
+        }
+        return comms;
+    }
+
+    private static int sentenceCount() {
+        int count = 0;
+        for (int i = 0; i < NUM_COMMS; i++) {
+            count += i % 3 + 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,53 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+    @Test
+    public void testBucketsCoverAllValues() {
+        long previousHigh = -1;
+        for (int i = 0; i <= Histogram.index(Long.MAX_VALUE); i++) {
+            long high = Histogram.highestValue(i);
+            assertEquals(i, Histogram.index(high));
+            assertEquals(i, Histogram.index(previousHigh + 1));
+            previousHigh = high;
+        }
+        assertEquals(Long.MAX_VALUE, previousHigh);
+    }
+
+    @Test
+    public void testQuantilesWithinBucketError() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 10000; v++) {
+            histogram.record(v * 1000);
+        }
+
+        long[] values = histogram.getValuesAtQuantiles(0.5, 0.99, 1.0);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000000, values[0], 5000000 * 0.125);
+        assertEquals(9900000, values[1], 9900000 * 0.125);
+        assertTrue(values[2] >= 10000000);
+    }
+
+    @Test
+    public void testCumulativeCounts() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+
+        // 64 to 71 share a bucket
+        long[] counts = histogram.getCumulativeCounts(0, 7, 64, 71, 1000);
+
+        assertArrayEquals(new long[] {0, 7, 63, 71, 100, 100}, counts);
+        assertArrayEquals(new long[] {0, 0}, new Histogram().getCumulativeCounts(10));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertArrayEquals(new long[] {0, 0}, new Histogram().getValuesAtQuantiles(0.5, 0.99));
+    }
+}
@@ -0,0 +1,79 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+public class IndexExporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTextSkipsDeletedSentences() throws IOException {
+        Path indexDir = createIndex();
+        IndexExporter exporter = new IndexExporter();
+        exporter.setThreads(2);
+
+        String[] lines = export(exporter, indexDir).split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals("c2 (c2-0) : fish two", lines[0]);
+        assertEquals("c1 (c1-0) : fish one", lines[1]);
+    }
+
+    @Test
+    public void testJsonWithSelectedFieldsAndTermStats() throws IOException {
+        Path indexDir = createIndex();
+        IndexExporter exporter = new IndexExporter();
+        exporter.setFormat(IndexExporter.Format.JSONL);
+        exporter.setFields(Arrays.asList(ConcreteLuceneConstants.COMM_ID_FIELD, IndexExporter.TERMS));
+        exporter.setTermStats(true);
+
+        String[] lines = export(exporter, indexDir).split("\n");
+
+        // document frequencies count the deleted sentence until its segment is merged
+        assertEquals("{\"" + ConcreteLuceneConstants.COMM_ID_FIELD + "\":\"c1\",\"terms\":["
+                        + "{\"term\":\"fish\",\"freq\":1,\"docFreq\":3},"
+                        + "{\"term\":\"one\",\"freq\":1,\"docFreq\":1}]}", lines[1]);
+    }
+
+    @Test
+    public void testBinary() throws IOException {
+        Path indexDir = createIndex();
+        IndexExporter exporter = new IndexExporter();
+        exporter.setFormat(IndexExporter.Format.BINARY);
+        exporter.setFields(Arrays.asList(ConcreteLuceneConstants.COMM_ID_FIELD, IndexExporter.TERMS));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(2, exporter.export(indexDir, Channels.newChannel(bytes)));
+
+        byte[] expected = {2, 'c', '2', 2, 4, 'f', 'i', 's', 'h', 3, 't', 'w', 'o'};
+        assertArrayEquals(expected, Arrays.copyOf(bytes.toByteArray(), expected.length));
+    }
+
+    private Path createIndex() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"),
+                        TestCommunications.create("c2", "two fish"));
+        // replacing c1 leaves its old sentence deleted in the first segment
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "one fish"));
+        return indexDir;
+    }
+
+    private String export(IndexExporter exporter, Path indexDir) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        exporter.export(indexDir, Channels.newChannel(bytes));
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
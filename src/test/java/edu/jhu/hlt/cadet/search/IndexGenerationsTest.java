@@ -0,0 +1,91 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexGenerationsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testServesIndexDirectoryWithoutGenerations() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        assertEquals(indexDir, new IndexGenerations(indexDir).current());
+    }
+
+    @Test
+    public void testPublishAndRollback() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "dog"));
+        IndexGenerations generations = new IndexGenerations(indexDir);
+
+        Path first = generations.create();
+        assertEquals(indexDir.resolve("gen-1"), first);
+        generations.publish(first, 3);
+        assertEquals(first, generations.current());
+
+        // the index served before generations is the one rolled back to
+        assertEquals(indexDir, generations.rollback());
+        assertEquals(indexDir, generations.current());
+    }
+
+    @Test
+    public void testOldGenerationsAreDeleted() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        IndexGenerations generations = new IndexGenerations(indexDir);
+        Path first = generations.create();
+        generations.publish(first, 2);
+        Path second = generations.create();
+        generations.publish(second, 2);
+        Path third = generations.create();
+        generations.publish(third, 2);
+
+        assertEquals(indexDir.resolve("gen-3"), third);
+        assertFalse(Files.exists(first));
+        assertTrue(Files.exists(second));
+        assertEquals(second, generations.rollback());
+    }
+
+    @Test
+    public void testRolledBackGenerationIsKeptWithinLimit() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        IndexGenerations generations = new IndexGenerations(indexDir);
+        Path first = generations.create();
+        generations.publish(first, 2);
+        Path second = generations.create();
+        generations.publish(second, 2);
+
+        assertEquals(first, generations.rollback());
+        assertTrue(Files.exists(second));
+        // rolling back again undoes the rollback
+        assertEquals(second, generations.rollback());
+        assertEquals(first, generations.rollback());
+
+        Path third = generations.create();
+        assertEquals(indexDir.resolve("gen-3"), third);
+        generations.publish(third, 2);
+        assertTrue(Files.exists(first));
+        assertFalse(Files.exists(second));
+        assertEquals(first, generations.rollback());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeepsAtLeastTwoGenerations() throws IOException {
+        IndexGenerations generations = new IndexGenerations(folder.getRoot().toPath());
+        generations.publish(generations.create(), 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRollbackWithoutEarlierGeneration() throws IOException {
+        IndexGenerations generations = new IndexGenerations(folder.getRoot().toPath());
+        generations.publish(generations.create(), 3);
+        generations.rollback();
+    }
+}
@@ -0,0 +1,120 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexReplicaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplicaCopiesOnlyNewSegments() throws IOException, ParseException {
+        Path primaryDir = folder.newFolder("primary").toPath();
+        Path replicaDir = folder.newFolder("replica").toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(primaryDir, false, 16, 2);
+                        ReplicationServer server = new ReplicationServer(0, indexer)) {
+            server.start();
+            IndexReplica replica = new IndexReplica(replicaDir, "localhost", server.getPort());
+            indexer.add(TestCommunications.create("c1", "red fish"));
+            indexer.add(TestCommunications.create("c2", "blue fish"));
+            indexer.commit();
+
+            assertTrue(replica.sync() > 0);
+            assertEquals(2, Shards.count(replicaDir));
+            try (SentenceSearcher searcher = new SentenceSearcher(replicaDir, false)) {
+                assertEquals(2, countHits(searcher, "fish"));
+
+                indexer.add(TestCommunications.create("c3", "one fish"));
+                indexer.commit();
+                int copied = replica.sync();
+                // the first segment of each shard is already on the replica
+                assertTrue(copied > 0);
+                assertTrue(copied < countFiles(Shards.path(primaryDir, 0)) + countFiles(Shards.path(primaryDir, 1)));
+                searcher.maybeRefresh();
+                assertEquals(3, countHits(searcher, "fish"));
+            }
+            // nothing to copy without a new commit
+            assertEquals(0, replica.sync());
+        }
+    }
+
+    @Test
+    public void testReplicaFollowsNewGeneration() throws IOException, ParseException {
+        Path primaryDir = folder.newFolder("primary").toPath();
+        Path replicaDir = folder.newFolder("replica").toPath();
+        TestCommunications.index(primaryDir, TestCommunications.create("c1", "red fish"));
+        try (ReplicationServer server = new ReplicationServer(0, primaryDir)) {
+            server.start();
+            IndexReplica replica = new IndexReplica(replicaDir, "localhost", server.getPort());
+            replica.sync();
+            IndexGenerations replicaGenerations = new IndexGenerations(replicaDir);
+            Path served = replicaGenerations.current();
+
+            try (SentenceSearcher searcher = new SentenceSearcher(served, false)) {
+                assertEquals(1, countHits(searcher, "fish"));
+
+                IndexGenerations generations = new IndexGenerations(primaryDir);
+                Path generation = generations.create();
+                TestCommunications.index(generation, TestCommunications.create("c2", "blue fish"),
+                                TestCommunications.create("c3", "one fish"));
+                generations.publish(generation, 3);
+                assertTrue(replica.sync() > 0);
+
+                // the new index reuses file names, so it is copied next to the open one
+                Path latest = replicaGenerations.current();
+                assertNotEquals(served, latest);
+                searcher.maybeRefresh();
+                assertEquals(1, countHits(searcher, "red"));
+                try (SentenceSearcher next = new SentenceSearcher(latest, false)) {
+                    assertEquals(2, countHits(next, "fish"));
+                    assertEquals(0, countHits(next, "red"));
+                }
+                assertEquals(countFiles(generation), countFiles(latest));
+            }
+
+            // commits to the same generation are copied in place
+            TestCommunications.index(new IndexGenerations(primaryDir).current(), TestCommunications.create("c4", "two fish"));
+            Path latest = replicaGenerations.current();
+            assertTrue(replica.sync() > 0);
+            assertEquals(latest, replicaGenerations.current());
+            try (SentenceSearcher searcher = new SentenceSearcher(latest, false)) {
+                assertEquals(3, countHits(searcher, "fish"));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSyncFailsWithoutCommit() throws IOException {
+        try (SentenceIndexer indexer = new SentenceIndexer(folder.newFolder("primary").toPath(), false);
+                        ReplicationServer server = new ReplicationServer(0, indexer)) {
+            server.start();
+            new IndexReplica(folder.newFolder("replica").toPath(), "localhost", server.getPort()).sync();
+        }
+    }
+
+    private static long countHits(SentenceSearcher searcher, String query) throws IOException, ParseException {
+        try (SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            return snapshot.search(searcher.parse(query), 10, null).totalHits;
+        }
+    }
+
+    private static int countFiles(Path dir) throws IOException {
+        try (Directory directory = FSDirectory.open(dir)) {
+            List<IndexCommit> commits = DirectoryReader.listCommits(directory);
+            return commits.get(commits.size() - 1).getFileNames().size();
+        }
+    }
+}
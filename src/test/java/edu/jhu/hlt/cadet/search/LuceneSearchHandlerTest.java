@@ -4,20 +4,40 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
 import org.apache.thrift.TException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import edu.jhu.hlt.concrete.lucene.ConcreteLuceneSearcher;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenRefSequence;
 import edu.jhu.hlt.concrete.search.SearchQuery;
 import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchType;
 import edu.jhu.hlt.concrete.services.ServicesException;
 
 public class LuceneSearchHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Test
     public void testWithEmptyQuery() throws ServicesException, TException, IOException {
-        ConcreteLuceneSearcher searcher = mock(ConcreteLuceneSearcher.class);
+        SentenceSearcher searcher = mock(SentenceSearcher.class);
         LuceneSearchHandler handler = new LuceneSearchHandler("eng", searcher);
         SearchQuery query = new SearchQuery();
         query.setRawQuery(" ");
@@ -29,4 +49,346 @@ public class LuceneSearchHandlerTest {
         handler.close();
     }
 
+    @Test
+    public void testScoresAndResultCount() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        SearchQuery query = createQuery("dog");
+        query.setK(2);
+
+        SearchResult result = handler.search(query);
+
+        assertEquals(2, result.getSearchResultItemsSize());
+        SearchResultItem first = result.getSearchResultItems().get(0);
+        SearchResultItem second = result.getSearchResultItems().get(1);
+        assertTrue(first.getScore() > 0);
+        assertTrue(first.getScore() >= second.getScore());
+        // the shortest sentence with the term scores highest
+        assertEquals("c2", first.getCommunicationId());
+        assertEquals("c2-0", first.getSentenceId().getUuidString());
+
+        handler.close();
+    }
+
+    @Test
+    public void testPagingWithSearchAfter() throws TException, IOException, ParseException {
+        SentenceSearcher searcher = createSearcher();
+        Query query = searcher.parse("dog");
+        SentenceSearcher.Snapshot snapshot = searcher.acquire();
+
+        TopDocs all = snapshot.search(query, 10, null);
+        TopDocs firstPage = snapshot.search(query, 2, null);
+        TopDocs secondPage = snapshot.search(query, 2, firstPage.scoreDocs[1]);
+
+        assertEquals(3, all.scoreDocs.length);
+        assertEquals(2, firstPage.scoreDocs.length);
+        assertEquals(1, secondPage.scoreDocs.length);
+        assertEquals(all.scoreDocs[2].doc, secondPage.scoreDocs[0].doc);
+
+        snapshot.close();
+        searcher.close();
+    }
+
+    @Test
+    public void testCommunicationSearchReturnsOneResultPerCommunication() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        SearchQuery query = createQuery("dog OR cat");
+        query.setType(SearchType.COMMUNICATIONS);
+
+        SearchResult result = handler.search(query);
+
+        assertEquals(3, result.getSearchResultItemsSize());
+        Set<String> ids = new HashSet<>();
+        for (SearchResultItem item : result.getSearchResultItems()) {
+            assertTrue(ids.add(item.getCommunicationId()));
+            assertTrue(item.getScore() > 0);
+        }
+
+        handler.close();
+    }
+
+    @Test
+    public void testCursorPagingUsesPinnedSnapshot() throws TException, IOException {
+        Path indexDir = folder.getRoot().toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false);
+                        SentenceSearcher searcher = new SentenceSearcher(indexer, false)) {
+            for (int i = 0; i < 5; i++) {
+                indexer.add(TestCommunications.create("c" + i, "dog"));
+            }
+            searcher.maybeRefresh();
+            LuceneSearchHandler handler = new LuceneSearchHandler("eng", searcher);
+            CursorManager cursors = new CursorManager(60);
+            handler.setCursorManager(cursors);
+
+            SearchQuery query = createQuery("dog");
+            query.setK(2);
+            query.addToLabels(CursorManager.LABEL);
+            Set<String> ids = new HashSet<>();
+            SearchResult page = handler.search(query);
+            // documents added while paging are not seen by the cursor
+            indexer.add(TestCommunications.create("late", "dog"));
+            searcher.maybeRefresh();
+            int pages = 1;
+            while (true) {
+                for (SearchResultItem item : page.getSearchResultItems()) {
+                    assertTrue(ids.add(item.getCommunicationId()));
+                }
+                CursorManager.Cursor next = CursorManager.parse(page.getSearchQuery());
+                if (next == null) {
+                    break;
+                }
+                query.setLabels(page.getSearchQuery().getLabels());
+                page = handler.search(query);
+                pages++;
+            }
+
+            assertEquals(3, pages);
+            assertEquals(5, ids.size());
+            assertFalse(ids.contains("late"));
+            assertEquals(1, cursors.size());
+            cursors.close();
+        }
+    }
+
+    @Test(expected = ServicesException.class)
+    public void testExpiredCursor() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        CursorManager cursors = new CursorManager(0);
+        handler.setCursorManager(cursors);
+        SearchQuery query = createQuery("dog");
+        query.setK(1);
+        query.addToLabels(CursorManager.LABEL);
+        SearchResult page = handler.search(query);
+        cursors.prune();
+
+        query.setLabels(page.getSearchQuery().getLabels());
+        try {
+            handler.search(query);
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void testBatchReturnsResultsInQueryOrder() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        handler.setBatchExecutor(executor);
+        SearchQuery communications = createQuery("dog OR cat");
+        communications.setType(SearchType.COMMUNICATIONS);
+
+        List<SearchResult> results = handler.searchBatch(
+                        Arrays.asList(createQuery("cat"), createQuery(" "), createQuery("dog"), communications));
+
+        assertEquals(4, results.size());
+        assertEquals(2, results.get(0).getSearchResultItemsSize());
+        assertEquals(0, results.get(1).getSearchResultItemsSize());
+        assertEquals(3, results.get(2).getSearchResultItemsSize());
+        assertEquals(3, results.get(3).getSearchResultItemsSize());
+        assertEquals("c2", results.get(2).getSearchResultItems().get(0).getCommunicationId());
+        assertSame(results.get(0).getMetadata(), results.get(3).getMetadata());
+        assertNotEquals(results.get(0).getUuid(), results.get(3).getUuid());
+
+        executor.shutdown();
+        handler.close();
+    }
+
+    @Test(expected = ServicesException.class)
+    public void testBatchFailsOnBadQuery() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        try {
+            handler.searchBatch(Arrays.asList(createQuery("dog"), createQuery("dog AND (")));
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test(expected = ServicesException.class)
+    public void testRejectsQueryOverExpansionLimit() throws TException, IOException {
+        SentenceSearcher searcher = createSearcher();
+        searcher.setQueryLimits(0, 2);
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng", searcher);
+        try {
+            assertEquals(1, handler.search(createQuery("ch*")).getSearchResultItemsSize());
+            handler.search(createQuery("a*"));
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void testSnippetsMarkMatchingTokens() throws TException, IOException {
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng", createSearcher(), new SearchResultCache(10));
+        SearchQuery query = createQuery("dog OR yard");
+        query.addToLabels(Snippets.LABEL);
+
+        SearchResult result = handler.search(query);
+
+        assertEquals(3, result.getSearchResultItemsSize());
+        for (SearchResultItem item : result.getSearchResultItems()) {
+            TokenRefSequence tokens = item.getTokens();
+            switch (item.getCommunicationId()) {
+                case "c1":
+                    assertEquals(Arrays.asList(1, 7), tokens.getTokenIndexList());
+                    break;
+                case "c2":
+                    assertEquals(Arrays.asList(0), tokens.getTokenIndexList());
+                    break;
+                default:
+                    assertEquals(Arrays.asList(1, 4), tokens.getTokenIndexList());
+            }
+            assertEquals(item.getCommunicationId() + "-tokenization-0", tokens.getTokenizationId().getUuidString());
+            assertEquals((int) tokens.getTokenIndexList().get(0), tokens.getAnchorTokenIndex());
+        }
+        // results cached with snippets are not returned without them
+        query.setLabels(new ArrayList<String>());
+        assertFalse(handler.search(query).getSearchResultItems().get(0).isSetTokens());
+
+        handler.close();
+    }
+
+    @Test
+    public void testSnippetTokensWithEmptyAndMultiWordTokens() throws TException, IOException {
+        Communication comm = TestCommunications.create("c1", "the x new the dog");
+        List<Token> tokens = comm.getSectionList().get(0).getSentenceList().get(0).getTokenization()
+                        .getTokenList().getTokenList();
+        tokens.get(1).setText("");
+        tokens.get(2).setText("New York");
+        tokens.get(3).setText(" ");
+        TestCommunications.index(folder.getRoot().toPath(), comm);
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng",
+                        new SentenceSearcher(folder.getRoot().toPath(), false));
+
+        SearchQuery query = createQuery("dog OR york");
+        query.addToLabels(Snippets.LABEL);
+        SearchResult result = handler.search(query);
+
+        assertEquals(1, result.getSearchResultItemsSize());
+        // token indices are not shifted by the empty tokens or the one holding a space
+        assertEquals(Arrays.asList(2, 4), result.getSearchResultItems().get(0).getTokens().getTokenIndexList());
+
+        handler.close();
+    }
+
+    @Test
+    public void testSnippetsMarkOnlyPhraseMatches() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        SearchQuery query = createQuery("\"another dog\"");
+        query.addToLabels(Snippets.LABEL);
+
+        SearchResult result = handler.search(query);
+
+        assertEquals(1, result.getSearchResultItemsSize());
+        // the first "dog" is not part of the phrase
+        assertEquals(Arrays.asList(3, 4), result.getSearchResultItems().get(0).getTokens().getTokenIndexList());
+
+        handler.close();
+    }
+
+    @Test
+    public void testSnippetsMarkExpandedTerms() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        SearchQuery query = createQuery("cha* OR ya?d");
+        query.addToLabels(Snippets.LABEL);
+
+        SearchResult result = handler.search(query);
+
+        assertEquals(1, result.getSearchResultItemsSize());
+        assertEquals(Arrays.asList(2, 7), result.getSearchResultItems().get(0).getTokens().getTokenIndexList());
+
+        handler.close();
+    }
+
+    @Test
+    public void testSnippetLengthLimitsMatches() throws TException, IOException {
+        LuceneSearchHandler handler = createHandler();
+        handler.setSnippetLength(10);
+        SearchQuery query = createQuery("yard OR chased");
+        query.addToLabels(Snippets.LABEL);
+        query.setK(1);
+
+        SearchResult result = handler.search(query);
+
+        // "chased" starts at 8 so the window is 6 to 16 and "yard" at 34 is left out
+        assertEquals(Arrays.asList(2), result.getSearchResultItems().get(0).getTokens().getTokenIndexList());
+
+        handler.close();
+    }
+
+    @Test
+    public void testRejectsSearchesWhenQueueIsFull() throws Exception {
+        SentenceSearcher searcher = mock(SentenceSearcher.class);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        when(searcher.tryAcquire()).thenAnswer(invocation -> {
+            started.countDown();
+            finish.await();
+            throw new IOException("done");
+        });
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng", searcher);
+        handler.setConcurrencyLimit(1, 0);
+        Thread slow = new Thread(() -> {
+            try {
+                handler.search(createQuery("dog"));
+            } catch (TException e) {
+                // expected from the mock
+            }
+        });
+        slow.start();
+        started.await();
+
+        try {
+            handler.search(createQuery("cat"));
+            fail("expected the search to be rejected");
+        } catch (ServicesException e) {
+            assertTrue(e.getMessage().contains("overloaded"));
+        } finally {
+            finish.countDown();
+            slow.join();
+        }
+        // the permit is returned once the slow search ends
+        assertEquals(0, handler.search(createQuery(" ")).getSearchResultItemsSize());
+        handler.close();
+    }
+
+    @Test
+    public void testSwapKeepsInFlightSearchesOnOldIndex() throws TException, IOException, ParseException {
+        SentenceSearcher old = createSearcher();
+        LuceneSearchHandler handler = new LuceneSearchHandler("eng", old);
+        Path nextDir = folder.newFolder("next").toPath();
+        TestCommunications.index(nextDir, TestCommunications.create("n1", "dog"));
+        assertEquals(3, handler.search(createQuery("dog")).getSearchResultItemsSize());
+
+        SentenceSearcher.Snapshot inFlight = old.acquire();
+        handler.swapSearcher(new SentenceSearcher(nextDir, false)).close();
+
+        SearchResult result = handler.search(createQuery("dog"));
+        assertEquals(1, result.getSearchResultItemsSize());
+        assertEquals("n1", result.getSearchResultItems().get(0).getCommunicationId());
+        // the old index stays open until the search in progress ends
+        assertEquals(3, inFlight.search(old.parse("dog"), 10, null).scoreDocs.length);
+        inFlight.close();
+        assertNull(old.tryAcquire());
+
+        handler.close();
+    }
+
+    private LuceneSearchHandler createHandler() throws IOException {
+        return new LuceneSearchHandler("eng", createSearcher());
+    }
+
+    private SentenceSearcher createSearcher() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir,
+                        TestCommunications.create("c1", "the dog chased the cat around the yard", "the cat slept"),
+                        TestCommunications.create("c2", "dog"),
+                        TestCommunications.create("c3", "a dog and another dog"));
+        return new SentenceSearcher(indexDir, false);
+    }
+
+    private SearchQuery createQuery(String rawQuery) {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery(rawQuery);
+        query.setType(SearchType.SENTENCES);
+        return query;
+    }
 }
@@ -0,0 +1,226 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+public class MappedCommunicationReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadDirectory() throws IOException {
+        Path dir = folder.newFolder("comms").toPath();
+        Files.write(dir.resolve("a.comm"), bytes("first"));
+        Files.write(dir.resolve("empty.comm"), new byte[0]);
+
+        List<String> entries = readAll(dir);
+
+        assertEquals(1, entries.size());
+        assertEquals("first", entries.get(0));
+    }
+
+    @Test
+    public void testReadZipWithStoredAndDeflatedEntries() throws IOException {
+        Path zip = folder.getRoot().toPath().resolve("comms.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.closeEntry();
+            addStoredEntry(out, "dir/a.comm", bytes("stored entry"));
+            out.putNextEntry(new ZipEntry("dir/b.comm"));
+            out.write(bytes("deflated entry deflated entry"));
+            out.closeEntry();
+        }
+
+        List<String> entries = readAll(zip);
+
+        assertEquals(2, entries.size());
+        assertEquals("stored entry", entries.get(0));
+        assertEquals("deflated entry deflated entry", entries.get(1));
+    }
+
+    @Test
+    public void testReadTar() throws IOException {
+        Path tar = folder.getRoot().toPath().resolve("comms.tar");
+        try (OutputStream out = Files.newOutputStream(tar)) {
+            writeTarEntry(out, "a.comm", bytes("first"));
+            writeTarEntry(out, "b.comm", bytes(new String(new char[700]).replace('\0', 'x')));
+            out.write(new byte[1024]);
+        }
+
+        List<String> entries = readAll(tar);
+
+        assertEquals(2, entries.size());
+        assertEquals("first", entries.get(0));
+        assertEquals(700, entries.get(1).length());
+    }
+
+    @Test
+    public void testReadArchiveInSmallChunks() throws IOException {
+        Path tar = folder.getRoot().toPath().resolve("comms.tar");
+        List<String> expected = new ArrayList<>();
+        try (OutputStream out = Files.newOutputStream(tar)) {
+            for (int i = 0; i < 10; i++) {
+                // some entries fit in a chunk with the next and some are larger than a chunk
+                String data = new String(new char[i * 300 + 1]).replace('\0', (char) ('a' + i));
+                writeTarEntry(out, i + ".comm", bytes(data));
+                expected.add(data);
+            }
+            out.write(new byte[1024]);
+        }
+
+        assertEquals(expected, readAll(new MappedCommunicationReader(1024), tar));
+    }
+
+    @Test
+    public void testDecodeMappedCommunications() throws IOException, ConcreteException, TException {
+        Communication comm = TestCommunications.create("c1", "a fish", "another fish");
+        byte[] serialized = new CompactCommunicationSerializer().toBytes(comm);
+        Path zip = folder.getRoot().toPath().resolve("comms.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            addStoredEntry(out, "stored.comm", serialized);
+            out.putNextEntry(new ZipEntry("deflated.comm"));
+            out.write(serialized);
+            out.closeEntry();
+        }
+        Path tar = folder.getRoot().toPath().resolve("comms.tar");
+        try (OutputStream out = Files.newOutputStream(tar)) {
+            writeTarEntry(out, "c1.comm", serialized);
+            out.write(new byte[1024]);
+        }
+
+        List<Communication> decoded = new ArrayList<>();
+        MappedCommunicationReader reader = new MappedCommunicationReader();
+        for (Path path : new Path[] {zip, tar}) {
+            reader.read(path, buffer -> {
+                try {
+                    decoded.add(MappedCommunicationReader.decode(buffer));
+                } catch (TException e) {
+                    throw new IOException(e);
+                } finally {
+                    reader.release(buffer);
+                }
+            });
+        }
+
+        assertEquals(3, decoded.size());
+        for (Communication result : decoded) {
+            assertEquals(comm.getId(), result.getId());
+            assertEquals(comm.getText(), result.getText());
+            assertEquals(2, result.getSectionList().get(0).getSentenceListSize());
+        }
+    }
+
+    @Test
+    public void testTruncatedDeflatedEntryFails() throws IOException {
+        Path zip = folder.getRoot().toPath().resolve("comms.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("a.comm"));
+            out.write(bytes("deflated entry deflated entry"));
+            out.closeEntry();
+        }
+        // claim more uncompressed bytes than the stream holds
+        patchCentralDirectory(zip, 24, 1000);
+
+        try {
+            readAll(zip);
+            fail("expected a truncated entry to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Truncated"));
+        }
+    }
+
+    @Test
+    public void testZip64EntryFails() throws IOException {
+        Path zip = folder.getRoot().toPath().resolve("comms.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            addStoredEntry(out, "a.comm", bytes("stored entry"));
+        }
+        patchCentralDirectory(zip, 42, 0xffffffff);
+
+        try {
+            readAll(zip);
+            fail("expected a zip64 entry to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Zip64"));
+        }
+    }
+
+    private List<String> readAll(Path path) throws IOException {
+        return readAll(new MappedCommunicationReader(), path);
+    }
+
+    private List<String> readAll(MappedCommunicationReader reader, Path path) throws IOException {
+        List<String> entries = new ArrayList<>();
+        reader.read(path, buffer -> {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            entries.add(new String(data, StandardCharsets.UTF_8));
+            reader.release(buffer);
+        });
+        return entries;
+    }
+
+    /**
+     * Overwrite a 4 byte field of the first central directory header
+     */
+    private static void patchCentralDirectory(Path zip, int fieldOffset, int value) throws IOException {
+        byte[] data = Files.readAllBytes(zip);
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i + 4 <= data.length; i++) {
+            if (buffer.getInt(i) == 0x02014b50) {
+                buffer.putInt(i + fieldOffset, value);
+                Files.write(zip, data);
+                return;
+            }
+        }
+        fail("no central directory header");
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void addStoredEntry(ZipOutputStream out, String name, byte[] data) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static void writeTarEntry(OutputStream out, String name, byte[] data) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(512);
+        header.put(bytes(name));
+        header.position(124);
+        header.put(bytes(String.format("%011o", data.length)));
+        header.put(156, (byte) '0');
+        out.write(header.array());
+        out.write(data);
+        out.write(new byte[(512 - data.length % 512) % 512]);
+    }
+}
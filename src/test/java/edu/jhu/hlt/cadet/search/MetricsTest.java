@@ -0,0 +1,39 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class MetricsTest {
+    @Test
+    public void testPrometheusText() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests_total", "Requests").add(3);
+        metrics.gauge("queue_depth", "Queue depth", () -> 7);
+        metrics.timer("latency_seconds", "Latency").record(2000000000L);
+
+        StringBuilder sb = new StringBuilder();
+        metrics.write(sb);
+        String text = sb.toString();
+
+        assertTrue(text.contains("# TYPE requests_total counter\nrequests_total 3\n"));
+        assertTrue(text.contains("# TYPE queue_depth gauge\nqueue_depth 7\n"));
+        assertTrue(text.contains("# TYPE latency_seconds histogram\n"));
+        assertTrue(text.contains("latency_seconds_bucket{le=\"1.0\"} 0\n"));
+        assertTrue(text.contains("latency_seconds_bucket{le=\"2.5\"} 1\n"));
+        assertTrue(text.contains("latency_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("latency_seconds_sum 2.0\n"));
+        assertTrue(text.contains("latency_seconds_count 1\n"));
+    }
+
+    @Test
+    public void testSameNameIsShared() {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests_total", "Requests").inc();
+        metrics.counter("requests_total", "Requests").inc();
+
+        assertEquals(2, metrics.counter("requests_total", "Requests").get());
+    }
+}
@@ -0,0 +1,223 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.server.TServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.access.FetchCommunicationService;
+import edu.jhu.hlt.concrete.access.FetchRequest;
+import edu.jhu.hlt.concrete.access.FetchResult;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+
+public class NetworkIndexerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<TServer> servers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (TServer server : servers) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testProgressWaitsForEarlierPages() {
+        NetworkIndexer.Progress progress = new NetworkIndexer.Progress(500);
+
+        progress.finish(600, 700);
+        progress.finish(700, 800);
+        assertEquals(500, progress.getCompleted());
+
+        progress.finish(500, 600);
+        assertEquals(800, progress.getCompleted());
+
+        progress.finish(900, 1000);
+        assertEquals(800, progress.getCompleted());
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        assertEquals(1000, NetworkIndexer.backoff(1000, 0));
+        assertEquals(4000, NetworkIndexer.backoff(1000, 2));
+        assertEquals(30000, NetworkIndexer.backoff(1000, 10));
+        // shifting by 64 or more would wrap around to a short or negative delay
+        assertEquals(30000, NetworkIndexer.backoff(1000, 64));
+        assertEquals(30000, NetworkIndexer.backoff(1000, 100));
+    }
+
+    @Test
+    public void testResumeContinuesFromCheckpoint() throws Exception {
+        FakeFetchService service = new FakeFetchService(10);
+        int port = startFetchServer(service, new AtomicInteger());
+        Indexer.Config config = createConfig();
+        service.failFrom = 6;
+        try {
+            new NetworkIndexer("localhost", port).index(config);
+            fail("expected the ingest to fail");
+        } catch (TException e) {
+            // the service rejected the page at offset 6
+        }
+        assertEquals(6, countHits(config.indexDir));
+
+        service.failFrom = Long.MAX_VALUE;
+        service.offsets.clear();
+        config.resume = true;
+        new NetworkIndexer("localhost", port).index(config);
+
+        assertEquals(Arrays.asList(6L, 8L), service.offsets);
+        // no page was fetched twice
+        assertEquals(10, service.fetched.get());
+        assertEquals(10, countHits(config.indexDir));
+    }
+
+    @Test
+    public void testRetriesDroppedConnections() throws Exception {
+        FakeFetchService service = new FakeFetchService(4);
+        AtomicInteger drops = new AtomicInteger(2);
+        int port = startFetchServer(service, drops);
+        Indexer.Config config = createConfig();
+        config.fetchRetries = 2;
+
+        new NetworkIndexer("localhost", port).index(config);
+
+        assertEquals(0, drops.get());
+        assertEquals(4, countHits(config.indexDir));
+    }
+
+    @Test
+    public void testStopsAfterRetries() throws Exception {
+        FakeFetchService service = new FakeFetchService(4);
+        AtomicInteger drops = new AtomicInteger(5);
+        int port = startFetchServer(service, drops);
+        Indexer.Config config = createConfig();
+        config.fetchRetries = 2;
+
+        try {
+            new NetworkIndexer("localhost", port).index(config);
+            fail("expected the ingest to fail");
+        } catch (TException e) {
+            assertTrue(e.getMessage().contains("after 3 attempts"));
+        }
+        // the first request and two retries
+        assertEquals(2, drops.get());
+    }
+
+    private Indexer.Config createConfig() throws IOException {
+        Indexer.Config config = new Indexer.Config();
+        config.indexDir = folder.newFolder("index").toPath();
+        config.batchSize = 2;
+        config.checkpointBatches = 1;
+        config.retryBackoffMillis = 1;
+        return config;
+    }
+
+    /**
+     * Serve the fetch service, closing the connection instead of replying to the first drops requests
+     */
+    private int startFetchServer(FakeFetchService service, AtomicInteger drops) throws Exception {
+        int port = findFreePort();
+        Server.Threading threading = new Server.Threading();
+        threading.mode = Server.Mode.THREADED_SELECTOR;
+        Server server = new Server(port, null, null, false);
+        server.setThreading(threading);
+        TProcessor processor = new FetchCommunicationService.Processor<>(service);
+        TServer tserver = server.createServer((in, out) -> {
+            if (drops.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new IllegalStateException("Dropped request");
+            }
+            return processor.process(in, out);
+        });
+        new Thread(tserver::serve).start();
+        while (!tserver.isServing()) {
+            Thread.sleep(10);
+        }
+        servers.add(tserver);
+        return port;
+    }
+
+    private int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long countHits(Path indexDir) throws IOException, ParseException {
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            return snapshot.search(searcher.parse("fish"), 100, null).totalHits;
+        }
+    }
+
+    /**
+     * Serves communications c0, c1, ... with one sentence each
+     */
+    private static class FakeFetchService implements FetchCommunicationService.Iface {
+        private final int count;
+        // offsets of the pages of ids requested
+        final List<Long> offsets = new CopyOnWriteArrayList<>();
+        final AtomicInteger fetched = new AtomicInteger();
+        volatile long failFrom = Long.MAX_VALUE;
+
+        FakeFetchService(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public List<String> getCommunicationIDs(long offset, long n) {
+            if (offset >= failFrom) {
+                throw new IllegalStateException("Unavailable");
+            }
+            offsets.add(offset);
+            List<String> ids = new ArrayList<>();
+            for (long i = offset; i < Math.min(count, offset + n); i++) {
+                ids.add("c" + i);
+            }
+            return ids;
+        }
+
+        @Override
+        public FetchResult fetch(FetchRequest request) {
+            FetchResult result = new FetchResult();
+            result.setCommunications(new ArrayList<Communication>());
+            for (String id : request.getCommunicationIds()) {
+                result.addToCommunications(TestCommunications.create(id, "one fish"));
+            }
+            fetched.addAndGet(request.getCommunicationIdsSize());
+            return result;
+        }
+
+        @Override
+        public long getCommunicationCount() {
+            return count;
+        }
+
+        @Override
+        public ServiceInfo about() {
+            return new ServiceInfo("Fake", "1.0.0");
+        }
+
+        @Override
+        public boolean alive() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.server.TServer;
+import org.junit.After;
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.search.SearchCapability;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.search.SearchType;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+import edu.jhu.hlt.concrete.services.ServicesException;
+
+public class SearchBrokerTest {
+    private final List<TServer> servers = new ArrayList<>();
+    private final List<SearchBroker.Backend> backends = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        for (SearchBroker.Backend backend : backends) {
+            backend.close();
+        }
+        for (TServer server : servers) {
+            server.stop();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMergesResultsByScore() throws Exception {
+        startBackend(new FixedHandler("corpus1", 0, "a", 3.0, "b", 1.0));
+        startBackend(new FixedHandler("corpus2", 0, "c", 2.0, "d", 0.5));
+        SearchBroker broker = new SearchBroker(backends, executor, 5000);
+
+        SearchResult result = broker.search(query(SearchType.SENTENCES, 3));
+
+        assertEquals(3, result.getSearchResultItemsSize());
+        assertEquals("a", result.getSearchResultItems().get(0).getCommunicationId());
+        assertEquals("c", result.getSearchResultItems().get(1).getCommunicationId());
+        assertEquals("b", result.getSearchResultItems().get(2).getCommunicationId());
+        assertFalse(result.getSearchQuery().isSetLabels());
+        assertEquals(Arrays.asList("corpus1", "corpus2"), broker.getCorpora());
+    }
+
+    @Test
+    public void testCommunicationsKeepBestScore() throws Exception {
+        startBackend(new FixedHandler("corpus1", 0, "a", 1.0, "b", 0.5));
+        startBackend(new FixedHandler("corpus1", 0, "a", 2.0));
+        SearchBroker broker = new SearchBroker(backends, executor, 5000);
+
+        SearchResult result = broker.search(query(SearchType.COMMUNICATIONS, 10));
+
+        assertEquals(2, result.getSearchResultItemsSize());
+        assertEquals("a", result.getSearchResultItems().get(0).getCommunicationId());
+        assertEquals(2.0, result.getSearchResultItems().get(0).getScore(), 0.0001);
+        assertEquals(Arrays.asList("corpus1"), broker.getCorpora());
+    }
+
+    @Test
+    public void testSlowBackendGivesPartialResults() throws Exception {
+        startBackend(new FixedHandler("fast", 0, "a", 1.0));
+        startBackend(new FixedHandler("slow", 2000, "b", 5.0));
+        SearchBroker broker = new SearchBroker(backends, executor, 200);
+
+        long start = System.currentTimeMillis();
+        SearchResult result = broker.search(query(SearchType.SENTENCES, 10));
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(1, result.getSearchResultItemsSize());
+        assertEquals("a", result.getSearchResultItems().get(0).getCommunicationId());
+        assertTrue(result.getSearchQuery().getLabels().contains(LuceneSearchHandler.PARTIAL_LABEL));
+    }
+
+    @Test
+    public void testBackendErrorIsPassedOnWhenNoBackendAnswers() throws Exception {
+        startBackend(new FixedHandler("corpus1", 0, "a", 1.0));
+        startBackend(new FixedHandler("corpus2", 0, "b", 2.0));
+        SearchBroker broker = new SearchBroker(backends, executor, 5000);
+        Metrics.Counter failures = Metrics.global().counter("cadet_broker_backend_failures_total", "");
+        long failuresBefore = failures.get();
+
+        SearchQuery bad = query(SearchType.SENTENCES, 10);
+        bad.setRawQuery(FixedHandler.BAD_QUERY);
+        try {
+            broker.search(bad);
+            fail("expected the backend error");
+        } catch (ServicesException e) {
+            assertEquals("Unable to parse query: " + FixedHandler.BAD_QUERY, e.getMessage());
+        }
+        // the backends answered, so none is counted as failed
+        assertEquals(failuresBefore, failures.get());
+        assertEquals(2, broker.search(query(SearchType.SENTENCES, 10)).getSearchResultItemsSize());
+        assertEquals(failuresBefore, failures.get());
+    }
+
+    private SearchQuery query(SearchType type, int k) {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery("test");
+        query.setType(type);
+        query.setK(k);
+        return query;
+    }
+
+    private void startBackend(SearchService.Iface handler) throws Exception {
+        int port = findFreePort();
+        Server.Threading threading = new Server.Threading();
+        threading.mode = Server.Mode.THREADED_SELECTOR;
+        threading.workerThreads = 2;
+        Server server = new Server(port, null, null, false);
+        server.setThreading(threading);
+        TServer tserver = server.createServer(new SearchService.Processor<>(handler));
+        new Thread(tserver::serve).start();
+        while (!tserver.isServing()) {
+            Thread.sleep(10);
+        }
+        servers.add(tserver);
+        backends.add(new SearchBroker.Backend("localhost", port, 5000));
+    }
+
+    private int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns the same results for every query after an optional delay and rejects {@link #BAD_QUERY}
+     */
+    private static class FixedHandler implements SearchService.Iface {
+        static final String BAD_QUERY = "bad:";
+
+        private final String corpus;
+        private final long delayMillis;
+        private final Object[] hits;
+
+        /**
+         * @param hits  pairs of communication id and score
+         */
+        FixedHandler(String corpus, long delayMillis, Object... hits) {
+            this.corpus = corpus;
+            this.delayMillis = delayMillis;
+            this.hits = hits;
+        }
+
+        @Override
+        public SearchResult search(SearchQuery query) throws ServicesException, TException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new ServicesException("interrupted");
+            }
+            if (query.getRawQuery().equals(BAD_QUERY)) {
+                throw new ServicesException("Unable to parse query: " + query.getRawQuery());
+            }
+            SearchResult result = new SearchResult();
+            result.setSearchQuery(query);
+            result.setSearchResultItems(new ArrayList<>());
+            for (int i = 0; i < hits.length; i += 2) {
+                SearchResultItem item = new SearchResultItem();
+                item.setCommunicationId((String) hits[i]);
+                item.setScore((Double) hits[i + 1]);
+                result.addToSearchResultItems(item);
+            }
+            return result;
+        }
+
+        @Override
+        public List<SearchCapability> getCapabilities() throws ServicesException, TException {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<String> getCorpora() throws ServicesException, TException {
+            return Arrays.asList(corpus);
+        }
+
+        @Override
+        public ServiceInfo about() throws TException {
+            return new ServiceInfo("Fixed", "1.0.0");
+        }
+
+        @Override
+        public boolean alive() throws TException {
+            return true;
+        }
+    }
+}
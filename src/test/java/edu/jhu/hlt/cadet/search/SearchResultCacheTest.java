@@ -0,0 +1,89 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResultItem;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+public class SearchResultCacheTest {
+    @Test
+    public void testNormalizesWhitespace() {
+        SearchResultCache cache = new SearchResultCache(10);
+        cache.put(query("red  fish"), 10, 1, items("c1"));
+
+        List<SearchResultItem> items = cache.get(query(" red fish "), 10, 1);
+
+        assertEquals("c1", items.get(0).getCommunicationId());
+        assertNull(cache.get(query("red fish"), 20, 1));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        SearchResultCache cache = new SearchResultCache(2);
+        cache.put(query("a"), 10, 1, items("c1"));
+        cache.put(query("b"), 10, 1, items("c2"));
+        cache.get(query("a"), 10, 1);
+        cache.put(query("c"), 10, 1, items("c3"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(query("a"), 10, 1));
+        assertNull(cache.get(query("b"), 10, 1));
+    }
+
+    @Test
+    public void testClearedByNewerVersion() {
+        SearchResultCache cache = new SearchResultCache(10);
+        cache.put(query("a"), 10, 1, items("c1"));
+
+        assertNull(cache.get(query("a"), 10, 2));
+
+        // results computed on the old reader are not cached
+        cache.put(query("a"), 10, 1, items("c1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCorporaHaveSeparateEntriesAndVersions() {
+        SearchResultCache cache = new SearchResultCache(10);
+        cache.put("news", query("a"), 10, 5, items("c1"));
+        cache.put("web", query("a"), 10, 1, items("c2"));
+
+        assertEquals("c1", cache.get("news", query("a"), 10, 5).get(0).getCommunicationId());
+        assertEquals("c2", cache.get("web", query("a"), 10, 1).get(0).getCommunicationId());
+
+        // a refresh of one corpus leaves the other cached
+        assertNull(cache.get("web", query("a"), 10, 2));
+        assertNotNull(cache.get("news", query("a"), 10, 5));
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        SearchResultCache cache = new SearchResultCache(10);
+        cache.put(query("a"), 10, 1, items("c1"));
+
+        cache.get(query("a"), 10, 1).get(0).setCommunicationId("changed");
+
+        assertEquals("c1", cache.get(query("a"), 10, 1).get(0).getCommunicationId());
+    }
+
+    private static SearchQuery query(String rawQuery) {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery(rawQuery);
+        query.setType(SearchType.SENTENCES);
+        return query;
+    }
+
+    private static List<SearchResultItem> items(String commId) {
+        SearchResultItem item = new SearchResultItem();
+        item.setCommunicationId(commId);
+        return Arrays.asList(item);
+    }
+}
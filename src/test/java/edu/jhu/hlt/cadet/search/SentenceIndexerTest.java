@@ -0,0 +1,173 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.lucene.ConcreteLuceneConstants;
+
+public class SentenceIndexerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReindexReplacesCommunication() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish", "blue fish"));
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "one fish"),
+                        TestCommunications.create("c2", "two fish"));
+
+        assertEquals(1, countSentences(indexDir, "c1"));
+        assertEquals(1, countSentences(indexDir, "c2"));
+    }
+
+    @Test
+    public void testSkipUnchanged() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"),
+                        TestCommunications.create("c2", "blue fish"));
+
+        Indexer.Config config = new Indexer.Config();
+        config.indexDir = indexDir;
+        config.skipUnchanged = true;
+        try (SentenceIndexer indexer = new SentenceIndexer(config)) {
+            indexer.add(TestCommunications.create("c1", "red fish"));
+            indexer.add(TestCommunications.create("c2", "blue fish", "one fish"));
+            indexer.add(TestCommunications.create("c3", "two fish"));
+
+            assertEquals(1, indexer.getSkippedCount());
+        }
+
+        assertEquals(1, countSentences(indexDir, "c1"));
+        assertEquals(2, countSentences(indexDir, "c2"));
+        assertEquals(1, countSentences(indexDir, "c3"));
+    }
+
+    @Test
+    public void testSkipUnchangedRewritesDocumentsIndexedWithOtherOptions() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, false, TestCommunications.create("c1", "red fish"));
+
+        Indexer.Config config = new Indexer.Config();
+        config.indexDir = indexDir;
+        config.skipUnchanged = true;
+        config.useDocValues = true;
+        for (int run = 0; run < 2; run++) {
+            try (SentenceIndexer indexer = new SentenceIndexer(config)) {
+                indexer.add(TestCommunications.create("c1", "red fish"));
+                // the first run adds doc values, the second finds the same options
+                assertEquals(run, indexer.getSkippedCount());
+            }
+        }
+
+        try (Directory dir = FSDirectory.open(indexDir); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(1, reader.numDocs());
+            Term id = new Term(ConcreteLuceneConstants.COMM_ID_FIELD, "c1");
+            int doc = new IndexSearcher(reader).search(new TermQuery(id), 1).scoreDocs[0].doc;
+            LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(doc, reader.leaves()));
+            SortedDocValues values = leaf.reader().getSortedDocValues(ConcreteLuceneConstants.COMM_ID_FIELD);
+            assertTrue(values.getOrd(doc - leaf.docBase) >= 0);
+        }
+    }
+
+    @Test
+    public void testProfileForceMergesOnClose() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        // separate builds leave one segment each
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"));
+        TestCommunications.index(indexDir, TestCommunications.create("c2", "blue fish"));
+
+        IndexProfile profile = IndexProfile.throughput();
+        profile.directory = IndexProfile.DirectoryType.NIO;
+        profile.forceMergeSegments = 1;
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false, profile, 1)) {
+            indexer.add(TestCommunications.create("c3", "one fish"));
+        }
+
+        try (Directory dir = FSDirectory.open(indexDir); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(1, reader.leaves().size());
+            assertEquals(3, reader.numDocs());
+        }
+        // a small index can be served from memory
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false, null,
+                        IndexProfile.DirectoryType.RAM, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            assertEquals(3, snapshot.search(searcher.parse("fish"), 10, null).totalHits);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRamDirectoryCannotBeWritten() throws IOException {
+        IndexProfile profile = new IndexProfile();
+        profile.directory = IndexProfile.DirectoryType.RAM;
+        new SentenceIndexer(folder.getRoot().toPath(), false, profile, 1);
+    }
+
+    @Test
+    public void testShardedIndexKeepsItsLayout() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false, 16, 4)) {
+            indexer.add(TestCommunications.create("c1", "red fish"));
+        }
+        // reopening without a shard count uses the existing shards
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.add(TestCommunications.create("c1", "blue fish"));
+            assertEquals(4, indexer.getWriters().length);
+        }
+
+        assertEquals(1, countSentences(Shards.path(indexDir, Shards.forId("c1", 4)), "c1"));
+        try {
+            new SentenceIndexer(indexDir, false, 16, 2);
+            fail("Expected a shard count mismatch");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIngestCheckpointIsCommitted() throws IOException {
+        Path indexDir = folder.getRoot().toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false, 16.0, 2)) {
+            assertNull(IngestCheckpoint.read(indexer));
+            indexer.add(TestCommunications.create("c1", "red fish"));
+            new IngestCheckpoint(250, 1000).save(indexer);
+            // later commits keep the checkpoint
+            indexer.commit();
+        }
+
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            IngestCheckpoint checkpoint = IngestCheckpoint.read(indexer);
+            assertEquals(250, checkpoint.offset);
+            assertEquals(1000, checkpoint.total);
+
+            // a shard whose last commit is behind holds back the checkpoint
+            indexer.getWriters()[1].setLiveCommitData(Collections.singletonMap(
+                            IngestCheckpoint.OFFSET_KEY, "100").entrySet());
+            assertEquals(100, IngestCheckpoint.read(indexer).offset);
+        }
+    }
+
+    private static int countSentences(Path indexDir, String commId) throws IOException {
+        try (Directory directory = FSDirectory.open(indexDir);
+                        DirectoryReader reader = DirectoryReader.open(directory)) {
+            return new IndexSearcher(reader).count(
+                            new TermQuery(new Term(ConcreteLuceneConstants.COMM_ID_FIELD, commId)));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SentenceSearcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadIdsFromDocValuesAndStoredFields() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        // one segment without doc values like an older index and one with them
+        TestCommunications.index(indexDir, false, TestCommunications.create("old", "red fish"));
+        TestCommunications.index(indexDir, true, TestCommunications.create("new", "blue fish", "one fish"));
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            TopDocs hits = snapshot.search(searcher.parse("fish"), 10, null);
+            SentenceSearcher.HitIds ids = snapshot.loadIds(hits.scoreDocs);
+
+            assertEquals(3, hits.scoreDocs.length);
+            for (int i = 0; i < hits.scoreDocs.length; i++) {
+                String sentenceId = ids.sentenceIds[i];
+                assertTrue(sentenceId.startsWith(ids.commIds[i] + "-"));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadIdsFromMergedSegmentWithAndWithoutDocValues() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, false, TestCommunications.create("old", "red fish"));
+        TestCommunications.index(indexDir, true, TestCommunications.create("new", "blue fish"));
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.forceMerge(1);
+        }
+        try (Directory dir = FSDirectory.open(indexDir); DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(1, reader.leaves().size());
+        }
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            TopDocs hits = snapshot.search(searcher.parse("fish"), 10, null);
+            SentenceSearcher.HitIds ids = snapshot.loadIds(hits.scoreDocs);
+
+            assertEquals(2, hits.scoreDocs.length);
+            Set<String> sentenceIds = new HashSet<>(Arrays.asList(ids.sentenceIds));
+            assertEquals(new HashSet<>(Arrays.asList("old-0", "new-0")), sentenceIds);
+            for (int i = 0; i < hits.scoreDocs.length; i++) {
+                assertTrue(ids.sentenceIds[i].startsWith(ids.commIds[i] + "-"));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchCommunicationsCollapsesSentences() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, false, TestCommunications.create("old", "big red fish", "red fish"));
+        TestCommunications.index(indexDir, true, TestCommunications.create("new", "blue fish", "one fish", "fish"));
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            TopDocs hits = snapshot.searchCommunications(searcher.parse("fish"), 10, null);
+            SentenceSearcher.HitIds ids = snapshot.loadIds(hits.scoreDocs);
+
+            assertEquals(2, hits.totalHits);
+            assertEquals(2, hits.scoreDocs.length);
+            // each communication is represented by its best sentence
+            assertEquals("new-2", ids.sentenceIds[0]);
+            assertEquals("old-1", ids.sentenceIds[1]);
+
+            TopDocs secondPage = snapshot.searchCommunications(searcher.parse("fish"), 10, hits.scoreDocs[0]);
+            assertEquals(1, secondPage.scoreDocs.length);
+            assertEquals(hits.scoreDocs[1].doc, secondPage.scoreDocs[0].doc);
+        }
+    }
+
+    @Test
+    public void testSearchCommunicationsMergesCopiesOfACommunication() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        // the same communication indexed twice around another, as when indexes are combined
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.setUseDocValues(true);
+            IndexWriter writer = indexer.getWriters()[0];
+            writer.addDocuments(indexer.createDocuments(TestCommunications.create("dup", "red fish", "boat")));
+            writer.addDocuments(indexer.createDocuments(TestCommunications.create("other", "big blue fish")));
+            writer.commit();
+            writer.addDocuments(indexer.createDocuments(TestCommunications.create("dup", "fish", "boat")));
+        }
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            Query query = searcher.parse("fish");
+            TopDocs hits = snapshot.searchCommunications(query, 10, null);
+            SentenceSearcher.HitIds ids = snapshot.loadIds(hits.scoreDocs);
+
+            assertEquals(Arrays.asList("dup", "other"), Arrays.asList(ids.commIds));
+            // the best copy represents the communication
+            assertEquals("dup-0", ids.sentenceIds[0]);
+            assertEquals(snapshot.search(query, 1, null).scoreDocs[0].doc, hits.scoreDocs[0].doc);
+
+            TopDocs first = snapshot.searchCommunications(query, 1, null);
+            TopDocs second = snapshot.searchCommunications(query, 1, first.scoreDocs[0]);
+            assertEquals(hits.scoreDocs[0].doc, first.scoreDocs[0].doc);
+            assertEquals(1, second.scoreDocs.length);
+            assertEquals("other", snapshot.loadIds(second.scoreDocs).commIds[0]);
+            assertEquals(0, snapshot.searchCommunications(query, 1, second.scoreDocs[0]).scoreDocs.length);
+        }
+    }
+
+    @Test
+    public void testSearchCommunicationsInMergedSegmentWithAndWithoutDocValues() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, false, TestCommunications.create("old", "big red fish", "red fish"));
+        TestCommunications.index(indexDir, true, TestCommunications.create("new", "blue fish", "one fish", "fish"));
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.forceMerge(1);
+        }
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            Query query = searcher.parse("fish");
+            TopDocs first = snapshot.searchCommunications(query, 1, null);
+            TopDocs second = snapshot.searchCommunications(query, 1, first.scoreDocs[0]);
+
+            assertEquals(2, first.totalHits);
+            assertEquals(1, first.scoreDocs.length);
+            assertEquals("new-2", snapshot.loadIds(first.scoreDocs).sentenceIds[0]);
+            assertEquals(1, second.scoreDocs.length);
+            assertEquals("old-1", snapshot.loadIds(second.scoreDocs).sentenceIds[0]);
+            assertEquals(0, snapshot.searchCommunications(query, 1, second.scoreDocs[0]).scoreDocs.length);
+        }
+    }
+
+    @Test
+    public void testRefreshShowsUncommittedDocuments() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false);
+                        SentenceSearcher searcher = new SentenceSearcher(indexer, false)) {
+            indexer.add(TestCommunications.create("first", "red fish"));
+            searcher.maybeRefresh();
+
+            try (SentenceSearcher.Snapshot before = searcher.acquire()) {
+                assertEquals(1, before.search(searcher.parse("fish"), 10, null).totalHits);
+
+                indexer.add(TestCommunications.create("second", "blue fish"));
+                searcher.maybeRefresh();
+
+                // an acquired snapshot does not change
+                assertEquals(1, before.search(searcher.parse("fish"), 10, null).totalHits);
+                try (SentenceSearcher.Snapshot after = searcher.acquire()) {
+                    assertEquals(2, after.search(searcher.parse("fish"), 10, null).totalHits);
+                    assertTrue(after.getVersion() > before.getVersion());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShardedSearchPagesThroughAllHits() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false, 16, 3)) {
+            for (int i = 0; i < 20; i++) {
+                indexer.add(TestCommunications.create("c" + i, "red fish", "blue fish"));
+            }
+        }
+        assertEquals(3, Shards.count(indexDir));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false, executor);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            assertEquals(3, searcher.getShardCount());
+            Query query = searcher.parse("fish");
+
+            // every sentence has the same score within a shard so paging relies on the tie breaking
+            Set<String> seen = new HashSet<>();
+            ScoreDoc after = null;
+            TopDocs page;
+            do {
+                page = snapshot.search(query, 7, after);
+                SentenceSearcher.HitIds ids = snapshot.loadIds(page.scoreDocs);
+                for (int i = 0; i < page.scoreDocs.length; i++) {
+                    assertTrue(ids.sentenceIds[i].startsWith(ids.commIds[i] + "-"));
+                    assertTrue(seen.add(ids.sentenceIds[i]));
+                }
+                if (page.scoreDocs.length > 0) {
+                    after = page.scoreDocs[page.scoreDocs.length - 1];
+                }
+            } while (page.scoreDocs.length > 0);
+            assertEquals(40, seen.size());
+
+            TopDocs comms = snapshot.searchCommunications(query, 100, null);
+            assertEquals(20, comms.totalHits);
+            assertEquals(20, comms.scoreDocs.length);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadlineStopsCollecting() throws IOException, ParseException, InterruptedException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish", "blue fish"));
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            Query query = searcher.parse("fish");
+            Deadline generous = new Deadline(60000);
+            assertEquals(2, snapshot.search(query, 10, null, generous).scoreDocs.length);
+            assertFalse(generous.isExceeded());
+
+            Deadline spent = new Deadline(1);
+            // the global timer ticks every 20 ms
+            Thread.sleep(100);
+            assertEquals(0, snapshot.searchCommunications(query, 10, null, spent).scoreDocs.length);
+            assertTrue(spent.isExceeded());
+        }
+    }
+
+    @Test
+    public void testQueryLimits() throws IOException, ParseException {
+        Path indexDir = folder.getRoot().toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "a fish", "another fish", "around"));
+
+        try (SentenceSearcher searcher = new SentenceSearcher(indexDir, false);
+                        SentenceSearcher.Snapshot snapshot = searcher.acquire()) {
+            searcher.setQueryLimits(3, 0);
+            searcher.parse("a OR (fish AND around)");
+            try {
+                searcher.parse("a OR (fish AND around) OR another");
+                fail("expected the query to be rejected");
+            } catch (SentenceSearcher.QueryTooLargeException e) {
+                assertTrue(e.getMessage().contains("4 clauses"));
+            }
+
+            // a, another and around
+            searcher.setQueryLimits(0, 3);
+            assertEquals(3, snapshot.search(searcher.parse("a* OR fish"), 10, null).scoreDocs.length);
+            assertEquals(1, snapshot.searchCommunications(searcher.parse("a*"), 10, null).scoreDocs.length);
+            searcher.setQueryLimits(0, 2);
+            assertEquals(1, snapshot.search(searcher.parse("an*"), 10, null).scoreDocs.length);
+            try {
+                snapshot.search(searcher.parse("fish OR a*"), 10, null);
+                fail("expected the query to be rejected");
+            } catch (SentenceSearcher.ExpansionLimitException e) {
+                assertTrue(e.getMessage().contains("limit of 2 terms"));
+            }
+        }
+    }
+}
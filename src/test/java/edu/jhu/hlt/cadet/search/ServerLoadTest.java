@@ -0,0 +1,223 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.search.SearchCapability;
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchResult;
+import edu.jhu.hlt.concrete.search.SearchService;
+import edu.jhu.hlt.concrete.search.SearchType;
+import edu.jhu.hlt.concrete.services.ServiceInfo;
+import edu.jhu.hlt.concrete.services.ServicesException;
+
+/**
+ * Checks that each server mode serves concurrent clients and that the worker queue bounds waiting requests.
+ * Throughput of each mode with many clients is measured by ServerBenchmark in the benchmarks module.
+ */
+public class ServerLoadTest {
+    private static final int CLIENTS = 8;
+    private static final int REQUESTS_PER_CLIENT = 50;
+    private static final long WORK_NANOS = 2000000;
+
+    @Test
+    public void testEveryModeServesConcurrentClients() throws Exception {
+        for (Server.Mode mode : Server.Mode.values()) {
+            Server.Threading threading = new Server.Threading();
+            threading.mode = mode;
+            threading.workerThreads = 2;
+            assertEquals(mode.toString(), CLIENTS * REQUESTS_PER_CLIENT, serveClients(threading, new BusyHandler()));
+        }
+    }
+
+    @Test
+    public void testFullQueueRejectsRequests() throws Exception {
+        Server.Threading threading = new Server.Threading();
+        threading.mode = Server.Mode.THREADED_SELECTOR;
+        threading.workerThreads = 1;
+        threading.queueSize = 1;
+        BlockingHandler handler = new BlockingHandler();
+        int port = findFreePort();
+        TServer tserver = startServer(port, threading, handler);
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try {
+            Future<Integer> running = clients.submit(() -> runClient(port, 1));
+            assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+            // with the worker busy, one request waits in the queue and the other is rejected
+            List<Future<Integer>> waiting = new ArrayList<>();
+            waiting.add(clients.submit(() -> runClient(port, 1)));
+            waiting.add(clients.submit(() -> runClient(port, 1)));
+            Future<Integer> rejected = firstDone(waiting);
+            try {
+                rejected.get();
+                fail("Expected the request to be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TTransportException);
+            }
+            waiting.remove(rejected);
+
+            handler.release.countDown();
+            assertEquals(1, (int) running.get(10, TimeUnit.SECONDS));
+            assertEquals(1, (int) waiting.get(0).get(10, TimeUnit.SECONDS));
+        } finally {
+            handler.release.countDown();
+            clients.shutdown();
+            tserver.stop();
+        }
+    }
+
+    private int serveClients(Server.Threading threading, SearchService.Iface handler) throws Exception {
+        final int port = findFreePort();
+        TServer tserver = startServer(port, threading, handler);
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return runClient(port, REQUESTS_PER_CLIENT);
+                    }
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                total += result.get();
+            }
+            return total;
+        } finally {
+            clients.shutdown();
+            tserver.stop();
+        }
+    }
+
+    private TServer startServer(int port, Server.Threading threading, SearchService.Iface handler)
+                    throws Exception {
+        Server server = new Server(port, null, null, false);
+        server.setThreading(threading);
+        final TServer tserver = server.createServer(new SearchService.Processor<>(handler));
+        Thread serverThread = new Thread(tserver::serve);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!tserver.isServing()) {
+            Thread.sleep(10);
+        }
+        return tserver;
+    }
+
+    private static <T> Future<T> firstDone(List<Future<T>> futures) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            for (Future<T> future : futures) {
+                if (future.isDone()) {
+                    return future;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No request finished");
+    }
+
+    private int runClient(int port, int requests) throws TException {
+        TTransport transport = new TFramedTransport(new TSocket("localhost", port), Integer.MAX_VALUE);
+        transport.open();
+        try {
+            SearchService.Client client = new SearchService.Client(new TCompactProtocol(transport));
+            SearchQuery query = new SearchQuery();
+            query.setRawQuery("load");
+            query.setType(SearchType.SENTENCES);
+            int count = 0;
+            for (int i = 0; i < requests; i++) {
+                SearchResult result = client.search(query);
+                assertEquals("load", result.getSearchQuery().getRawQuery());
+                count++;
+            }
+            return count;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Burns CPU for a fixed amount of time per search like an expensive query would
+     */
+    private static class BusyHandler implements SearchService.Iface {
+        @Override
+        public SearchResult search(SearchQuery query) throws ServicesException, TException {
+            long end = System.nanoTime() + WORK_NANOS;
+            long x = 0;
+            while (System.nanoTime() < end) {
+                x++;
+            }
+            SearchResult result = new SearchResult();
+            result.setSearchQuery(query);
+            result.setSearchResultItems(new ArrayList<>());
+            return result;
+        }
+
+        @Override
+        public List<SearchCapability> getCapabilities() throws ServicesException, TException {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<String> getCorpora() throws ServicesException, TException {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ServiceInfo about() throws TException {
+            return new ServiceInfo("Busy", "1.0.0");
+        }
+
+        @Override
+        public boolean alive() throws TException {
+            return true;
+        }
+    }
+
+    /**
+     * Holds every search until released
+     */
+    private static class BlockingHandler extends BusyHandler {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public SearchResult search(SearchQuery query) throws ServicesException, TException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.search(query);
+        }
+    }
+}
@@ -2,10 +2,22 @@ package edu.jhu.hlt.cadet.search;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.thrift.TException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchType;
+
 public class ServerTest {
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
@@ -17,4 +29,76 @@ public class ServerTest {
         assertFalse(Server.indexExists(indexDir));
     }
 
+    @Test
+    public void testEntryPointsUseServedGeneration() throws Exception {
+        Path indexDir = folder.newFolder("index").toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"));
+        IndexGenerations generations = new IndexGenerations(indexDir);
+        Path generation = generations.create();
+        TestCommunications.index(generation, TestCommunications.create("c2", "blue fish"));
+        generations.publish(generation, 3);
+
+        Server server = new Server(0, indexDir.toString(), null, false);
+        assertEquals(generation, server.createIndexConfig(10).indexDir);
+
+        Server.Corpus corpus = Server.Corpus.parse("news:" + indexDir);
+        try (CorpusRouter router = server.createRouter(Collections.singletonList(corpus))) {
+            assertEquals(Arrays.asList("c2"), search(router, "news", "fish"));
+        }
+
+        Path exported = folder.getRoot().toPath().resolve("export.txt");
+        IndexExporter.main(new String[] {indexDir.toString(), "-o", exported.toString()});
+        assertEquals(Arrays.asList("c2 (c2-0) : blue fish"), Files.readAllLines(exported, StandardCharsets.UTF_8));
+
+        Path queries = folder.newFile("queries.txt").toPath();
+        Files.write(queries, Arrays.asList("fish"), StandardCharsets.UTF_8);
+        Path results = folder.getRoot().toPath().resolve("results.txt");
+        BatchSearch.main(new String[] {"-d", indexDir.toString(), "-q", queries.toString(), "-o", results.toString()});
+        List<String> lines = Files.readAllLines(results, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("fish\t1\tc2\t"));
+    }
+
+    @Test
+    public void testCorpusSwitchesToPublishedGenerationAndBack() throws Exception {
+        Path indexDir = folder.newFolder("index").toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "red fish"));
+        Server server = new Server(0, indexDir.toString(), null, false);
+        server.setRefreshMillis(10);
+
+        Server.Corpus corpus = Server.Corpus.parse("news:" + indexDir);
+        try (CorpusRouter router = server.createRouter(Collections.singletonList(corpus))) {
+            assertEquals(Arrays.asList("c1"), search(router, "news", "fish"));
+
+            IndexGenerations generations = new IndexGenerations(indexDir);
+            Path generation = generations.create();
+            TestCommunications.index(generation, TestCommunications.create("c2", "blue fish"));
+            generations.publish(generation, 3);
+            awaitResults(router, "c2");
+
+            generations.rollback();
+            awaitResults(router, "c1");
+        }
+    }
+
+    /**
+     * Wait for the scheduled refresh to switch the router's index
+     */
+    private static void awaitResults(CorpusRouter router, String commId) throws TException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!search(router, "news", "fish").equals(Arrays.asList(commId))) {
+            assertTrue("timed out waiting for " + commId, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<String> search(CorpusRouter router, String corpus, String rawQuery) throws TException {
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery(rawQuery);
+        query.setType(SearchType.COMMUNICATIONS);
+        query.setCorpus(corpus);
+        List<String> ids = new ArrayList<>();
+        router.search(query).getSearchResultItems().forEach(item -> ids.add(item.getCommunicationId()));
+        return ids;
+    }
 }
@@ -0,0 +1,85 @@
+package edu.jhu.hlt.cadet.search;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenList;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.UUID;
+
+/**
+ * Builds small tokenized communications for tests
+ */
+public class TestCommunications {
+
+    /**
+     * Create a communication with one section and a sentence per string.
+     * Sentence uuids are the comm id followed by the sentence number.
+     */
+    public static Communication create(String id, String... sentences) {
+        StringBuilder text = new StringBuilder();
+        Section section = new Section();
+        section.setUuid(new UUID(id + "-section"));
+        section.setSentenceList(new ArrayList<Sentence>());
+        for (int s = 0; s < sentences.length; s++) {
+            int sentenceStart = text.length();
+            List<Token> tokens = new ArrayList<>();
+            String[] words = sentences[s].split(" ");
+            for (int t = 0; t < words.length; t++) {
+                if (t > 0) {
+                    text.append(' ');
+                }
+                Token token = new Token();
+                token.setTokenIndex(t);
+                token.setText(words[t]);
+                token.setTextSpan(new TextSpan(text.length(), text.length() + words[t].length()));
+                text.append(words[t]);
+                tokens.add(token);
+            }
+            TokenList tokenList = new TokenList();
+            tokenList.setTokenList(tokens);
+            Tokenization tokenization = new Tokenization();
+            tokenization.setUuid(new UUID(id + "-tokenization-" + s));
+            tokenization.setTokenList(tokenList);
+
+            Sentence sentence = new Sentence();
+            sentence.setUuid(new UUID(id + "-" + s));
+            sentence.setTextSpan(new TextSpan(sentenceStart, text.length()));
+            sentence.setTokenization(tokenization);
+            section.addToSentenceList(sentence);
+            text.append('\n');
+        }
+        section.setTextSpan(new TextSpan(0, text.length()));
+
+        Communication comm = new Communication();
+        comm.setId(id);
+        comm.setUuid(new UUID(id + "-uuid"));
+        comm.setType("test");
+        comm.setText(text.toString());
+        comm.addToSectionList(section);
+        return comm;
+    }
+
+    /**
+     * Index the communications into the directory
+     */
+    public static void index(Path indexDir, Communication... comms) throws IOException {
+        index(indexDir, false, comms);
+    }
+
+    public static void index(Path indexDir, boolean useDocValues, Communication... comms) throws IOException {
+        try (SentenceIndexer indexer = new SentenceIndexer(indexDir, false)) {
+            indexer.setUseDocValues(useDocValues);
+            for (Communication comm : comms) {
+                indexer.add(comm);
+            }
+        }
+    }
+}
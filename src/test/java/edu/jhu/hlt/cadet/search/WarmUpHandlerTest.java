@@ -0,0 +1,56 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.thrift.TException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.search.SearchQuery;
+import edu.jhu.hlt.concrete.search.SearchType;
+
+public class WarmUpHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadQueries() throws IOException {
+        Path file = folder.newFile("queries.txt").toPath();
+        Files.write(file, Arrays.asList("# recent queries", "dog", "", "  cat AND dog  "), StandardCharsets.UTF_8);
+
+        assertEquals(Arrays.asList("dog", "cat AND dog"), WarmUpHandler.readQueries(file));
+    }
+
+    @Test
+    public void testNotAliveUntilWarm() throws TException, IOException {
+        Path indexDir = folder.newFolder("index").toPath();
+        TestCommunications.index(indexDir, TestCommunications.create("c1", "the dog barked"));
+        SentenceSearcher searcher = new SentenceSearcher(indexDir, false, null, true);
+        SearchResultCache cache = new SearchResultCache(10);
+        WarmUpHandler handler = new WarmUpHandler(new LuceneSearchHandler("eng", searcher, cache));
+
+        assertFalse(handler.alive());
+
+        List<String> queries = Arrays.asList("dog", "(unbalanced");
+        handler.warmUp(queries);
+
+        assertTrue(handler.alive());
+        // warm-up fills the cache with the sentence and communication results
+        assertEquals(2, cache.size());
+        SearchQuery query = new SearchQuery();
+        query.setRawQuery("dog");
+        query.setType(SearchType.SENTENCES);
+        assertEquals("c1", handler.search(query).getSearchResultItems().get(0).getCommunicationId());
+        assertEquals(1, cache.getHits());
+
+        searcher.close();
+    }
+}
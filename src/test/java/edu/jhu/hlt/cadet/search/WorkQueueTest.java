@@ -0,0 +1,35 @@
+package edu.jhu.hlt.cadet.search;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WorkQueueTest {
+
+    @Test
+    public void testAllItemsProcessed() throws IOException {
+        AtomicInteger sum = new AtomicInteger();
+        WorkQueue<Integer> queue = new WorkQueue<Integer>("test", 4, 2, () -> item -> sum.addAndGet(item));
+        for (int i = 1; i <= 100; i++) {
+            queue.put(i);
+        }
+        queue.finish();
+
+        assertEquals(5050, sum.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWorkerFailureIsRethrown() throws IOException {
+        WorkQueue<Integer> queue = new WorkQueue<Integer>("test", 2, 2, () -> item -> {
+            throw new IllegalStateException("bad item");
+        });
+        for (int i = 0; i < 100; i++) {
+            queue.put(i);
+        }
+        queue.finish();
+    }
+
+}